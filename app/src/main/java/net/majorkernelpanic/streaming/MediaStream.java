@@ -24,9 +24,15 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetAddress;
 import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import net.majorkernelpanic.streaming.audio.AudioStream;
+import net.majorkernelpanic.streaming.rtcp.ReceiverStats;
 import net.majorkernelpanic.streaming.rtp.AbstractPacketizer;
+import net.majorkernelpanic.streaming.rtp.EncodedFrameHub;
+import net.majorkernelpanic.streaming.rtp.FrameQueue;
+import net.majorkernelpanic.streaming.rtp.FrameSink;
+import net.majorkernelpanic.streaming.rtp.FrameSource;
 import net.majorkernelpanic.streaming.video.VideoStream;
 import android.annotation.SuppressLint;
 import android.media.MediaCodec;
@@ -95,6 +101,10 @@ public abstract class MediaStream implements Stream {
 
 	protected MediaRecorder mMediaRecorder;
 	protected MediaCodec mMediaCodec;
+
+	/** Publishes the frames of the encoder when sinks other than the packetizer want them. */
+	protected EncodedFrameHub mFrameHub = null;
+	private final CopyOnWriteArrayList<FrameSink> mFrameSinks = new CopyOnWriteArrayList<FrameSink>();
 	
 	static {
 		// We determine whether or not the MediaCodec API should be used
@@ -232,6 +242,57 @@ public abstract class MediaStream implements Stream {
 		return mPacketizer;
 	}
 
+	/**
+	 * Adds a sink that gets the frames of the encoder along with the packetizer, like a recorder. 
+	 * Only the MediaCodec API can feed sinks, they are taken into account the next time 
+	 * the stream is started unless some sinks were already there.
+	 */
+	public void addFrameSink(FrameSink sink) {
+		mFrameSinks.addIfAbsent(sink);
+		EncodedFrameHub hub = mFrameHub;
+		if (hub != null) hub.addSink(sink);
+	}
+
+	public void removeFrameSink(FrameSink sink) {
+		mFrameSinks.remove(sink);
+		EncodedFrameHub hub = mFrameHub;
+		if (hub != null) hub.removeSink(sink);
+	}
+
+	/** 
+	 * Asks the encoder for a key frame, only a {@link VideoStream} can. 
+	 * @return False if the encoder can not be asked for a key frame
+	 */
+	public boolean requestKeyFrame() {
+		return false;
+	}
+
+	/**
+	 * Hands the output of the encoder to the packetizer, directly or through an 
+	 * {@link EncodedFrameHub} when some {@link FrameSink}s were added.
+	 * @param annexB True if the frames are made of NAL units with start codes
+	 */
+	protected void setEncoderOutput(FrameSource source, boolean annexB) {
+		if (mFrameSinks.isEmpty()) {
+			mPacketizer.setFrameSource(source);
+			return;
+		}
+		FrameQueue queue = new FrameQueue(30);
+		// A video frame dropped by the queue breaks the frames that follow until the next key frame
+		queue.setPredictive(annexB);
+		queue.setCallback(new FrameQueue.Callback() {
+			@Override
+			public void onKeyFrameNeeded(FrameQueue queue) {
+				requestKeyFrame();
+			}
+		});
+		mFrameHub = new EncodedFrameHub(source, annexB);
+		mFrameHub.addSink(queue);
+		for (FrameSink sink : mFrameSinks) mFrameHub.addSink(sink);
+		mPacketizer.setFrameSource(queue);
+		mFrameHub.start();
+	}
+
 	/**
 	 * Returns an approximation of the bit rate consumed by the stream in bit per seconde.
 	 */
@@ -239,6 +300,11 @@ public abstract class MediaStream implements Stream {
 		return !mStreaming ? 0 : mPacketizer.getRtpSocket().getBitrate(); 
 	}
 
+	/** Returns what the receivers of the stream report in their RTCP packets: loss, jitter, round-trip time... */
+	public ReceiverStats[] getReceiverStats() {
+		return mPacketizer.getRtpSocket().getReceiverStats();
+	}
+
 	/**
 	 * Indicates if the {@link MediaStream} is streaming.
 	 * @return A boolean indicating if the {@link MediaStream} is streaming
@@ -269,7 +335,8 @@ public abstract class MediaStream implements Stream {
 		if (mDestination==null)
 			throw new IllegalStateException("No destination ip address set for the stream !");
 
-		if (mRtpPort<=0 || mRtcpPort<=0)
+		// A stream broadcast to RtpDestinations does not need ports of its own
+		if ((mRtpPort<=0 || mRtcpPort<=0) && mPacketizer.getRtpSocket().getDestinationCount()==0)
 			throw new IllegalStateException("No destination ports set for the stream !");
 
 		mPacketizer.setTimeToLive(mTTL);
@@ -295,6 +362,10 @@ public abstract class MediaStream implements Stream {
 					mPacketizer.stop();
 				} else {
 					mPacketizer.stop();
+					if (mFrameHub != null) {
+						mFrameHub.stop();
+						mFrameHub = null;
+					}
 					mMediaCodec.stop();
 					mMediaCodec.release();
 					mMediaCodec = null;
@@ -306,6 +377,15 @@ public abstract class MediaStream implements Stream {
 		}
 	}
  
+	/** 
+	 * Closes the RTP and RTCP sockets of the packetizer, and ends the thread that reads the RTCP packets. 
+	 * Called by the {@link net.majorkernelpanic.streaming.Session} once the stream was stopped for good, 
+	 * it can not be started again afterwards.
+	 */
+	public void closeRtpSocket() {
+		if (mPacketizer != null) mPacketizer.getRtpSocket().close();
+	}
+
 	protected abstract void encodeWithMediaRecorder() throws IOException;
 
 	protected abstract void encodeWithMediaCodec() throws IOException;
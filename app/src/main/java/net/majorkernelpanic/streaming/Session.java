@@ -32,6 +32,7 @@ import net.majorkernelpanic.streaming.exceptions.ConfNotSupportedException;
 import net.majorkernelpanic.streaming.exceptions.InvalidSurfaceException;
 import net.majorkernelpanic.streaming.exceptions.StorageUnavailableException;
 import net.majorkernelpanic.streaming.gl.SurfaceView;
+import net.majorkernelpanic.streaming.rtcp.ReceiverStats;
 import net.majorkernelpanic.streaming.rtsp.RtspClient;
 import net.majorkernelpanic.streaming.video.VideoQuality;
 import net.majorkernelpanic.streaming.video.VideoStream;
@@ -191,6 +192,7 @@ public class Session {
 	void removeAudioTrack() {
 		if (mAudioStream != null) {
 			mAudioStream.stop();
+			mAudioStream.closeRtpSocket();
 			mAudioStream = null;
 		}
 	}
@@ -199,6 +201,7 @@ public class Session {
 	void removeVideoTrack() {
 		if (mVideoStream != null) {
 			mVideoStream.stopPreview();
+			mVideoStream.closeRtpSocket();
 			mVideoStream = null;
 		}
 	}
@@ -352,6 +355,23 @@ public class Session {
 		return sum;
 	}
 
+	/** 
+	 * Returns what the receivers of a track report in their RTCP packets.
+	 * @param id 0 for the audio track, 1 for the video track
+	 */
+	public ReceiverStats[] getReceiverStats(int id) {
+		MediaStream stream = id==0 ? mAudioStream : mVideoStream;
+		return stream != null ? stream.getReceiverStats() : new ReceiverStats[0];
+	}
+
+	/** 
+	 * Asks the encoder of the video track for a key frame, see {@link VideoStream#requestKeyFrame()}.
+	 * @return False if there is no video track or if its encoder can not be asked for a key frame
+	 */
+	public boolean requestKeyFrame() {
+		return mVideoStream != null && mVideoStream.requestKeyFrame();
+	}
+
 	/** Indicates if a track is currently running. */
 	public boolean isStreaming() {
 		if ( (mAudioStream!=null && mAudioStream.isStreaming()) || (mVideoStream!=null && mVideoStream.isStreaming()) )
@@ -34,8 +34,11 @@ import net.majorkernelpanic.streaming.audio.AMRNBStream;
 import net.majorkernelpanic.streaming.audio.AudioQuality;
 import net.majorkernelpanic.streaming.audio.AudioStream;
 import net.majorkernelpanic.streaming.gl.SurfaceView;
+import net.majorkernelpanic.streaming.hw.CodecManager;
+import net.majorkernelpanic.streaming.hw.EncoderDebugger;
 import net.majorkernelpanic.streaming.video.H263Stream;
 import net.majorkernelpanic.streaming.video.H264Stream;
+import net.majorkernelpanic.streaming.video.H265Stream;
 import net.majorkernelpanic.streaming.video.VideoQuality;
 import net.majorkernelpanic.streaming.video.VideoStream;
 
@@ -63,6 +66,12 @@ public class SessionBuilder {
      */
     public final static int VIDEO_H263 = 2;
 
+    /**
+     * Can be used with {@link #setVideoEncoder}.
+     * Falls back on {@link #VIDEO_H264} when the phone has no H.265 encoder.
+     */
+    public final static int VIDEO_H265 = 3;
+
     /**
      * Can be used with {@link #setAudioEncoder}.
      */
@@ -151,10 +160,24 @@ public class SessionBuilder {
                 break;
         }
 
-        switch ( mVideoEncoder ) {
+        int videoEncoder = mVideoEncoder;
+        if ( videoEncoder == VIDEO_H265
+                && ( Build.VERSION.SDK_INT < 21 || CodecManager.findEncodersForMimeType( EncoderDebugger.MIME_TYPE_HEVC ).length == 0 ) ) {
+            Log.e( TAG, "No H.265 encoder found on the phone, we fallback on H.264." );
+            videoEncoder = VIDEO_H264;
+        }
+
+        switch ( videoEncoder ) {
             case VIDEO_H263:
                 session.addVideoTrack( new H263Stream( mCamera, mContext ) );
                 break;
+            case VIDEO_H265: {
+                H265Stream stream = new H265Stream( mCamera, mContext );
+                if ( mContext != null )
+                    stream.setPreferences( PreferenceManager.getDefaultSharedPreferences( mContext ) );
+                session.addVideoTrack( stream );
+                break;
+            }
             case VIDEO_H264:
                 H264Stream stream = new H264Stream( mCamera, mContext );
                 if ( mContext != null )
@@ -28,9 +28,9 @@ import java.net.InetAddress;
 import java.nio.ByteBuffer;
 
 import net.majorkernelpanic.streaming.SessionBuilder;
+import net.majorkernelpanic.streaming.hw.EncoderDriver;
 import net.majorkernelpanic.streaming.rtp.AACADTSPacketizer;
 import net.majorkernelpanic.streaming.rtp.AACLATMPacketizer;
-import net.majorkernelpanic.streaming.rtp.MediaCodecInputStream;
 import android.annotation.SuppressLint;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
@@ -89,7 +89,12 @@ public class AACStream extends AudioStream {
 	private int mProfile, mSamplingRateIndex, mChannel, mConfig;
 	private SharedPreferences mSettings = null;
 	private AudioRecord mAudioRecord = null;
-	private Thread mThread = null;
+
+	/** Number of samples in an AAC frame, the encoder is fed with that many samples at a time. */
+	private final static int AAC_FRAME_SIZE = 1024;
+
+	// Frames recorded by the AudioRecord that are not in the encoder yet
+	private int mPendingFrames = 0;
 
 	public AACStream() {
 		super();
@@ -200,6 +205,7 @@ public class AACStream extends AudioStream {
 
 		mAudioRecord = new AudioRecord(MediaRecorder.AudioSource.MIC, mQuality.samplingRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, bufferSize);
 		mMediaCodec = MediaCodec.createEncoderByType("audio/mp4a-latm");
+		final EncoderDriver driver = new EncoderDriver(mMediaCodec);
 		MediaFormat format = new MediaFormat();
 		format.setString(MediaFormat.KEY_MIME, "audio/mp4a-latm");
 		format.setInteger(MediaFormat.KEY_BIT_RATE, mQuality.bitRate);
@@ -208,52 +214,70 @@ public class AACStream extends AudioStream {
 		format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
 		format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, bufferSize);
 		mMediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-		mAudioRecord.startRecording();
-		mMediaCodec.start();
-
-		final MediaCodecInputStream inputStream = new MediaCodecInputStream(mMediaCodec);
-		final ByteBuffer[] inputBuffers = mMediaCodec.getInputBuffers();
 
-		mThread = new Thread(new Runnable() {
+		// The encoder is fed on the thread of the driver each time a frame has been recorded, 
+		// or when an input buffer gets free while some frames are waiting
+		final Runnable feeder = new Runnable() {
 			@Override
 			public void run() {
-				int len = 0, bufferIndex = 0;
-				try {
-					while (!Thread.interrupted()) {
-						bufferIndex = mMediaCodec.dequeueInputBuffer(10000);
-						if (bufferIndex>=0) {
-							inputBuffers[bufferIndex].clear();
-							len = mAudioRecord.read(inputBuffers[bufferIndex], bufferSize);
-							if (len ==  AudioRecord.ERROR_INVALID_OPERATION || len == AudioRecord.ERROR_BAD_VALUE) {
-								Log.e(TAG,"An error occured with the AudioRecord API !");
-							} else {
-								//Log.v(TAG,"Pushing raw audio to the decoder: len="+len+" bs: "+inputBuffers[bufferIndex].capacity());
-								mMediaCodec.queueInputBuffer(bufferIndex, 0, len, System.nanoTime()/1000, 0);
-							}
-						}
-					}
-				} catch (RuntimeException e) {
-					e.printStackTrace();
-				}
+				feed(driver);
+			}
+		};
+		mPendingFrames = 0;
+		driver.setInputListener(feeder);
+		mAudioRecord.setPositionNotificationPeriod(AAC_FRAME_SIZE);
+		mAudioRecord.setRecordPositionUpdateListener(new AudioRecord.OnRecordPositionUpdateListener() {
+			@Override
+			public void onPeriodicNotification(AudioRecord recorder) {
+				mPendingFrames++;
+				feeder.run();
 			}
-		});
+			@Override
+			public void onMarkerReached(AudioRecord recorder) {}
+		}, EncoderDriver.getHandler());
 
-		mThread.start();
+		mAudioRecord.startRecording();
+		mMediaCodec.start();
 
 		// The packetizer encapsulates this stream in an RTP stream and send it over the network
-		mPacketizer.setInputStream(inputStream);
+		setEncoderOutput(driver, false);
 		mPacketizer.start();
 
 		mStreaming = true;
 
 	}
 
+	/** 
+	 * Moves the frames recorded by the AudioRecord to the free input buffers of the encoder. 
+	 * Called on the thread of the {@link EncoderDriver}, it never waits.
+	 */
+	@SuppressLint("NewApi")
+	private void feed(EncoderDriver driver) {
+		AudioRecord record = mAudioRecord;
+		try {
+			while (mPendingFrames>0 && record != null) {
+				int bufferIndex = driver.dequeueInputBuffer(0);
+				if (bufferIndex<0) break;
+				ByteBuffer buffer = driver.getInputBuffer(bufferIndex);
+				int len = record.read(buffer, Math.min(buffer.capacity(), 2*AAC_FRAME_SIZE));
+				if (len ==  AudioRecord.ERROR_INVALID_OPERATION || len == AudioRecord.ERROR_BAD_VALUE) {
+					Log.e(TAG,"An error occured with the AudioRecord API !");
+					len = 0;
+				}
+				driver.queueInputBuffer(bufferIndex, 0, len, System.nanoTime()/1000, 0);
+				mPendingFrames--;
+			}
+		} catch (RuntimeException e) {
+			// The encoder was stopped
+			e.printStackTrace();
+		}
+	}
+
 	/** Stops the stream. */
 	public synchronized void stop() {
 		if (mStreaming) {
 			if (mMode==MODE_MEDIACODEC_API) {
-				Log.d(TAG, "Interrupting threads...");
-				mThread.interrupt();
+				mAudioRecord.setRecordPositionUpdateListener(null);
 				mAudioRecord.stop();
 				mAudioRecord.release();
 				mAudioRecord = null;
@@ -21,6 +21,7 @@
 package net.majorkernelpanic.streaming.hw;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -44,8 +45,9 @@ public class CodecManager {
 		MediaCodecInfo.CodecCapabilities.COLOR_QCOM_FormatYUV420SemiPlanar
 	};		
 
-	private static Codec[] sEncoders = null;
-	private static Codec[] sDecoders = null;
+	// By mime type
+	private static HashMap<String,Codec[]> sEncoders = new HashMap<String,Codec[]>();
+	private static HashMap<String,Codec[]> sDecoders = new HashMap<String,Codec[]>();
 
 	public static class Codec {
 		public Codec(String name, Integer[] formats) {
@@ -62,7 +64,7 @@ public class CodecManager {
 	 */
 	@SuppressLint("NewApi")
 	public synchronized static Codec[] findEncodersForMimeType(String mimeType) {
-		if (sEncoders != null) return sEncoders;
+		if (sEncoders.containsKey(mimeType)) return sEncoders.get(mimeType);
 
 		ArrayList<Codec> encoders = new ArrayList<Codec>();
 
@@ -98,8 +100,9 @@ public class CodecManager {
 			}
 		}
 
-		sEncoders = (Codec[]) encoders.toArray(new Codec[encoders.size()]);
-		return sEncoders;
+		Codec[] codecs = (Codec[]) encoders.toArray(new Codec[encoders.size()]);
+		sEncoders.put(mimeType, codecs);
+		return codecs;
 
 	}
 
@@ -109,8 +112,9 @@ public class CodecManager {
 	 */
 	@SuppressLint("NewApi")
 	public synchronized static Codec[] findDecodersForMimeType(String mimeType) {
-		if (sDecoders != null) return sDecoders;
-		boolean haveGoogleDecoder = false;
+		if (sDecoders.containsKey(mimeType)) return sDecoders.get(mimeType);
+		// Only looked for with H.264
+		boolean haveGoogleDecoder = !mimeType.equalsIgnoreCase("video/avc");
 		ArrayList<Codec> decoders = new ArrayList<Codec>();
 
 		// We loop through the decoders, apparently this can take up to a sec (testes on a GS3)
@@ -157,18 +161,19 @@ public class CodecManager {
 			decoders.add(codec);
 		}
 
-		sDecoders = (Codec[]) decoders.toArray(new Codec[decoders.size()]);
+		Codec[] codecs = (Codec[]) decoders.toArray(new Codec[decoders.size()]);
 
 		// We will use the decoder from google first, it seems to work properly on many phones
-		for (int i=0;i<sDecoders.length;i++) {
-			if (sDecoders[i].name.equalsIgnoreCase("omx.google.h264.decoder")) {
-				Codec codec = sDecoders[0];
-				sDecoders[0] = sDecoders[i];
-				sDecoders[i] = codec;
+		for (int i=0;i<codecs.length;i++) {
+			if (codecs[i].name.equalsIgnoreCase("omx.google.h264.decoder")) {
+				Codec codec = codecs[0];
+				codecs[0] = codecs[i];
+				codecs[i] = codec;
 			} 
 		}
 
-		return sDecoders;
+		sDecoders.put(mimeType, codecs);
+		return codecs;
 	}
 
 }
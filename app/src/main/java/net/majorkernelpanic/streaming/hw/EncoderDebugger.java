@@ -24,6 +24,7 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import net.majorkernelpanic.streaming.hw.CodecManager.Codec;
 import android.annotation.SuppressLint;
@@ -56,6 +57,9 @@ public class EncoderDebugger {
 
 	public final static String TAG = "EncoderDebugger";
 
+	public final static String MIME_TYPE_AVC = "video/avc";
+	public final static String MIME_TYPE_HEVC = "video/hevc";
+
 	/** Prefix that will be used for all shared preferences saved by libstreaming. */
 	private static final String PREF_PREFIX = "libstreaming-";
 
@@ -77,8 +81,6 @@ public class EncoderDebugger {
 	/** Frame rate that will be used to test the encoder. */
 	private final static int FRAMERATE = 20;
 
-	private final static String MIME_TYPE = "video/avc";
-
 	private final static int NB_DECODED = 34;
 	private final static int NB_ENCODED = 50;
 
@@ -89,13 +91,14 @@ public class EncoderDebugger {
 	private String mDecoderName, mEncoderName, mErrorLog;
 	private MediaCodec mEncoder, mDecoder;
 	private int mWidth, mHeight, mSize;
-	private byte[] mSPS, mPPS;
+	private String mMimeType, mResolution;
+	private byte[] mVPS, mSPS, mPPS;
 	private byte[] mData, mInitialImage;
 	private MediaFormat mDecOutputFormat;
 	private NV21Convertor mNV21;
 	private SharedPreferences mPreferences;
 	private byte[][] mVideo, mDecodedVideo;
-	private String mB64PPS, mB64SPS;
+	private String mB64VPS, mB64PPS, mB64SPS;
 
 	public synchronized static void asyncDebug(final Context context, final int width, final int height) {
 		new Thread(new Runnable() {
@@ -110,16 +113,33 @@ public class EncoderDebugger {
 	}
 	
 	public synchronized static EncoderDebugger debug(Context context, int width, int height) {
-		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-		return debug(prefs, width, height);
+		return debug(context, MIME_TYPE_AVC, width, height);
 	}
 
 	public synchronized static EncoderDebugger debug(SharedPreferences prefs, int width, int height) {
-		EncoderDebugger debugger = new EncoderDebugger(prefs, width, height);
+		return debug(prefs, MIME_TYPE_AVC, width, height);
+	}
+
+	public synchronized static EncoderDebugger debug(Context context, String mimeType, int width, int height) {
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		return debug(prefs, mimeType, width, height);
+	}
+
+	/**
+	 * Tests the encoders of the phone for the mime type {@link #MIME_TYPE_AVC} or {@link #MIME_TYPE_HEVC}.
+	 * The results are saved separately for each mime type.
+	 */
+	public synchronized static EncoderDebugger debug(SharedPreferences prefs, String mimeType, int width, int height) {
+		EncoderDebugger debugger = new EncoderDebugger(prefs, mimeType, width, height);
 		debugger.debug();
 		return debugger;
 	}
 
+	/** Only used with {@link #MIME_TYPE_HEVC}, null otherwise. */
+	public String getB64VPS() {
+		return mB64VPS;
+	}
+
 	public String getB64PPS() {
 		return mB64PPS;
 	}
@@ -146,8 +166,11 @@ public class EncoderDebugger {
 		return mErrorLog;
 	}
 
-	private EncoderDebugger(SharedPreferences prefs, int width, int height) {
+	private EncoderDebugger(SharedPreferences prefs, String mimeType, int width, int height) {
 		mPreferences = prefs;
+		mMimeType = mimeType;
+		// The results obtained with H.264 keep their old keys
+		mResolution = (isHEVC() ? "hevc-" : "")+width+"x"+height+"-";
 		mWidth = width;
 		mHeight = height;
 		mSize = width*height;
@@ -159,16 +182,21 @@ public class EncoderDebugger {
 		mVideo = new byte[NB_ENCODED][];
 		mDecodedVideo = new byte[NB_DECODED][];
 		mErrorLog = "";
+		mVPS = null;
 		mPPS = null;
 		mSPS = null;		
 	}
 
+	private boolean isHEVC() {
+		return mMimeType.equalsIgnoreCase(MIME_TYPE_HEVC);
+	}
+
 	private void debug() {
 		
 		// If testing the phone again is not needed, 
 		// we just restore the result from the shared preferences
 		if (!checkTestNeeded()) {
-			String resolution = mWidth+"x"+mHeight+"-";			
+			String resolution = mResolution;
 
 			boolean success = mPreferences.getBoolean(PREF_PREFIX+resolution+"success",false);
 			if (!success) {
@@ -185,6 +213,7 @@ public class EncoderDebugger {
 			mEncoderColorFormat = mPreferences.getInt(PREF_PREFIX+resolution+"colorFormat", 0);
 			mB64PPS = mPreferences.getString(PREF_PREFIX+resolution+"pps", "");
 			mB64SPS = mPreferences.getString(PREF_PREFIX+resolution+"sps", "");
+			if (isHEVC()) mB64VPS = mPreferences.getString(PREF_PREFIX+resolution+"vps", "");
 
 			return;
 		}
@@ -193,8 +222,8 @@ public class EncoderDebugger {
 		
 		// Builds a list of available encoders and decoders we may be able to use
 		// because they support some nice color formats
-		Codec[] encoders = CodecManager.findEncodersForMimeType(MIME_TYPE);
-		Codec[] decoders = CodecManager.findDecodersForMimeType(MIME_TYPE);
+		Codec[] encoders = CodecManager.findEncodersForMimeType(mMimeType);
+		Codec[] decoders = CodecManager.findDecodersForMimeType(mMimeType);
 
 		int count = 0, n = 1;
 		for (int i=0;i<encoders.length;i++) {
@@ -228,7 +257,7 @@ public class EncoderDebugger {
 					configureEncoder();
 					searchSPSandPPS();
 					
-					if (VERBOSE) Log.v(TAG, "SPS and PPS in b64: SPS="+mB64SPS+", PPS="+mB64PPS);
+					if (VERBOSE) Log.v(TAG, "Parameter sets in b64: VPS="+mB64VPS+", SPS="+mB64SPS+", PPS="+mB64PPS);
 
 					// Feeds the encoder with an image repeatedly to produce some NAL units
 					encode();
@@ -319,7 +348,7 @@ public class EncoderDebugger {
 	}
 
 	private boolean checkTestNeeded() {
-		String resolution = mWidth+"x"+mHeight+"-";
+		String resolution = mResolution;
 
 		// Forces the test
 		if (DEBUG || mPreferences==null) return true; 
@@ -345,7 +374,7 @@ public class EncoderDebugger {
 	 * or if this test has been modified.
 	 */	
 	private void saveTestResult(boolean success) {
-		String resolution = mWidth+"x"+mHeight+"-";
+		String resolution = mResolution;
 		Editor editor = mPreferences.edit();
 
 		editor.putBoolean(PREF_PREFIX+resolution+"success", success);
@@ -362,6 +391,7 @@ public class EncoderDebugger {
 			editor.putInt(PREF_PREFIX+resolution+"colorFormat", mEncoderColorFormat);
 			editor.putString(PREF_PREFIX+resolution+"pps", mB64PPS);
 			editor.putString(PREF_PREFIX+resolution+"sps", mB64SPS);
+			if (isHEVC()) editor.putString(PREF_PREFIX+resolution+"vps", mB64VPS);
 		}
 
 		editor.commit();
@@ -530,7 +560,7 @@ public class EncoderDebugger {
 	 */
 	private void configureEncoder() throws IOException  {
 		mEncoder = MediaCodec.createByCodecName(mEncoderName);
-		MediaFormat mediaFormat = MediaFormat.createVideoFormat(MIME_TYPE, mWidth, mHeight);
+		MediaFormat mediaFormat = MediaFormat.createVideoFormat(mMimeType, mWidth, mHeight);
 		mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, BITRATE);
 		mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, FRAMERATE);	
 		mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, mEncoderColorFormat);
@@ -556,15 +586,18 @@ public class EncoderDebugger {
 	 */	
 	private void configureDecoder() throws IOException {
 		byte[] prefix = new byte[] {0x00,0x00,0x00,0x01};
-
-		ByteBuffer csd0 = ByteBuffer.allocate(4+mSPS.length+4+mPPS.length);
-		csd0.put(new byte[] {0x00,0x00,0x00,0x01});
-		csd0.put(mSPS);
-		csd0.put(new byte[] {0x00,0x00,0x00,0x01});
-		csd0.put(mPPS);
+		byte[][] parameterSets = isHEVC() ? new byte[][] {mVPS,mSPS,mPPS} : new byte[][] {mSPS,mPPS};
+
+		int length = 0;
+		for (int i=0;i<parameterSets.length;i++) length += 4+parameterSets[i].length;
+		ByteBuffer csd0 = ByteBuffer.allocate(length);
+		for (int i=0;i<parameterSets.length;i++) {
+			csd0.put(prefix);
+			csd0.put(parameterSets[i]);
+		}
 
 		mDecoder = MediaCodec.createByCodecName(mDecoderName);
-		MediaFormat mediaFormat = MediaFormat.createVideoFormat(MIME_TYPE, mWidth, mHeight);
+		MediaFormat mediaFormat = MediaFormat.createVideoFormat(mMimeType, mWidth, mHeight);
 		mediaFormat.setByteBuffer("csd-0", csd0);
 		mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, mDecoderColorFormat);
 		mDecoder.configure(mediaFormat, null, null, 0);
@@ -572,27 +605,18 @@ public class EncoderDebugger {
 
 		ByteBuffer[] decInputBuffers = mDecoder.getInputBuffers();
 
-		int decInputIndex = mDecoder.dequeueInputBuffer(1000000/FRAMERATE);
-		if (decInputIndex>=0) {
-			decInputBuffers[decInputIndex].clear();
-			decInputBuffers[decInputIndex].put(prefix);
-			decInputBuffers[decInputIndex].put(mSPS);
-			mDecoder.queueInputBuffer(decInputIndex, 0, decInputBuffers[decInputIndex].position(), timestamp(), 0);
-		} else {
-			if (VERBOSE) Log.e(TAG,"No buffer available !");
-		}
-
-		decInputIndex = mDecoder.dequeueInputBuffer(1000000/FRAMERATE);
-		if (decInputIndex>=0) {
-			decInputBuffers[decInputIndex].clear();
-			decInputBuffers[decInputIndex].put(prefix);
-			decInputBuffers[decInputIndex].put(mPPS);
-			mDecoder.queueInputBuffer(decInputIndex, 0, decInputBuffers[decInputIndex].position(), timestamp(), 0);
-		} else {
-			if (VERBOSE) Log.e(TAG,"No buffer available !");
+		for (int i=0;i<parameterSets.length;i++) {
+			int decInputIndex = mDecoder.dequeueInputBuffer(1000000/FRAMERATE);
+			if (decInputIndex>=0) {
+				decInputBuffers[decInputIndex].clear();
+				decInputBuffers[decInputIndex].put(prefix);
+				decInputBuffers[decInputIndex].put(parameterSets[i]);
+				mDecoder.queueInputBuffer(decInputIndex, 0, decInputBuffers[decInputIndex].position(), timestamp(), 0);
+			} else {
+				if (VERBOSE) Log.e(TAG,"No buffer available !");
+			}
 		}
 
-
 	}
 
 	private void releaseDecoder() {
@@ -607,18 +631,18 @@ public class EncoderDebugger {
 	}	
 
 	/**
-	 * Tries to obtain the SPS and the PPS for the encoder.
+	 * Tries to obtain the SPS and the PPS (and the VPS with H.265) for the encoder.
 	 */
 	private long searchSPSandPPS() {
 
 		ByteBuffer[] inputBuffers = mEncoder.getInputBuffers();
 		ByteBuffer[] outputBuffers = mEncoder.getOutputBuffers();
 		BufferInfo info = new BufferInfo();
-		byte[] csd = new byte[128];
-		int len = 0, p = 4, q = 4;
+		byte[] csd = new byte[1024];
+		int len = 0;
 		long elapsed = 0, now = timestamp();
 
-		while (elapsed<3000000 && (mSPS==null || mPPS==null)) {
+		while (elapsed<3000000 && !hasParameterSets()) {
 
 			// Some encoders won't give us the SPS and PPS unless they receive something to encode first...
 			int bufferIndex = mEncoder.dequeueInputBuffer(1000000/FRAMERATE);
@@ -633,22 +657,22 @@ public class EncoderDebugger {
 
 			// We are looking for the SPS and the PPS here. As always, Android is very inconsistent, I have observed that some
 			// encoders will give those parameters through the MediaFormat object (that is the normal behaviour).
-			// But some other will not, in that case we try to find a NAL unit of type 7 or 8 in the byte stream outputed by the encoder...
+			// But some other will not, in that case we try to find the parameter sets in the byte stream outputed by the encoder...
 
 			int index = mEncoder.dequeueOutputBuffer(info, 1000000/FRAMERATE);
 
 			if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
 
-				// The PPS and PPS shoud be there
+				// The parameter sets shoud be there (the VPS, SPS and PPS of H.265 are all in csd-0)
 				MediaFormat format = mEncoder.getOutputFormat();
-				ByteBuffer spsb = format.getByteBuffer("csd-0");
-				ByteBuffer ppsb = format.getByteBuffer("csd-1");
-				mSPS = new byte[spsb.capacity()-4];
-				spsb.position(4);
-				spsb.get(mSPS,0,mSPS.length);
-				mPPS = new byte[ppsb.capacity()-4];
-				ppsb.position(4);
-				ppsb.get(mPPS,0,mPPS.length);
+				for (int i=0;i<2;i++) {
+					if (!format.containsKey("csd-"+i)) continue;
+					ByteBuffer buffer = format.getByteBuffer("csd-"+i);
+					byte[] data = new byte[buffer.capacity()];
+					buffer.position(0);
+					buffer.get(data,0,data.length);
+					parseParameterSets(data, data.length);
+				}
 				break;
 
 			} else if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
@@ -656,24 +680,10 @@ public class EncoderDebugger {
 			} else if (index>=0) {
 
 				len = info.size;
-				if (len<128) {
+				if (len<=csd.length) {
 					outputBuffers[index].get(csd,0,len);
-					if (len>0 && csd[0]==0 && csd[1]==0 && csd[2]==0 && csd[3]==1) {
-						// Parses the SPS and PPS, they could be in two different packets and in a different order
-						//depending on the phone so we don't make any assumption about that
-						while (p<len) {
-							while (!(csd[p+0]==0 && csd[p+1]==0 && csd[p+2]==0 && csd[p+3]==1) && p+3<len) p++;
-							if (p+3>=len) p=len;
-							if ((csd[q]&0x1F)==7) {
-								mSPS = new byte[p-q];
-								System.arraycopy(csd, q, mSPS, 0, p-q);
-							} else {
-								mPPS = new byte[p-q];
-								System.arraycopy(csd, q, mPPS, 0, p-q);
-							}
-							p += 4;
-							q = p;
-						}
+					if (len>4 && csd[0]==0 && csd[1]==0 && csd[2]==0 && csd[3]==1) {
+						parseParameterSets(csd, len);
 					}
 				}
 				mEncoder.releaseOutputBuffer(index, false);
@@ -682,13 +692,55 @@ public class EncoderDebugger {
 			elapsed = timestamp() - now;
 		}
 
-		check(mPPS != null & mSPS != null, "Could not determine the SPS & PPS.");
+		check(hasParameterSets(), "Could not determine the parameter sets.");
+		if (mVPS != null) mB64VPS = Base64.encodeToString(mVPS, 0, mVPS.length, Base64.NO_WRAP);
 		mB64PPS = Base64.encodeToString(mPPS, 0, mPPS.length, Base64.NO_WRAP);
 		mB64SPS = Base64.encodeToString(mSPS, 0, mSPS.length, Base64.NO_WRAP);
 
 		return elapsed;
 	}
 
+	private boolean hasParameterSets() {
+		return mSPS != null && mPPS != null && (mVPS != null || !isHEVC());
+	}
+
+	/**
+	 * Parses the parameter sets found in NAL units preceded with start codes, they could be 
+	 * in two different packets and in a different order depending on the phone so we don't 
+	 * make any assumption about that.
+	 */
+	private void parseParameterSets(byte[] csd, int len) {
+		int p = 0, q = -1, end;
+		while (true) {
+			while (p+2<len && !(csd[p]==0 && csd[p+1]==0 && csd[p+2]==1)) p++;
+			if (p+2>=len) p = len;
+			if (q>=0) {
+				// The zero before a 4 bytes start code belongs to the start code
+				end = p;
+				while (p<len && end>q && csd[end-1]==0) end--;
+				if (end>q) setParameterSet(Arrays.copyOfRange(csd, q, end));
+			}
+			if (p>=len) break;
+			p += 3;
+			q = p;
+		}
+	}
+
+	private void setParameterSet(byte[] nal) {
+		if (isHEVC()) {
+			switch ((nal[0]>>1)&0x3F) {
+			case 32: mVPS = nal; break;
+			case 33: mSPS = nal; break;
+			case 34: mPPS = nal; break;
+			}
+		} else {
+			switch (nal[0]&0x1F) {
+			case 7: mSPS = nal; break;
+			case 8: mPPS = nal; break;
+			}
+		}
+	}
+
 	private long encode() {
 		int n = 0;
 		long elapsed = 0, now = timestamp();
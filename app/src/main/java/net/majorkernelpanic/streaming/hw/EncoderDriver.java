@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.hw;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import net.majorkernelpanic.streaming.rtp.FrameSource;
+import net.majorkernelpanic.streaming.rtp.MediaCodecFrameSource;
+import android.annotation.SuppressLint;
+import android.media.MediaCodec;
+import android.media.MediaCodec.BufferInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+/**
+ * Drives the buffers of a MediaCodec encoder. 
+ * From API 21, the buffers are dispatched by a MediaCodec.Callback as soon as they are 
+ * ready, on one thread shared by all the encoders (see {@link #getHandler()}), instead of
+ * polling dequeueInputBuffer() and dequeueOutputBuffer(). Before that, the calls
+ * go straight to the MediaCodec.
+ * The encoded frames are handed to the packetizer, it is a {@link FrameSource}.
+ * It must be created before the MediaCodec is configured.
+ */
+@SuppressLint("NewApi")
+public class EncoderDriver implements FrameSource {
+
+	public final static String TAG = "EncoderDriver";
+
+	private static Handler sHandler = null;
+
+	private static class Output {
+		int index;
+		BufferInfo info = new BufferInfo();
+	}
+
+	// Given to the packetizer once the driver is closed
+	private final static Output CLOSED = new Output();
+
+	private final MediaCodec mMediaCodec;
+	private final boolean mAsync;
+	private MediaCodecFrameSource mSource = null;
+	private ByteBuffer[] mInputBuffers = null;
+	private final LinkedBlockingQueue<Integer> mInputs = new LinkedBlockingQueue<Integer>();
+	private final LinkedBlockingQueue<Output> mOutputs = new LinkedBlockingQueue<Output>();
+	private Output mOutput = null;
+	private MediaFormat mMediaFormat;
+	private volatile Runnable mInputListener = null;
+	private volatile boolean mClosed = false;
+
+	/** Must be called before {@link MediaCodec#configure}. */
+	public EncoderDriver(MediaCodec mediaCodec) {
+		mMediaCodec = mediaCodec;
+		mAsync = Build.VERSION.SDK_INT>=21;
+		if (mAsync) {
+			mMediaCodec.setCallback(new Callback(), getHandler());
+		}
+	}
+
+	/** 
+	 * The thread on which the buffers of all the encoders are dispatched, 
+	 * what feeds them can use it too.
+	 */
+	public synchronized static Handler getHandler() {
+		if (sHandler == null) {
+			HandlerThread thread = new HandlerThread("net.majorkernelpanic.streaming.EncoderDriver");
+			thread.start();
+			sHandler = new Handler(thread.getLooper());
+		}
+		return sHandler;
+	}
+
+	/** True if the buffers are dispatched by a MediaCodec.Callback. */
+	public boolean isAsync() {
+		return mAsync;
+	}
+
+	/** 
+	 * Called on the thread of {@link #getHandler()} when an input buffer becomes free. 
+	 * Only with a MediaCodec.Callback, see {@link #isAsync()}.
+	 */
+	public void setInputListener(Runnable listener) {
+		mInputListener = listener;
+	}
+
+	/**
+	 * Returns the index of a free input buffer, or -1 if none got free within the timeout.
+	 * Must not be called by the thread of {@link #getHandler()} with a timeout.
+	 */
+	public int dequeueInputBuffer(long timeoutUs) {
+		if (!mAsync) return mMediaCodec.dequeueInputBuffer(timeoutUs);
+		try {
+			Integer index = mInputs.poll(timeoutUs, TimeUnit.MICROSECONDS);
+			return index != null ? index : -1;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return -1;
+		}
+	}
+
+	/** Returns the input buffer returned by {@link #dequeueInputBuffer(long)}, cleared. */
+	public ByteBuffer getInputBuffer(int index) {
+		ByteBuffer buffer;
+		if (mAsync) {
+			buffer = mMediaCodec.getInputBuffer(index);
+		} else {
+			if (mInputBuffers == null) mInputBuffers = mMediaCodec.getInputBuffers();
+			buffer = mInputBuffers[index];
+		}
+		buffer.clear();
+		return buffer;
+	}
+
+	public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+		mMediaCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+	}
+
+	public ByteBuffer nextFrame() throws IOException {
+		if (!mAsync) {
+			if (mSource == null) mSource = new MediaCodecFrameSource(mMediaCodec);
+			return mSource.nextFrame();
+		}
+		releaseFrame();
+		try {
+			Output output = mOutputs.take();
+			if (output == CLOSED || mClosed) {
+				mOutputs.offer(CLOSED);
+				throw new IOException("This FrameSource was closed");
+			}
+			mOutput = output;
+			ByteBuffer buffer = mMediaCodec.getOutputBuffer(output.index);
+			buffer.clear();
+			buffer.position(output.info.offset);
+			buffer.limit(output.info.offset+output.info.size);
+			return buffer;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted");
+		} catch (RuntimeException e) {
+			// The MediaCodec was stopped
+			mOutput = null;
+			throw new IOException(e.getMessage());
+		}
+	}
+
+	public long getPresentationTimeUs() {
+		if (!mAsync) return mSource.getPresentationTimeUs();
+		return mOutput != null ? mOutput.info.presentationTimeUs : 0;
+	}
+
+	public int getFlags() {
+		if (!mAsync) return mSource.getFlags();
+		return mOutput != null ? mOutput.info.flags : 0;
+	}
+
+	public void releaseFrame() {
+		if (!mAsync) {
+			if (mSource != null) mSource.releaseFrame();
+		} else if (mOutput != null) {
+			try {
+				mMediaCodec.releaseOutputBuffer(mOutput.index, false);
+			} catch (RuntimeException ignore) {}
+			mOutput = null;
+		}
+	}
+
+	public void close() {
+		mClosed = true;
+		if (mSource != null) mSource.close();
+		mOutputs.offer(CLOSED);
+	}
+
+	/** Returns the output format of the MediaCodec, null until it is known. */
+	public MediaFormat getOutputFormat() {
+		return mSource != null ? mSource.getOutputFormat() : mMediaFormat;
+	}
+
+	private class Callback extends MediaCodec.Callback {
+
+		@Override
+		public void onInputBufferAvailable(MediaCodec codec, int index) {
+			mInputs.offer(index);
+			Runnable listener = mInputListener;
+			if (listener != null) listener.run();
+		}
+
+		@Override
+		public void onOutputBufferAvailable(MediaCodec codec, int index, BufferInfo info) {
+			if (mClosed) {
+				codec.releaseOutputBuffer(index, false);
+				return;
+			}
+			Output output = new Output();
+			output.index = index;
+			output.info.set(info.offset, info.size, info.presentationTimeUs, info.flags);
+			mOutputs.offer(output);
+		}
+
+		@Override
+		public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+			mMediaFormat = format;
+			Log.i(TAG,format.toString());
+		}
+
+		@Override
+		public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+			Log.e(TAG,"The encoder failed",e);
+			close();
+		}
+
+	}
+
+}
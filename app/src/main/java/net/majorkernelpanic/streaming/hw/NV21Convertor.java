@@ -33,12 +33,16 @@ import android.util.Log;
  */		
 public class NV21Convertor {
 
+	/** Number of rows built at a time by {@link #convert(byte[], int, int, int, boolean, ByteBuffer)}. */
+	private static final int TILE = 16;
+
 	private int mSliceHeight, mHeight;
 	private int mStride, mWidth;
 	private int mSize;
 	private boolean mPlanar, mPanesReversed = false;
 	private int mYPadding;
 	private byte[] mBuffer; 
+	private byte[] mRows;
 	ByteBuffer mCopy;
 	
 	public void setSize(int width, int height) {
@@ -204,6 +208,93 @@ public class NV21Convertor {
 		return data;
 	}
 
+	/**
+	 * Rotates the NV21 image of the camera by 90 or 270 degrees, mirrors it horizontally if needed 
+	 * and converts it to the color format of the encoder, all in a single pass over the image. 
+	 * The result is written row by row in the buffer from its position, which is then moved past 
+	 * the image: the encoder gets a <code>height</code> x <code>width</code> image.
+	 * Unlike {@link #convert(byte[])}, the stride and the slice height are taken into account, 
+	 * and the data of the camera is left untouched.
+	 * @param data The NV21 image of the camera
+	 * @param width The width of the image of the camera
+	 * @param height The height of the image of the camera
+	 * @param rotation 90 (clockwise) or 270 degrees
+	 * @param mirror Mirrors the rotated image, for the front camera
+	 * @param buffer An input buffer of the encoder
+	 */
+	public void convert(byte[] data, int width, int height, int rotation, boolean mirror, ByteBuffer buffer) {
+		if (rotation != 90 && rotation != 270) throw new IllegalArgumentException("Rotation must be 90 or 270");
+
+		final int outWidth = height, outHeight = width;
+		final int stride = Math.max(mStride, outWidth), sliceHeight = Math.max(mSliceHeight, outHeight);
+		final int base = buffer.position();
+		final int chroma = width*height;
+
+		// Output row r is made of column x of the camera image, read downward or upward. 
+		// Rows are built TILE at a time so that the camera image is read a cache line at a time
+		final boolean clockwise = rotation == 90;
+		final boolean upward = clockwise ^ mirror;
+		final int step = upward ? -width : width, next = clockwise ? 1 : -1;
+
+		if (mRows == null || mRows.length < TILE*stride) mRows = new byte[TILE*stride];
+		final byte[] rows = mRows;
+
+		// Luma
+		for (int r0=0;r0<outHeight;r0+=TILE) {
+			final int tile = Math.min(TILE, outHeight-r0);
+			int i = (upward ? (height-1)*width : 0) + (clockwise ? r0 : width-1-r0);
+			for (int c=0;c<outWidth;c++) {
+				for (int k=0, j=i;k<tile;k++, j+=next) rows[k*stride+c] = data[j];
+				i += step;
+			}
+			for (int k=0;k<tile;k++) put(buffer, base+(r0+k)*stride, rows, k*stride, outWidth);
+		}
+
+		// Chroma, VU pairs in NV21
+		final int chromaStart = base+stride*sliceHeight+mYPadding;
+		final int halfWidth = outWidth/2, halfStride = stride/2, halfHeight = outHeight/2;
+		final int u = mPanesReversed ? 1 : 0, v = 1-u;
+		for (int r0=0;r0<halfHeight;r0+=TILE) {
+			final int tile = Math.min(TILE, halfHeight-r0);
+			int i = chroma + (upward ? (height/2-1)*width : 0) + 2*(clockwise ? r0 : width/2-1-r0);
+			if (!mPlanar) {
+				// NV12 unless the encoder wants the panes reversed
+				for (int c=0;c<outWidth;c+=2) {
+					for (int k=0, j=i;k<tile;k++, j+=2*next) {
+						rows[k*stride+c+v] = data[j];
+						rows[k*stride+c+u] = data[j+1];
+					}
+					i += step;
+				}
+				for (int k=0;k<tile;k++) put(buffer, chromaStart+(r0+k)*stride, rows, k*stride, 2*halfWidth);
+			} else {
+				// I420, or YV12 if the panes are reversed: U then V in each row of the tile
+				for (int c=0;c<halfWidth;c++) {
+					for (int k=0, j=i;k<tile;k++, j+=2*next) {
+						rows[k*stride+halfWidth+c] = data[j];
+						rows[k*stride+c] = data[j+1];
+					}
+					i += step;
+				}
+				for (int k=0;k<tile;k++) {
+					final int first = chromaStart+(r0+k)*halfStride, second = first+halfStride*(sliceHeight/2);
+					put(buffer, mPanesReversed ? second : first, rows, k*stride, halfWidth);
+					put(buffer, mPanesReversed ? first : second, rows, k*stride+halfWidth, halfWidth);
+				}
+			}
+		}
+
+		buffer.position(Math.min(buffer.limit(), chromaStart+stride*sliceHeight/2));
+	}
+
+	/** Copies a row in the buffer, what does not fit is lost like with {@link #convert(byte[], ByteBuffer)}. */
+	private static void put(ByteBuffer buffer, int position, byte[] row, int offset, int length) {
+		int remaining = buffer.limit()-position;
+		if (remaining <= 0) return;
+		buffer.position(position);
+		buffer.put(row, offset, Math.min(length, remaining));
+	}
+
 	@Override
 	public String toString() {
 		return "width="+mWidth+" height="+mHeight+" stride="+mStride+" sliceHeight="+mSliceHeight+" size="+mSize+" planar="+mPlanar+" panesRev="+mPanesReversed+" ypad="+mYPadding;
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.rtcp;
+
+/**
+ * What a receiver of a stream tells about it in its RTCP packets: the report block of its 
+ * receiver reports (RFC 3550 section 6.4.1), its CNAME, and the feedback messages it sent.
+ * Updated by the thread of the {@link RtcpReceiver} that gets the packets, 
+ * the getters can be called from any thread.
+ */
+public class ReceiverStats {
+
+	private final int mSsrc, mMediaSsrc;
+
+	volatile String mCname = null;
+	volatile int mFractionLost = 0, mCumulativeLost = 0;
+	volatile long mHighestSequence = 0, mJitter = 0;
+	volatile long mRtt = -1, mLastPacket = 0, mLastReport = 0;
+	volatile boolean mLeft = false;
+	volatile long mNacks = 0, mNackedPackets = 0, mPlis = 0, mFirs = 0;
+	volatile long mEstimatedBitrate = -1;
+
+	ReceiverStats(int ssrc, int mediaSsrc) {
+		mSsrc = ssrc;
+		mMediaSsrc = mediaSsrc;
+	}
+
+	/** Returns the SSRC of the receiver. */
+	public int getSSRC() {
+		return mSsrc;
+	}
+
+	/** Returns the SSRC of the stream the receiver reports about. */
+	public int getMediaSSRC() {
+		return mMediaSsrc;
+	}
+
+	/** Returns the CNAME the receiver sent in an SDES packet, null if it did not send one. */
+	public String getCname() {
+		return mCname;
+	}
+
+	/** Returns the fraction of the packets lost since the previous report, between 0 and 1. */
+	public float getFractionLost() {
+		return mFractionLost/256f;
+	}
+
+	/** Returns the number of packets lost since the beginning of the stream. */
+	public int getCumulativeLost() {
+		return mCumulativeLost;
+	}
+
+	/** Returns the extended highest sequence number received. */
+	public long getHighestSequence() {
+		return mHighestSequence;
+	}
+
+	/** Returns the interarrival jitter, in units of the RTP timestamps of the stream. */
+	public long getJitter() {
+		return mJitter;
+	}
+
+	/** Returns the round trip time in ns computed from the last report, -1 if unknown yet. */
+	public long getRoundTripTime() {
+		return mRtt;
+	}
+
+	/** Returns when the last receiver report came, in the time base of {@link System#nanoTime()}, 0 if none came yet. */
+	public long getLastReportTime() {
+		return mLastReport;
+	}
+
+	/** Returns when the last RTCP packet of the receiver came, in the time base of {@link System#nanoTime()}. */
+	public long getLastPacketTime() {
+		return mLastPacket;
+	}
+
+	/** Returns true once the receiver sent a BYE packet. */
+	public boolean hasLeft() {
+		return mLeft;
+	}
+
+	/** Returns the number of generic NACK messages received. */
+	public long getNackCount() {
+		return mNacks;
+	}
+
+	/** Returns the number of packets the receiver asked again with NACK messages. */
+	public long getNackedPackets() {
+		return mNackedPackets;
+	}
+
+	/** Returns the number of Picture Loss Indications received. */
+	public long getPliCount() {
+		return mPlis;
+	}
+
+	/** Returns the number of Full Intra Requests received. */
+	public long getFirCount() {
+		return mFirs;
+	}
+
+	/** Returns the bitrate in bits per second of the last REMB message, -1 if none came. */
+	public long getEstimatedBitrate() {
+		return mEstimatedBitrate;
+	}
+
+	@Override
+	public String toString() {
+		return "SSRC "+Integer.toHexString(mSsrc)+(mCname != null ? " ("+mCname+")" : "")+
+				": lost "+mCumulativeLost+" ("+(mFractionLost*100/256)+"%)"+
+				", jitter "+mJitter+
+				", rtt "+(mRtt>=0 ? (mRtt/1000000)+" ms" : "?")+
+				", nack "+mNackedPackets+", pli "+mPlis+", fir "+mFirs+
+				(mEstimatedBitrate>=0 ? ", remb "+mEstimatedBitrate/1000+" kbps" : "")+
+				(mLeft ? ", left" : "");
+	}
+
+}
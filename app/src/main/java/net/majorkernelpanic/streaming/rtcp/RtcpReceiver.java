@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.rtcp;
+
+import java.util.concurrent.TimeUnit;
+
+import net.majorkernelpanic.streaming.rtp.UdpChannel;
+
+/**
+ * Parses the compound RTCP packets sent back by the receivers of a stream: receiver reports, 
+ * SDES, BYE (RFC 3550) and the feedback messages of RFC 4585, generic NACK, PLI, 
+ * FIR (RFC 5104) and REMB. 
+ * 
+ * Each {@link SenderReport} has one, it gets the packets that come to the RTCP port of the 
+ * report, or from the RTSP connection when RTCP is interleaved in it. 
+ * What each receiver reports is kept in a {@link ReceiverStats}, the table of the receivers 
+ * is replaced as a whole when a receiver comes or goes, so it can be read without locking. 
+ * Feedback messages are also passed to the {@link Callback}.
+ */
+public class RtcpReceiver implements UdpChannel.Listener {
+
+	public final static String TAG = "RtcpReceiver";
+
+	/** At most that many receivers are tracked, the ones that left or went silent are forgotten first. */
+	public static final int MAX_RECEIVERS = 64;
+
+	/** A receiver that sent nothing for that long is forgotten when room is needed. */
+	private static final long TIMEOUT = TimeUnit.SECONDS.toNanos(30);
+
+	private static final int SR = 200, RR = 201, SDES = 202, BYE = 203, RTPFB = 205, PSFB = 206, XR = 207;
+
+	public interface Callback {
+		/** 
+		 * A receiver lost the packet <code>pid</code>, and the ones of the following 16 whose bit is set 
+		 * in <code>blp</code> (RFC 4585 section 6.2.1). Called by the thread that got the packet.
+		 */
+		void onNack(ReceiverStats receiver, int pid, int blp);
+		/** A receiver needs a key frame, it sent a PLI or a FIR. */
+		void onKeyFrameRequest(ReceiverStats receiver);
+		/** A receiver estimated the bitrate it can get, in bits per second (REMB). */
+		void onBitrateEstimate(ReceiverStats receiver, long bitrate);
+	}
+
+	private volatile int mSsrc;
+	private volatile ReceiverStats[] mReceivers = new ReceiverStats[0];
+	private volatile Callback mCallback = null;
+	private volatile long mPackets = 0, mErrors = 0;
+
+	/** Sets the SSRC of the stream, what receivers say about other streams is ignored. */
+	public void setSSRC(int ssrc) {
+		if (ssrc != mSsrc) {
+			mSsrc = ssrc;
+			synchronized (this) {
+				mReceivers = new ReceiverStats[0];
+			}
+		}
+	}
+
+	public void setCallback(Callback callback) {
+		mCallback = callback;
+	}
+
+	/** Returns the receivers of the stream, the array is never modified. */
+	public ReceiverStats[] getReceivers() {
+		return mReceivers;
+	}
+
+	/** Returns the receiver with that SSRC, or null. */
+	public ReceiverStats getReceiver(int ssrc) {
+		for (ReceiverStats receiver : mReceivers) {
+			if (receiver.getSSRC() == ssrc) return receiver;
+		}
+		return null;
+	}
+
+	/** Returns the number of compound packets received. */
+	public long getPacketCount() {
+		return mPackets;
+	}
+
+	/** Returns the number of packets that could not be parsed. */
+	public long getErrorCount() {
+		return mErrors;
+	}
+
+	@Override
+	public void onReceive(byte[] buffer, int length) {
+		receive(buffer, 0, length);
+	}
+
+	/** 
+	 * Parses a compound RTCP packet, called by one thread at a time. 
+	 * RTP packets, which can share the port with RTCP (RFC 5761), are ignored. 
+	 */
+	public void receive(byte[] buffer, int offset, int length) {
+		long now = System.nanoTime();
+		int end = offset+length;
+		mPackets++;
+		while (offset+4<=end) {
+			int type = buffer[offset+1]&0xFF;
+			int size = 4*(((buffer[offset+2]&0xFF)<<8 | (buffer[offset+3]&0xFF))+1);
+			if ((buffer[offset]&0xC0) != 0x80 || type<SR || type>XR || offset+size>end) {
+				mErrors++;
+				return;
+			}
+			int count = buffer[offset]&0x1F;
+			switch (type) {
+			case SR:
+				if (size>=28) reports(buffer, offset+28, offset+size, count, getInt(buffer, offset+4), now);
+				break;
+			case RR:
+				if (size>=8) reports(buffer, offset+8, offset+size, count, getInt(buffer, offset+4), now);
+				break;
+			case SDES:
+				sdes(buffer, offset, offset+size, count, now);
+				break;
+			case BYE:
+				for (int i=0;i<count && 4*i+8<=size;i++) {
+					ReceiverStats receiver = getReceiver(getInt(buffer, offset+4+4*i));
+					if (receiver != null) receiver.mLeft = true;
+				}
+				break;
+			case RTPFB:
+				if (size>=12 && count == 1) nack(buffer, offset, size, now);
+				break;
+			case PSFB:
+				if (size>=12) feedback(buffer, offset, size, count, now);
+				break;
+			}
+			offset += size;
+		}
+	}
+
+	/** Report blocks of a receiver or sender report, 24 bytes each. */
+	private void reports(byte[] buffer, int offset, int end, int count, int sender, long now) {
+		for (int i=0;i<count && offset+24<=end;i++,offset+=24) {
+			if (getInt(buffer, offset) != mSsrc) continue;
+			ReceiverStats receiver = receiver(sender, now);
+			if (receiver == null) return;
+			receiver.mFractionLost = buffer[offset+4]&0xFF;
+			// A signed 24 bits number
+			receiver.mCumulativeLost = getInt(buffer, offset+4)<<8>>8;
+			receiver.mHighestSequence = getInt(buffer, offset+8)&0xFFFFFFFFL;
+			receiver.mJitter = getInt(buffer, offset+12)&0xFFFFFFFFL;
+			long lsr = getInt(buffer, offset+16)&0xFFFFFFFFL;
+			long dlsr = getInt(buffer, offset+20)&0xFFFFFFFFL;
+			if (lsr != 0) {
+				// In 1/65536 s, the middle 32 bits of the NTP timestamps of SenderReport
+				long rtt = (SenderReport.ntpMiddle(now)-lsr-dlsr)&0xFFFFFFFFL;
+				if (rtt<60*65536) receiver.mRtt = rtt*1000000000L/65536;
+			}
+			receiver.mLastReport = now;
+		}
+	}
+
+	private void sdes(byte[] buffer, int start, int end, int count, long now) {
+		int offset = start+4;
+		for (int i=0;i<count && offset+4<=end;i++) {
+			ReceiverStats receiver = getReceiver(getInt(buffer, offset));
+			offset += 4;
+			// Items up to the null item, then padding to the next 32 bits boundary
+			while (offset<end && buffer[offset] != 0) {
+				if (offset+2>end) return;
+				int length = buffer[offset+1]&0xFF;
+				if (offset+2+length>end) return;
+				if (buffer[offset] == 1 && receiver != null && receiver.mCname == null) {
+					receiver.mCname = new String(buffer, offset+2, length);
+				}
+				offset += 2+length;
+			}
+			offset = start+((offset-start+4)&~3);
+			if (receiver != null) receiver.mLastPacket = now;
+		}
+	}
+
+	/** Generic NACK, a list of PID and BLP. */
+	private void nack(byte[] buffer, int offset, int size, long now) {
+		if (getInt(buffer, offset+8) != mSsrc) return;
+		ReceiverStats receiver = receiver(getInt(buffer, offset+4), now);
+		if (receiver == null) return;
+		Callback callback = mCallback;
+		receiver.mNacks++;
+		for (int i=offset+12;i+4<=offset+size;i+=4) {
+			int pid = (buffer[i]&0xFF)<<8 | (buffer[i+1]&0xFF);
+			int blp = (buffer[i+2]&0xFF)<<8 | (buffer[i+3]&0xFF);
+			receiver.mNackedPackets += 1+Integer.bitCount(blp);
+			if (callback != null) callback.onNack(receiver, pid, blp);
+		}
+	}
+
+	/** Payload-specific feedback: PLI, FIR and REMB. */
+	private void feedback(byte[] buffer, int offset, int size, int format, long now) {
+		int sender = getInt(buffer, offset+4), media = getInt(buffer, offset+8);
+		Callback callback = mCallback;
+		ReceiverStats receiver;
+		switch (format) {
+		case 1:
+			// PLI
+			if (media != mSsrc || (receiver = receiver(sender, now)) == null) return;
+			receiver.mPlis++;
+			if (callback != null) callback.onKeyFrameRequest(receiver);
+			break;
+		case 4:
+			// FIR, the SSRCs are in the entries
+			for (int i=offset+12;i+8<=offset+size;i+=8) {
+				if (getInt(buffer, i) != mSsrc) continue;
+				if ((receiver = receiver(sender, now)) == null) return;
+				receiver.mFirs++;
+				if (callback != null) callback.onKeyFrameRequest(receiver);
+				return;
+			}
+			break;
+		case 15:
+			// Application layer feedback, REMB is the only one we know
+			if (size<20 || buffer[offset+12] != 'R' || buffer[offset+13] != 'E' || buffer[offset+14] != 'M' || buffer[offset+15] != 'B') return;
+			int ssrcs = buffer[offset+16]&0xFF;
+			for (int i=0;i<ssrcs && offset+24+4*i<=offset+size;i++) {
+				if (getInt(buffer, offset+20+4*i) != mSsrc) continue;
+				if ((receiver = receiver(sender, now)) == null) return;
+				int exponent = (buffer[offset+17]&0xFF)>>2;
+				long mantissa = (buffer[offset+17]&0x03)<<16 | (buffer[offset+18]&0xFF)<<8 | (buffer[offset+19]&0xFF);
+				long bitrate = exponent<46 ? mantissa<<exponent : Long.MAX_VALUE;
+				receiver.mEstimatedBitrate = bitrate;
+				if (callback != null) callback.onBitrateEstimate(receiver, bitrate);
+				return;
+			}
+			break;
+		}
+	}
+
+	/** Returns the receiver with that SSRC, adds it to the table if needed. Null if the table is full. */
+	private ReceiverStats receiver(int ssrc, long now) {
+		ReceiverStats receiver = getReceiver(ssrc);
+		if (receiver == null) {
+			synchronized (this) {
+				ReceiverStats[] receivers = mReceivers;
+				// Forgets the receivers that left or went silent
+				int count = 0;
+				for (ReceiverStats r : receivers) {
+					if (!r.mLeft && now-r.mLastPacket<TIMEOUT) count++;
+				}
+				if (count>=MAX_RECEIVERS) return null;
+				ReceiverStats[] table = new ReceiverStats[count+1];
+				for (int i=0,j=0;i<receivers.length;i++) {
+					if (!receivers[i].mLeft && now-receivers[i].mLastPacket<TIMEOUT) table[j++] = receivers[i];
+				}
+				receiver = new ReceiverStats(ssrc, mSsrc);
+				table[count] = receiver;
+				mReceivers = table;
+			}
+		}
+		receiver.mLastPacket = now;
+		return receiver;
+	}
+
+	private static int getInt(byte[] buffer, int offset) {
+		return (buffer[offset]&0xFF)<<24 | (buffer[offset+1]&0xFF)<<16 | (buffer[offset+2]&0xFF)<<8 | (buffer[offset+3]&0xFF);
+	}
+
+}
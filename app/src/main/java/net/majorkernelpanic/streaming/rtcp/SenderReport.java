@@ -22,21 +22,27 @@ package net.majorkernelpanic.streaming.rtcp;
 
 import static net.majorkernelpanic.streaming.rtp.RtpSocket.TRANSPORT_TCP;
 import static net.majorkernelpanic.streaming.rtp.RtpSocket.TRANSPORT_UDP;
+import static net.majorkernelpanic.streaming.rtp.RtpSocket.UDP_CHANNEL;
 
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.MulticastSocket;
+import java.nio.ByteBuffer;
 import java.nio.channels.IllegalSelectorException;
 
+import net.majorkernelpanic.streaming.rtp.UdpChannel;
 import android.os.SystemClock;
 import android.util.Log;
 
 /**
  * Implementation of Sender Report RTCP packets.
+ * The RTCP packets sent back by the receivers are parsed by the {@link RtcpReceiver} of the report, 
+ * see {@link #getReceiver()}. Over UDP they come to the port the reports are sent from, 
+ * when RTCP is interleaved in an RTSP connection, the reader of the connection passes them.
  */
-public class SenderReport {
+public class SenderReport implements Runnable {
 
 	public static final int MTU = 1500;
 
@@ -44,15 +50,23 @@ public class SenderReport {
 	
 	private MulticastSocket usock;
 	private DatagramPacket upack;
+	private UdpChannel mChannel = null;
+	private ByteBuffer mChannelBuffer = null;
 
-	private int mTransport;
+	private int mTransport, mUdpMode;
 	private OutputStream mOutputStream = null;
-	private byte[] mBuffer = new byte[MTU];
+	// Not taken from the PacketBufferPool: the sender thread of the RtpSocket may still use it after close()
+	private final byte[] mBuffer = new byte[PACKET_LENGTH];
 	private int mSSRC, mPort = -1;
 	private int mOctetCount = 0, mPacketCount = 0;
 	private long interval, delta, now, oldnow;
 	private byte mTcpHeader[];
 
+	private final RtcpReceiver mReceiver = new RtcpReceiver();
+	// Reads the packets sent back to the MulticastSocket
+	private Thread mThread = null;
+	private volatile boolean mClosed = false;
+
 	public SenderReport(int ssrc) throws IOException {
 		super();
 		this.mSSRC = ssrc;
@@ -98,8 +112,21 @@ public class SenderReport {
 		
 	}
 
+	/** Closes the socket, which ends the thread reading it, no report is sent afterwards. */
 	public void close() {
+		mClosed = true;
 		usock.close();
+		mThread = null;
+		closeChannel();
+	}
+
+	/**
+	 * Sets how the reports are sent over UDP, takes effect the next time 
+	 * {@link #setDestination(InetAddress, int)} is called.
+	 * @param mode Can be {@link net.majorkernelpanic.streaming.rtp.RtpSocket#UDP_SOCKET} or {@link net.majorkernelpanic.streaming.rtp.RtpSocket#UDP_CHANNEL}
+	 */
+	public void setUdpMode(int mode) {
+		mUdpMode = mode;
 	}
 
 	/**
@@ -120,6 +147,8 @@ public class SenderReport {
 	 * @throws IOException 
 	 **/
 	public void update(int length, long rtpts) throws IOException {
+		// The report was closed
+		if (mClosed) return;
 		mPacketCount += 1;
 		mOctetCount += length;
 		setLong(mPacketCount, 20, 24);
@@ -140,6 +169,7 @@ public class SenderReport {
 
 	public void setSSRC(int ssrc) {
 		this.mSSRC = ssrc; 
+		mReceiver.setSSRC(ssrc);
 		setLong(ssrc,4,8);
 		mPacketCount = 0;
 		mOctetCount = 0;
@@ -152,6 +182,49 @@ public class SenderReport {
 		mPort = dport;
 		upack.setPort(dport);
 		upack.setAddress(dest);
+		closeChannel();
+		if (mUdpMode == UDP_CHANNEL) {
+			try {
+				mChannel = UdpChannel.acquire(dest, dport);
+				mChannel.addListener(mReceiver);
+				if (mChannelBuffer == null) mChannelBuffer = ByteBuffer.allocateDirect(PACKET_LENGTH);
+			} catch (IOException e) {
+				Log.e("SenderReport","Could not open a channel to "+dest+":"+dport+", "+e.getMessage());
+			}
+		}
+		if (mChannel == null && mThread == null) {
+			mThread = new Thread(this, "SenderReport");
+			mThread.start();
+		}
+	}
+
+	/** Returns the parser of the RTCP packets sent back by the receivers, and what they report. */
+	public RtcpReceiver getReceiver() {
+		return mReceiver;
+	}
+
+	/** Reads the RTCP packets that come to the MulticastSocket until it is closed. */
+	@Override
+	public void run() {
+		byte[] buffer = new byte[MTU];
+		DatagramPacket packet = new DatagramPacket(buffer, MTU);
+		try {
+			while (true) {
+				packet.setLength(MTU);
+				usock.receive(packet);
+				mReceiver.receive(buffer, 0, packet.getLength());
+			}
+		} catch (IOException ignore) {
+			// The socket was closed
+		}
+	}
+
+	private void closeChannel() {
+		if (mChannel != null) {
+			mChannel.removeListener(mReceiver);
+			mChannel.release();
+			mChannel = null;
+		}
 	}
 
 	/**
@@ -170,7 +243,7 @@ public class SenderReport {
 	}
 
 	public int getLocalPort() {
-		return usock.getLocalPort();
+		return mChannel != null ? mChannel.getLocalPort() : usock.getLocalPort();
 	}
 
 	public int getSSRC() {
@@ -195,6 +268,13 @@ public class SenderReport {
 		}
 	}	
 
+	/** Returns the middle 32 bits of the NTP timestamp sent at <code>ntpts</code>, what receivers send back as LSR. */
+	static long ntpMiddle(long ntpts) {
+		long hb = ntpts/1000000000;
+		long lb = ( ( ntpts - hb*1000000000 ) * 4294967296L )/1000000000;
+		return (hb&0xFFFF)<<16 | lb>>>16;
+	}
+
 	/**
 	 * Sends the RTCP packet over the network.
 	 * 
@@ -210,8 +290,15 @@ public class SenderReport {
 		setLong(lb, 12, 16);
 		setLong(rtpts, 16, 20);
 		if (mTransport == TRANSPORT_UDP) {
-			upack.setLength(PACKET_LENGTH);
-			usock.send(upack);		
+			// No destination, the RtpSocket may only be sending to RtpDestinations
+			if (mPort<0) return;
+			UdpChannel channel = mChannel;
+			if (channel != null) {
+				channel.send(mChannelBuffer, mBuffer, PACKET_LENGTH);
+			} else {
+				upack.setLength(PACKET_LENGTH);
+				usock.send(upack);
+			}
 		} else {
 			synchronized (mOutputStream) {
 				try {
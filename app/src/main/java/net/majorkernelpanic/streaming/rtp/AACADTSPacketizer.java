@@ -45,6 +45,7 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 
 	public AACADTSPacketizer() {
 		super();
+		socket.setRetransmissionMode(RtpSocket.RETRANSMIT_OFF);
 	}
 
 	public void start() {
@@ -112,8 +113,11 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 				// Number of AAC frames in the ADTS frame
 				nbau = (header[6]&0x03) + 1;
 
+				// Up to 64 KB when the packets are interleaved in an RTSP connection
+				int maxPacketSize = socket.getMaxPacketSize();
+
 				// The number of RTP packets that will be sent for this ADTS frame
-				nbpk = frameLength/MAXPACKETSIZE + 1;
+				nbpk = frameLength/maxPacketSize + 1;
 
 				// Read CRS if any
 				if (!protection) is.read(header,0,2);
@@ -129,17 +133,18 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 				sum = 0;
 				while (sum<frameLength) {
 
-					buffer = socket.requestBuffer();
-					socket.updateTimestamp(ts);
-
 					// Read frame
-					if (frameLength-sum > MAXPACKETSIZE-rtphl-4) {
-						length = MAXPACKETSIZE-rtphl-4;
+					if (frameLength-sum > maxPacketSize-rtphl-4) {
+						length = maxPacketSize-rtphl-4;
 					}
 					else {
 						length = frameLength-sum;
-						socket.markNextPacket();
 					}
+
+					buffer = socket.requestBuffer(rtphl+4+length);
+					socket.updateTimestamp(ts);
+					if (sum+length == frameLength) socket.markNextPacket();
+
 					sum += length;
 					fill(buffer, rtphl+4, length);
 
@@ -21,9 +21,10 @@
 package net.majorkernelpanic.streaming.rtp;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import android.annotation.SuppressLint;
-import android.media.MediaCodec.BufferInfo;
+import android.media.MediaCodec;
 import android.os.SystemClock;
 import android.util.Log;
 
@@ -32,7 +33,8 @@ import android.util.Log;
  * 
  * Encapsulates AAC Access Units in RTP packets as specified in the RFC 3640.
  * This packetizer is used by the AACStream class in conjunction with the 
- * MediaCodec API introduced in Android 4.1 (API Level 16).       
+ * MediaCodec API introduced in Android 4.1 (API Level 16), it must be fed 
+ * with a {@link FrameSource}.
  * 
  */
 @SuppressLint("NewApi")
@@ -45,6 +47,7 @@ public class AACLATMPacketizer extends AbstractPacketizer implements Runnable {
 	public AACLATMPacketizer() {
 		super();
 		socket.setCacheSize(0);
+		socket.setRetransmissionMode(RtpSocket.RETRANSMIT_OFF);
 	}
 
 	public void start() {
@@ -76,31 +79,35 @@ public class AACLATMPacketizer extends AbstractPacketizer implements Runnable {
 
 		Log.d(TAG,"AAC LATM packetizer started !");
 
-		int length = 0;
+		int length = 0, sum, len;
 		long oldts;
-		BufferInfo bufferInfo;
+		ByteBuffer frame;
 
 		try {
 			while (!Thread.interrupted()) {
-				buffer = socket.requestBuffer();
-				length = is.read(buffer, rtphl+4, MAXPACKETSIZE-(rtphl+4));
-				
-				if (length>0) {
-					
-					bufferInfo = ((MediaCodecInputStream)is).getLastBufferInfo();
-					//Log.d(TAG,"length: "+length+" ts: "+bufferInfo.presentationTimeUs);
-					oldts = ts;
-					ts = bufferInfo.presentationTimeUs*1000;
-					
-					// Seems to happen sometimes
-					if (oldts>ts) {
-						socket.commitBuffer();
-						continue;
-					}
-					
-					socket.markNextPacket();
+				frame = source.nextFrame();
+				length = frame.remaining();
+
+				//Log.d(TAG,"length: "+length+" ts: "+source.getPresentationTimeUs());
+				oldts = ts;
+				ts = source.getPresentationTimeUs()*1000;
+
+				// Seems to happen sometimes, the AudioSpecificConfig is in the SDP
+				if (oldts>ts || length == 0 || (source.getFlags() & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+					source.releaseFrame();
+					continue;
+				}
+
+				// The access unit is copied straight into the packets, in fragments if 
+				// it is too large (RFC 3640 section 3.2.3), they all carry its whole size
+				for (sum=0;sum<length;sum+=len) {
+					len = Math.min(length-sum, MAXPACKETSIZE-(rtphl+4));
+					buffer = socket.requestBuffer(rtphl+4+len);
+					frame.get(buffer, rtphl+4, len);
+
+					if (sum+len>=length) socket.markNextPacket();
 					socket.updateTimestamp(ts);
-					
+
 					// AU-headers-length field: contains the size in bits of a AU-header
 					// 13+3 = 16 bits -> 13bits for AU-size and 3bits for AU-Index / AU-Index-delta 
 					// 13 bits will be enough because ADTS uses 13 bits for frame length
@@ -114,13 +121,12 @@ public class AACLATMPacketizer extends AbstractPacketizer implements Runnable {
 					// AU-Index
 					buffer[rtphl+3] &= 0xF8;
 					buffer[rtphl+3] |= 0x00;
-					
-					send(rtphl+length+4);
-					
-				} else {
-					socket.commitBuffer();
-				}		
-				
+
+					send(rtphl+len+4);
+				}
+
+				source.releaseFrame();
+
 			}
 		} catch (IOException e) {
 		} catch (ArrayIndexOutOfBoundsException e) {
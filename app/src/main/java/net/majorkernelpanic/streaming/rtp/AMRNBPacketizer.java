@@ -48,6 +48,7 @@ public class AMRNBPacketizer extends AbstractPacketizer implements Runnable {
 	public AMRNBPacketizer() {
 		super();
 		socket.setClockFrequency(samplingRate);
+		socket.setRetransmissionMode(RtpSocket.RETRANSMIT_OFF);
 	}
 
 	public void start() {
@@ -37,11 +37,12 @@ abstract public class AbstractPacketizer {
 
 	protected static final int rtphl = RtpSocket.RTP_HEADER_LENGTH;
 	
-	// Maximum size of RTP packets
+	// Maximum size of RTP packets over UDP, see RtpSocket.getMaxPacketSize()
 	protected final static int MAXPACKETSIZE = RtpSocket.MTU-28;
 
 	protected RtpSocket socket = null;
 	protected InputStream is = null;
+	protected FrameSource source = null;
 	protected byte[] buffer;
 	
 	protected long ts = 0;
@@ -65,8 +66,21 @@ abstract public class AbstractPacketizer {
 		return socket.getSSRC();
 	}
 
+	/** 
+	 * The packetizers fed by a MediaCodec should rather be given its output with {@link #setFrameSource(FrameSource)}.
+	 */
 	public void setInputStream(InputStream is) {
 		this.is = is;
+		this.source = is instanceof MediaCodecInputStream ? ((MediaCodecInputStream)is).getFrameSource() : null;
+	}
+
+	/** 
+	 * Feeds the packetizer with encoded frames. The packetizers that only know how to 
+	 * read an InputStream read them through a {@link MediaCodecInputStream}.
+	 */
+	public void setFrameSource(FrameSource source) {
+		this.is = new MediaCodecInputStream(source);
+		this.source = source;
 	}
 	
 	public void setTimeToLive(int ttl) throws IOException {
@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.util.concurrent.TimeUnit;
+
+import net.majorkernelpanic.streaming.rtcp.ReceiverStats;
+
+/**
+ * Adapts the bitrate of an encoder to what the network can carry.
+ * 
+ * Delay and loss are combined. A delay that keeps growing above its recent minimum means 
+ * that the stream is sent faster than the path drains it: the queue delay of the {@link RtpSocket} 
+ * when the bottleneck is the local link, the round-trip time reported by the receivers when it 
+ * is further away. Packets dropped by the socket and an interleaved destination whose queue fills 
+ * up mean the same. The bitrate then goes down below what is actually sent. The fraction lost 
+ * reported by the receivers cuts the bitrate when above {@link #LOSS_HIGH}, and a REMB estimate 
+ * caps it. When nothing is wrong, the bitrate grows by {@link #INCREASE} per second.
+ * 
+ * The encoder is only told about changes larger than {@link #HYSTERESIS}, and about 
+ * increases at most once per {@link #APPLY_INTERVAL}: each change costs the encoder 
+ * a few frames of bad rate control.
+ * 
+ * {@link #update(long, long, long, boolean, float, long, long)} only depends on its arguments, 
+ * {@link #start(RtpSocket, Callback)} calls it every {@link #INTERVAL} with what the socket measures.
+ */
+public class BitrateController implements Runnable {
+
+	public final static String TAG = "BitrateController";
+
+	/** How often the signals of the socket are sampled. */
+	public static final long INTERVAL = TimeUnit.MILLISECONDS.toNanos(250);
+
+	/** A loss fraction above that decreases the bitrate, below {@link #LOSS_LOW} it may increase. */
+	public static final float LOSS_HIGH = 0.10f, LOSS_LOW = 0.02f;
+
+	/** The queue delay or round-trip time above its recent minimum that means the path is congested. */
+	public static final long DELAY_THRESHOLD = TimeUnit.MILLISECONDS.toNanos(60);
+
+	/** Growth of the bitrate per second when nothing is wrong. */
+	public static final float INCREASE = 0.08f;
+
+	/** The bitrate becomes that much of what is sent when the path is congested. */
+	public static final float DECREASE = 0.85f;
+
+	/** Relative change below which the encoder is not told. */
+	public static final float HYSTERESIS = 0.05f;
+
+	/** The encoder is told about increases at most that often. */
+	public static final long APPLY_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+	// After a decrease, the next one waits for the previous to take effect, increases wait longer
+	private static final long DECREASE_INTERVAL = TimeUnit.MILLISECONDS.toNanos(500);
+	private static final long HOLD = TimeUnit.SECONDS.toNanos(2);
+	// How fast the minimum delays forget an old low, in ns per s
+	private static final long BASELINE_DRIFT = TimeUnit.MILLISECONDS.toNanos(10);
+	// The bitrate does not grow further above that multiple of what is actually sent
+	private static final float HEADROOM = 1.5f;
+	// More packets waiting in an interleaved destination means that the connection is congested
+	private static final int BACKLOG = 64;
+
+	public interface Callback {
+		/** Called by the thread of the controller with the bitrate the encoder should use, in bits per second. */
+		void onBitrateChanged(int bitrate);
+	}
+
+	private final int mMin, mMax;
+	private double mTarget;
+	private volatile int mBitrate;
+	private long mLast = 0, mLastDecrease = 0, mLastApplied = 0;
+	private double mDelay = -1, mPreviousDelay = 0, mBaseline = 0;
+	private long mRtt = -1, mRttBaseline = 0, mLastRtt = 0;
+
+	// Used by the thread of the controller
+	private Thread mThread = null;
+	private RtpSocket mSocket;
+	private Callback mCallback;
+	private long mLastReport = 0, mDropped = 0;
+
+	/**
+	 * @param bitrate The bitrate the encoder starts with, in bits per second
+	 * @param min The lowest bitrate the encoder may be given
+	 * @param max The highest bitrate the encoder may be given
+	 */
+	public BitrateController(int bitrate, int min, int max) {
+		mMin = Math.min(min, max);
+		mMax = max;
+		mBitrate = Math.max(mMin, Math.min(mMax, bitrate));
+		mTarget = mBitrate;
+	}
+
+	/** Returns the bitrate the encoder was last told to use. */
+	public int getBitrate() {
+		return mBitrate;
+	}
+
+	/** Returns the bitrate the controller aims at, the encoder may not have been told yet. */
+	public synchronized int getTarget() {
+		return (int) mTarget;
+	}
+
+	/**
+	 * Takes a sample of the signals, and returns the bitrate the encoder should use.
+	 * @param now The current value of {@link System#nanoTime()}
+	 * @param sendRate The bitrate actually sent, in bits per second, 0 if not known yet
+	 * @param queueDelay The time packets wait before being sent, in ns
+	 * @param congested True if packets were dropped before being sent since the last sample
+	 * @param loss The fraction lost in a receiver report that came since the last sample, -1 if none came
+	 * @param rtt The round-trip time in a receiver report that came since the last sample in ns, -1 if none came
+	 * @param estimate The bitrate estimated by the receiver (REMB), 0 if none
+	 * @return The bitrate in bits per second
+	 */
+	public synchronized int update(long now, long sendRate, long queueDelay, boolean congested, float loss, long rtt, long estimate) {
+		long elapsed = mLast != 0 ? now-mLast : 0;
+		mLast = now;
+
+		// The queue delay is smoothed, and compared to its recent minimum: the cache and the pacer add a constant delay
+		if (mDelay<0) {
+			mDelay = mPreviousDelay = mBaseline = queueDelay;
+		} else {
+			mPreviousDelay = mDelay;
+			mDelay += (queueDelay-mDelay)/4;
+			mBaseline = Math.min(mDelay, mBaseline+elapsed*BASELINE_DRIFT/1e9);
+		}
+		boolean overuse = congested || (mDelay-mBaseline>DELAY_THRESHOLD && mDelay>=mPreviousDelay);
+
+		// Round-trip times come with the receiver reports, every few seconds
+		if (rtt>=0) {
+			if (mRtt<0) {
+				mRttBaseline = rtt;
+			} else {
+				mRttBaseline = Math.min(rtt, mRttBaseline+(now-mLastRtt)*BASELINE_DRIFT/1000000000L);
+				if (rtt-mRttBaseline>DELAY_THRESHOLD && rtt>=mRtt) overuse = true;
+			}
+			mRtt = rtt;
+			mLastRtt = now;
+		}
+
+		if (overuse || loss>LOSS_HIGH) {
+			if (now-mLastDecrease>=DECREASE_INTERVAL || mLastDecrease == 0) {
+				double target = mTarget;
+				if (loss>LOSS_HIGH) target = Math.min(target, mTarget*(1-0.5*loss));
+				if (overuse) target = Math.min(target, sendRate>0 ? Math.min(mTarget, sendRate)*DECREASE : mTarget*DECREASE);
+				mTarget = target;
+				mLastDecrease = now;
+			}
+		} else if (loss<LOSS_LOW) {
+			// Does not grow away from an encoder that does not use what it is given
+			boolean headroom = sendRate<=0 || mTarget<sendRate*HEADROOM;
+			if (headroom && (mLastDecrease == 0 || now-mLastDecrease>=HOLD)) {
+				mTarget *= 1+INCREASE*elapsed/1e9;
+			}
+		}
+		if (estimate>0) mTarget = Math.min(mTarget, estimate);
+		mTarget = Math.max(mMin, Math.min(mMax, mTarget));
+
+		int target = (int) mTarget;
+		int bitrate = mBitrate;
+		if (target<bitrate) {
+			if (bitrate-target>HYSTERESIS*bitrate || target == mMin) bitrate = target;
+		} else if (target>bitrate) {
+			if ((target-bitrate>HYSTERESIS*bitrate || target == mMax) && now-mLastApplied>=APPLY_INTERVAL) bitrate = target;
+		}
+		if (bitrate != mBitrate) {
+			mBitrate = bitrate;
+			mLastApplied = now;
+		}
+		return bitrate;
+	}
+
+	/** 
+	 * Starts a thread that samples the signals of the socket and of its receivers every {@link #INTERVAL}, 
+	 * the callback is told when the bitrate of the encoder must change.
+	 */
+	public synchronized void start(RtpSocket socket, Callback callback) {
+		if (mThread != null) return;
+		mSocket = socket;
+		mCallback = callback;
+		mDropped = socket.getDroppedPackets();
+		mThread = new Thread(this, TAG);
+		mThread.start();
+	}
+
+	public void stop() {
+		Thread thread;
+		synchronized (this) {
+			thread = mThread;
+			mThread = null;
+		}
+		if (thread != null) {
+			thread.interrupt();
+			try {
+				thread.join();
+			} catch (InterruptedException ignore) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		int bitrate = mBitrate;
+		try {
+			while (!Thread.interrupted()) {
+				Thread.sleep(INTERVAL/1000000);
+				int next = sample(System.nanoTime());
+				if (next != bitrate) {
+					bitrate = next;
+					mCallback.onBitrateChanged(bitrate);
+				}
+			}
+		} catch (InterruptedException ignore) {}
+	}
+
+	/** Reads what the socket measures and what its receivers reported since the last sample. */
+	private int sample(long now) {
+		RtpSocket socket = mSocket;
+
+		// Packets dropped by the socket, or waiting for a congested RTSP connection
+		long dropped = socket.getDroppedPackets();
+		boolean congested = dropped>mDropped;
+		mDropped = dropped;
+		RtpDestination interleaved = socket.getInterleavedDestination();
+		if (interleaved != null && interleaved.getQueueDepth()>BACKLOG) congested = true;
+
+		// The worst receiver decides, only reports that came since the last sample count
+		float loss = -1;
+		long rtt = -1, estimate = 0, lastReport = mLastReport;
+		for (ReceiverStats receiver : socket.getReceiverStats()) {
+			if (receiver.hasLeft()) continue;
+			long report = receiver.getLastReportTime();
+			if (report>mLastReport) {
+				loss = Math.max(loss, receiver.getFractionLost());
+				rtt = Math.max(rtt, receiver.getRoundTripTime());
+				lastReport = Math.max(lastReport, report);
+			}
+			long remb = receiver.getEstimatedBitrate();
+			if (remb>0) estimate = estimate>0 ? Math.min(estimate, remb) : remb;
+		}
+		mLastReport = lastReport;
+
+		return update(now, socket.getBitrate(), socket.getQueueDelay(), congested, loss, rtt, estimate);
+	}
+
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An access unit of the encoder, published once by an {@link EncodedFrameHub} and shared 
+ * by all its {@link FrameSink}s: the packetizer of each client, a recorder, a GOP cache... 
+ * A sink that keeps the frame after {@link FrameSink#onFrame(EncodedFrame)} returns must 
+ * {@link #retain()} it, and {@link #release()} it once done. The frame goes back to its 
+ * {@link EncodedFramePool} when the last reference is dropped, so it must not be used after that.
+ */
+public final class EncodedFrame {
+
+	/** Same value as MediaCodec.BUFFER_FLAG_KEY_FRAME (BUFFER_FLAG_SYNC_FRAME before API 21). */
+	public static final int FLAG_KEY_FRAME = 1;
+
+	/** Same value as MediaCodec.BUFFER_FLAG_CODEC_CONFIG. */
+	public static final int FLAG_CODEC_CONFIG = 2;
+
+	private final EncodedFramePool mPool;
+	private final AtomicInteger mRefCount = new AtomicInteger();
+
+	byte[] data;
+	int length;
+	long presentationTimeUs;
+	int flags;
+
+	// Offsets and lengths of the NAL units, start codes excluded
+	int[] units = new int[16];
+	int unitCount;
+
+	// Set by the pool when it looks for leaks
+	EncodedFramePool.Leak leak;
+
+	EncodedFrame(EncodedFramePool pool, int capacity) {
+		mPool = pool;
+		data = new byte[capacity];
+	}
+
+	/** The payload of the frame is in this array, from 0 to {@link #getLength()}. */
+	public byte[] getData() {
+		return data;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	public long getPresentationTimeUs() {
+		return presentationTimeUs;
+	}
+
+	/** Returns the flags of the frame, the BUFFER_FLAG_* of {@link android.media.MediaCodec}. */
+	public int getFlags() {
+		return flags;
+	}
+
+	public boolean isKeyFrame() {
+		return (flags&FLAG_KEY_FRAME)!=0;
+	}
+
+	public boolean isCodecConfig() {
+		return (flags&FLAG_CODEC_CONFIG)!=0;
+	}
+
+	/** Number of NAL units in the frame, 0 if it was not indexed. */
+	public int getUnitCount() {
+		return unitCount;
+	}
+
+	/** Offset in {@link #getData()} of the i-th NAL unit, after its start code. */
+	public int getUnitOffset(int i) {
+		return units[2*i];
+	}
+
+	public int getUnitLength(int i) {
+		return units[2*i+1];
+	}
+
+	/** Adds a reference to the frame. */
+	public EncodedFrame retain() {
+		for (;;) {
+			int count = mRefCount.get();
+			if (count<=0) throw new IllegalStateException("The frame was already released");
+			if (mRefCount.compareAndSet(count, count+1)) return this;
+		}
+	}
+
+	/** Drops a reference to the frame, it goes back to the pool with the last one. */
+	public void release() {
+		int count = mRefCount.decrementAndGet();
+		if (count==0) {
+			mPool.recycle(this);
+		} else if (count<0) {
+			mRefCount.incrementAndGet();
+			throw new IllegalStateException("The frame was already released");
+		}
+	}
+
+	/** Returns the number of references to the frame. */
+	public int refCount() {
+		return mRefCount.get();
+	}
+
+	/** Called by the pool before handing out the frame. */
+	void reset(int capacity) {
+		if (data.length<capacity) data = new byte[capacity];
+		length = 0;
+		presentationTimeUs = 0;
+		flags = 0;
+		unitCount = 0;
+		mRefCount.set(1);
+	}
+
+	/** 
+	 * Looks for the NAL units of an Annex B stream (H.264 or H.265) in the frame. 
+	 * Without any start code, the whole frame makes one unit.
+	 */
+	void indexUnits() {
+		unitCount = 0;
+		int start = -1, i = 0;
+		while (i+2<length) {
+			if ((data[i+2]&0xFF)>1) {
+				i += 3;
+			} else if (data[i]==0 && data[i+1]==0 && data[i+2]==1) {
+				if (start>=0) addUnit(start, i);
+				start = i+3;
+				i += 3;
+			} else {
+				i++;
+			}
+		}
+		if (start<0) {
+			addUnit(0, length);
+		} else if (start<length) {
+			addUnit(start, length);
+		}
+	}
+
+	private void addUnit(int start, int end) {
+		// The zero of a four bytes start code belongs to the next one
+		while (end>start && data[end-1]==0) end--;
+		if (end==start) return;
+		if (2*unitCount+2>units.length) {
+			int[] tmp = new int[2*units.length];
+			System.arraycopy(units, 0, tmp, 0, units.length);
+			units = tmp;
+		}
+		units[2*unitCount] = start;
+		units[2*unitCount+1] = end-start;
+		unitCount++;
+	}
+
+}
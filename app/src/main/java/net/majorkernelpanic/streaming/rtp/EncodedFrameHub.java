@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import android.util.Log;
+
+/**
+ * Reads the frames of an encoder and publishes each of them once, as an {@link EncodedFrame}, 
+ * to any number of {@link FrameSink}s: the packetizers (through a {@link FrameQueue}), 
+ * a recorder, a GOP cache, some statistics... 
+ * The payload is copied once out of the buffer of the encoder, which is released right away, 
+ * then all the sinks share the same frame.
+ */
+public class EncodedFrameHub implements Runnable {
+
+	public final static String TAG = "EncodedFrameHub";
+
+	private final FrameSource mSource;
+	private final boolean mAnnexB;
+	private final CopyOnWriteArrayList<FrameSink> mSinks = new CopyOnWriteArrayList<FrameSink>();
+	private final EncodedFramePool mPool = EncodedFramePool.getInstance();
+	private Thread mThread = null;
+	private long mFrames = 0;
+
+	/**
+	 * @param source The output of the encoder
+	 * @param annexB True if the frames are made of NAL units with start codes (H.264, H.265), 
+	 * they are then indexed in the {@link EncodedFrame}s
+	 */
+	public EncodedFrameHub(FrameSource source, boolean annexB) {
+		mSource = source;
+		mAnnexB = annexB;
+	}
+
+	/** Sinks can be added while the hub is running, they get the frames that follow. */
+	public void addSink(FrameSink sink) {
+		mSinks.addIfAbsent(sink);
+	}
+
+	public void removeSink(FrameSink sink) {
+		mSinks.remove(sink);
+	}
+
+	public synchronized void start() {
+		if (mThread==null) {
+			mThread = new Thread(this, TAG);
+			mThread.start();
+		}
+	}
+
+	/** Closes the source and waits for the thread of the hub. */
+	public synchronized void stop() {
+		if (mThread!=null) {
+			mSource.close();
+			mThread.interrupt();
+			try {
+				mThread.join();
+			} catch (InterruptedException e) {}
+			mThread = null;
+		}
+	}
+
+	/** Returns the number of frames published so far. */
+	public long getFrameCount() {
+		return mFrames;
+	}
+
+	public void run() {
+		try {
+			while (!Thread.interrupted()) {
+				ByteBuffer buffer = mSource.nextFrame();
+				EncodedFrame frame = mPool.obtain(buffer.remaining());
+				try {
+					frame.length = buffer.remaining();
+					buffer.get(frame.data, 0, frame.length);
+					frame.presentationTimeUs = mSource.getPresentationTimeUs();
+					frame.flags = mSource.getFlags();
+					mSource.releaseFrame();
+					if (mAnnexB) frame.indexUnits();
+					publish(frame);
+				} finally {
+					frame.release();
+				}
+				mFrames++;
+			}
+		} catch (IOException e) {
+			// The source was closed
+		}
+		Log.d(TAG,"Hub stopped after "+mFrames+" frames");
+	}
+
+	private void publish(EncodedFrame frame) {
+		for (FrameSink sink : mSinks) {
+			try {
+				sink.onFrame(frame);
+			} catch (RuntimeException e) {
+				Log.e(TAG,"Sink "+sink+" failed",e);
+			}
+		}
+	}
+
+}
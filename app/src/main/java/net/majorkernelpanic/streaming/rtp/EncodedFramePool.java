@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import net.majorkernelpanic.streaming.BuildConfig;
+import android.util.Log;
+
+/**
+ * Process-wide pool of {@link EncodedFrame}s, the payload arrays stay with the frames and 
+ * only grow, so once the stream is running a frame is published without any allocation.
+ * Like {@link PacketBufferPool}, nothing is allocated up front and at most 
+ * {@link #setMaxFree(int)} bytes of free frames are kept around.
+ * 
+ * In debug builds (or after {@link #setLeakDetection(boolean)}), the pool remembers where 
+ * each frame was obtained and logs it if the frame is garbage collected without having been 
+ * released: a sink forgot to call {@link EncodedFrame#release()}.
+ */
+public class EncodedFramePool {
+
+	public final static String TAG = "EncodedFramePool";
+
+	private static final EncodedFramePool sInstance = new EncodedFramePool();
+
+	private EncodedFrame[] mFree = new EncodedFrame[16];
+	private int mTop = 0, mInUse = 0, mHighWater = 0;
+	private long mFreeBytes = 0, mAllocated = 0, mLeaks = 0;
+	private volatile int mMaxFree = 4*1024*1024;
+
+	private volatile boolean mLeakDetection = BuildConfig.DEBUG;
+	private final ReferenceQueue<EncodedFrame> mReferenceQueue = new ReferenceQueue<EncodedFrame>();
+	private final Set<Leak> mTracked = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<Leak, Boolean>()));
+
+	/** Remembers where a frame was obtained, enqueued if the frame is collected before being released. */
+	static class Leak extends WeakReference<EncodedFrame> {
+		private final Throwable mOrigin;
+		private Leak(EncodedFrame frame, ReferenceQueue<EncodedFrame> queue) {
+			super(frame, queue);
+			mOrigin = new Throwable("EncodedFrame obtained here was never released");
+		}
+	}
+
+	/** Returns the pool shared by the whole process. */
+	public static EncodedFramePool getInstance() {
+		return sInstance;
+	}
+
+	/** Sets how many bytes of free frames the pool keeps around, 4 MB by default. */
+	public void setMaxFree(int bytes) {
+		mMaxFree = bytes;
+	}
+
+	/** Enables or disables leak detection, enabled by default in debug builds only. */
+	public void setLeakDetection(boolean enabled) {
+		mLeakDetection = enabled;
+	}
+
+	/**
+	 * Returns a frame that can hold <code>capacity</code> bytes, with one reference owned by the caller.
+	 * Its content is undefined.
+	 */
+	public EncodedFrame obtain(int capacity) {
+		EncodedFrame frame = null;
+		synchronized (this) {
+			if (++mInUse>mHighWater) mHighWater = mInUse;
+			if (mTop>0) {
+				frame = mFree[--mTop];
+				mFree[mTop] = null;
+				mFreeBytes -= frame.data.length;
+			} else {
+				mAllocated++;
+			}
+		}
+		if (frame==null) frame = new EncodedFrame(this, Math.max(capacity, 1024));
+		frame.reset(capacity);
+		if (mLeakDetection) {
+			reportLeaks();
+			frame.leak = new Leak(frame, mReferenceQueue);
+			mTracked.add(frame.leak);
+		}
+		return frame;
+	}
+
+	/** Called by {@link EncodedFrame#release()} with the last reference. */
+	void recycle(EncodedFrame frame) {
+		if (frame.leak!=null) {
+			frame.leak.clear();
+			mTracked.remove(frame.leak);
+			frame.leak = null;
+		}
+		synchronized (this) {
+			mInUse--;
+			if (mFreeBytes+frame.data.length>mMaxFree) return;
+			if (mTop==mFree.length) {
+				EncodedFrame[] free = new EncodedFrame[2*mFree.length];
+				System.arraycopy(mFree, 0, free, 0, mTop);
+				mFree = free;
+			}
+			mFree[mTop++] = frame;
+			mFreeBytes += frame.data.length;
+		}
+	}
+
+	/** Logs the frames that were collected without being released. */
+	private void reportLeaks() {
+		Leak leak;
+		while ((leak = (Leak) mReferenceQueue.poll())!=null) {
+			if (!mTracked.remove(leak)) continue;
+			synchronized (this) {
+				mInUse--;
+				mLeaks++;
+			}
+			Log.e(TAG, "Leak detected", leak.mOrigin);
+		}
+	}
+
+	/** Returns the number of frames obtained and not released yet. */
+	public synchronized int getFramesInUse() {
+		return mInUse;
+	}
+
+	/** Returns the number of leaks found so far, always 0 without leak detection. */
+	public synchronized long getLeaks() {
+		return mLeaks;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "frames in use "+mInUse+", high-water "+mHighWater+", free "+mTop+" ("+mFreeBytes
+				+" B), allocated "+mAllocated+", leaks "+mLeaks;
+	}
+
+}
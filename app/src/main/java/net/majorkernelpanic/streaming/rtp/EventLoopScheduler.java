@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import android.util.Log;
+
+/**
+ * A {@link TransmitScheduler} that sends the packets of any number of {@link RtpSocket}s 
+ * with a small fixed number of threads, so that the number of threads does not grow with 
+ * the number of sessions. 
+ * 
+ * Each thread runs a loop around a {@link Selector}: the packet with the earliest deadline 
+ * among the sockets it serves is sent first, one packet at a time, so that a stream with 
+ * a lot of packets waiting (a key frame for instance) cannot delay the others for long.
+ * The {@link UdpChannel}s of the sockets are put in non-blocking mode, a socket whose 
+ * channel is full is put aside until the selector reports that the channel is writable.
+ * When TCP is used, packets are still written with a blocking OutputStream.
+ */
+public class EventLoopScheduler implements TransmitScheduler {
+
+	public final static String TAG = "EventLoopScheduler";
+
+	/** A packet is sent if its deadline is less than that in the future (in ns). */
+	private final static long SLACK = 500000L;
+
+	/** How long a socket whose channel is full waits at most before trying again (in ms). */
+	private final static long RETRY_DELAY = 10;
+
+	private final Loop[] mLoops;
+	private final ConcurrentHashMap<RtpSocket,Loop> mSockets = new ConcurrentHashMap<RtpSocket,Loop>();
+
+	/** Creates a scheduler with one thread. */
+	public EventLoopScheduler() {
+		this(1);
+	}
+
+	/**
+	 * Creates a scheduler with a fixed number of threads, 
+	 * sockets are spread over the threads as they register.
+	 * @param threads The number of threads
+	 */
+	public EventLoopScheduler(int threads) {
+		mLoops = new Loop[threads];
+		for (int i=0;i<threads;i++) {
+			mLoops[i] = new Loop(i);
+		}
+	}
+
+	@Override
+	public synchronized void register(RtpSocket socket) {
+		if (mSockets.containsKey(socket)) return;
+		Loop loop = mLoops[0];
+		for (int i=1;i<mLoops.length;i++) {
+			if (mLoops[i].mSockets.length<loop.mSockets.length) loop = mLoops[i];
+		}
+		loop.add(socket);
+		mSockets.put(socket, loop);
+	}
+
+	@Override
+	public synchronized void unregister(RtpSocket socket) {
+		Loop loop = mSockets.remove(socket);
+		if (loop != null) loop.remove(socket);
+	}
+
+	@Override
+	public void signal(RtpSocket socket) {
+		Loop loop = mSockets.get(socket);
+		if (loop != null && loop.mSleeping) loop.mSelector.wakeup();
+	}
+
+	/** Stops the threads of the scheduler, it can not be used anymore afterwards. */
+	public synchronized void shutdown() {
+		for (Loop loop : mLoops) {
+			loop.interrupt();
+			try {
+				loop.mSelector.close();
+			} catch (IOException ignore) {}
+		}
+		mSockets.clear();
+	}
+
+	private static class Loop extends Thread {
+
+		private final Selector mSelector;
+		private volatile RtpSocket[] mSockets = new RtpSocket[0];
+		private volatile boolean mSleeping = false;
+
+		// Only used by the thread of the loop
+		private final HashSet<RtpSocket> mBlocked = new HashSet<RtpSocket>();
+
+		public Loop(int id) {
+			super(TAG+"-"+id);
+			try {
+				mSelector = Selector.open();
+			} catch (IOException e) {
+				throw new RuntimeException(e.getMessage());
+			}
+			setDaemon(true);
+			start();
+		}
+
+		public synchronized void add(RtpSocket socket) {
+			RtpSocket[] sockets = new RtpSocket[mSockets.length+1];
+			System.arraycopy(mSockets, 0, sockets, 0, mSockets.length);
+			sockets[mSockets.length] = socket;
+			mSockets = sockets;
+			mSelector.wakeup();
+		}
+
+		public synchronized void remove(RtpSocket socket) {
+			RtpSocket[] sockets = new RtpSocket[mSockets.length-1];
+			for (int i=0,j=0;i<mSockets.length;i++) {
+				if (mSockets[i] != socket) sockets[j++] = mSockets[i];
+			}
+			mSockets = sockets;
+			mSelector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			while (!isInterrupted()) {
+				try {
+					RtpSocket[] sockets = mSockets;
+					long now = System.nanoTime();
+
+					// Earliest deadline first
+					RtpSocket next = null;
+					long min = Long.MAX_VALUE;
+					for (RtpSocket socket : sockets) {
+						if (mBlocked.contains(socket)) continue;
+						long deadline;
+						try {
+							deadline = socket.deadline(now);
+						} catch (IOException e) {
+							Log.e(TAG, e.getMessage()!=null?e.getMessage():"Unknown error");
+							continue;
+						}
+						if (deadline<min) {
+							min = deadline;
+							next = socket;
+						}
+					}
+
+					if (next != null && min-now<=SLACK) {
+						send(next);
+						continue;
+					}
+
+					// The producers only wake the selector up when mSleeping is set, 
+					// so the FIFOs must be checked again once it is
+					mSleeping = true;
+					boolean ready = false;
+					for (RtpSocket socket : sockets) {
+						if (!mBlocked.contains(socket) && socket.ready()) {
+							ready = true;
+							break;
+						}
+					}
+					if (!ready) {
+						long timeout = min==Long.MAX_VALUE ? 0 : Math.max(1,(min-now)/1000000L);
+						if (!mBlocked.isEmpty() && (timeout==0 || timeout>RETRY_DELAY)) timeout = RETRY_DELAY;
+						mSelector.select(timeout);
+					}
+					mSleeping = false;
+
+					// Whatever woke us up, the sockets put aside get another chance
+					for (SelectionKey key : mSelector.selectedKeys()) {
+						if (key.isValid()) key.interestOps(0);
+					}
+					mSelector.selectedKeys().clear();
+					mBlocked.clear();
+				} catch (IOException e) {
+					Log.e(TAG, e.getMessage()!=null?e.getMessage():"Unknown error");
+				} catch (ClosedSelectorException e) {
+					// shutdown() was called
+					break;
+				}
+			}
+			mSleeping = false;
+		}
+
+		private void send(RtpSocket socket) {
+			UdpChannel channel = socket.getUdpChannel();
+			try {
+				if (channel != null && channel.getChannel().isBlocking()) {
+					channel.getChannel().configureBlocking(false);
+				}
+				if (!socket.transmitPending()) {
+					// The send buffer of the channel is full
+					mBlocked.add(socket);
+					DatagramChannel c = channel.getChannel();
+					SelectionKey key = c.keyFor(mSelector);
+					if (key == null || !key.isValid()) {
+						c.register(mSelector, SelectionKey.OP_WRITE);
+					} else {
+						key.interestOps(SelectionKey.OP_WRITE);
+					}
+				}
+			} catch (CancelledKeyException e) {
+				// The key is removed from the selector at the next select, we will try again then
+			} catch (IOException e) {
+				Log.e(TAG, e.getMessage()!=null?e.getMessage():"Unknown error");
+			}
+		}
+
+	}
+
+}
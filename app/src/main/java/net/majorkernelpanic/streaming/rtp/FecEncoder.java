@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.util.Arrays;
+
+/**
+ * Computes the XOR parity packets of RFC 5109 (ULPFEC) over groups of consecutive packets 
+ * of an {@link RtpSocket}, see {@link RtpSocket#setFecGroupSize(int)}. 
+ * 
+ * The parity packets form a stream of their own, with the payload type {@link RtpSocket#FEC_PAYLOAD_TYPE} 
+ * and an SSRC of their own. Each one carries a level 0 protection of a group: any single packet lost 
+ * in the group can be rebuilt by the receiver from the others. A group ends after <code>size</code> 
+ * packets, or with the last packet of a frame once it has half of them, so that the frame can be 
+ * repaired without waiting for the next one.
+ * 
+ * The parity is computed in place in the buffer of the parity packet, nothing is allocated 
+ * once the buffer is large enough for the packets of the stream. Only used by the thread 
+ * that sends the packets of the socket.
+ */
+class FecEncoder {
+
+	/** The FEC header and the level 0 header with a 16 bits mask (RFC 5109 section 7). */
+	public static final int HEADER_LENGTH = RtpSocket.RTP_HEADER_LENGTH+10+4;
+
+	/** At most that many packets are protected by a parity packet, the mask has 16 bits. */
+	public static final int MAX_GROUP_SIZE = 16;
+
+	private final int mSsrc;
+	private int mSeq;
+	private byte[] mPacket = new byte[RtpSocket.MTU+HEADER_LENGTH];
+	// What the packets of the group have in common, XORed
+	private int mCount = 0, mBase, mMask, mHeader, mLength, mProtected;
+	private long mTimestamp, mLastTimestamp;
+
+	public FecEncoder(int ssrc, int seq) {
+		mSsrc = ssrc;
+		mSeq = seq;
+	}
+
+	/**
+	 * Adds a packet that has just been sent to the group.
+	 * @param packet The RTP packet
+	 * @param length The length of the packet
+	 * @param size The number of packets in a group, between 2 and {@link #MAX_GROUP_SIZE}
+	 * @return The length of the parity packet if the group is complete, 0 otherwise, see {@link #getPacket()}
+	 */
+	public int add(byte[] packet, int length, int size) {
+		int seq = (packet[2]&0xFF)<<8 | (packet[3]&0xFF);
+		int payload = length-RtpSocket.RTP_HEADER_LENGTH;
+		// Dropped packets leave holes in the sequence, the mask only covers 16 of them
+		if (mCount>0 && ((seq-mBase)&0xFFFF)>=MAX_GROUP_SIZE) mCount = 0;
+		if (payload>mPacket.length-HEADER_LENGTH) {
+			byte[] buffer = new byte[payload+HEADER_LENGTH];
+			if (mCount>0) System.arraycopy(mPacket, HEADER_LENGTH, buffer, HEADER_LENGTH, mProtected);
+			mPacket = buffer;
+		}
+		long timestamp = (packet[4]&0xFFL)<<24 | (packet[5]&0xFF)<<16 | (packet[6]&0xFF)<<8 | (packet[7]&0xFF);
+		if (mCount == 0) {
+			mBase = seq;
+			mMask = 0;
+			mHeader = (packet[0]&0xFF)<<8 | (packet[1]&0xFF);
+			mTimestamp = timestamp;
+			mLength = payload;
+			System.arraycopy(packet, RtpSocket.RTP_HEADER_LENGTH, mPacket, HEADER_LENGTH, payload);
+			mProtected = payload;
+		} else {
+			mHeader ^= (packet[0]&0xFF)<<8 | (packet[1]&0xFF);
+			mTimestamp ^= timestamp;
+			mLength ^= payload;
+			if (payload>mProtected) {
+				// Shorter packets are padded with zeros
+				Arrays.fill(mPacket, HEADER_LENGTH+mProtected, HEADER_LENGTH+payload, (byte) 0);
+				mProtected = payload;
+			}
+			xor(packet, RtpSocket.RTP_HEADER_LENGTH, mPacket, HEADER_LENGTH, payload);
+		}
+		mMask |= 0x8000>>>((seq-mBase)&0xFFFF);
+		mLastTimestamp = timestamp;
+		mCount++;
+		boolean end = (packet[1]&0x80) != 0;
+		if (mCount<Math.min(size, MAX_GROUP_SIZE) && !(end && 2*mCount>=size)) return 0;
+		mCount = 0;
+		return finish();
+	}
+
+	/** Returns the buffer of the parity packet, valid until the next call to {@link #add(byte[], int, int)}. */
+	public byte[] getPacket() {
+		return mPacket;
+	}
+
+	/** Forgets the packets of the current group. */
+	public void reset() {
+		mCount = 0;
+	}
+
+	/** Writes the headers of the parity packet. */
+	private int finish() {
+		byte[] p = mPacket;
+		// RTP header
+		p[0] = (byte) 0x80;
+		p[1] = (byte) RtpSocket.FEC_PAYLOAD_TYPE;
+		mSeq = (mSeq+1)&0xFFFF;
+		setInt(p, mSeq, 2, 2);
+		setInt(p, mLastTimestamp, 4, 4);
+		setInt(p, mSsrc, 8, 4);
+		// FEC header: E=0, L=0, then the recovery fields
+		int i = RtpSocket.RTP_HEADER_LENGTH;
+		p[i] = (byte) ((mHeader>>8)&0x3F);
+		p[i+1] = (byte) mHeader;
+		setInt(p, mBase, i+2, 2);
+		setInt(p, mTimestamp, i+4, 4);
+		setInt(p, mLength, i+8, 2);
+		// Level 0 header
+		setInt(p, mProtected, i+10, 2);
+		setInt(p, mMask, i+12, 2);
+		return HEADER_LENGTH+mProtected;
+	}
+
+	/** XORs <code>length</code> bytes of <code>src</code> into <code>dst</code>. */
+	static void xor(byte[] src, int srcOffset, byte[] dst, int dstOffset, int length) {
+		// A plain loop, the compiler unrolls and vectorizes it
+		for (int i=0;i<length;i++) {
+			dst[dstOffset+i] ^= src[srcOffset+i];
+		}
+	}
+
+	private static void setInt(byte[] buffer, long n, int offset, int length) {
+		for (int i=offset+length-1;i>=offset;i--) {
+			buffer[i] = (byte) n;
+			n >>= 8;
+		}
+	}
+
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A {@link FrameSource} fed with frames encoded somewhere else, like a canned stream 
+ * replayed in a test or in a benchmark: it behaves like the output of a MediaCodec 
+ * without needing one.
+ * As a {@link FrameSink}, it lets a packetizer read the frames of an {@link EncodedFrameHub}: 
+ * each frame is retained until the packetizer is done with it, and dropped when the 
+ * queue is full rather than stalling the other sinks of the hub. Key frames and codec 
+ * config buffers are never dropped, and in a video stream the frames that follow a 
+ * drop are discarded until the next key frame, see {@link #setPredictive(boolean)}.
+ */
+public class FrameQueue implements FrameSource, FrameSink {
+
+	/** Told when frames were dropped and the decoder of the receivers needs a key frame. */
+	public interface Callback {
+		/** Called by the thread of the hub, once per drop. */
+		void onKeyFrameNeeded(FrameQueue queue);
+	}
+
+	private static class Frame {
+		ByteBuffer buffer;
+		long presentationTimeUs;
+		int flags;
+		EncodedFrame encoded;
+	}
+
+	// Returned by the queue once it was closed
+	private final static Frame CLOSED = new Frame();
+
+	private final BlockingQueue<Frame> mQueue;
+	private Frame mFrame = null;
+	private volatile boolean mClosed = false;
+	private long mDropped = 0;
+	private boolean mPredictive = false, mWaitingForKeyFrame = false;
+	private Callback mCallback = null;
+
+	/** @param capacity How many frames can wait in the queue before {@link #queueFrame} blocks */
+	public FrameQueue(int capacity) {
+		mQueue = new ArrayBlockingQueue<Frame>(capacity);
+	}
+
+	/**
+	 * Adds a frame to the queue, waits if it is full. 
+	 * The data must not be modified until the packetizer is done with it.
+	 * @param flags The BUFFER_FLAG_* of {@link android.media.MediaCodec}
+	 */
+	public void queueFrame(byte[] data, int offset, int length, long presentationTimeUs, int flags) throws InterruptedException {
+		Frame frame = new Frame();
+		frame.buffer = ByteBuffer.wrap(data, offset, length);
+		frame.presentationTimeUs = presentationTimeUs;
+		frame.flags = flags;
+		mQueue.put(frame);
+	}
+
+	/** 
+	 * Set for video: the frames depend on the previous ones, so once one was dropped the 
+	 * following ones are discarded until the next key frame, and the callback is told. 
+	 * Audio frames can be dropped one by one. 
+	 */
+	public void setPredictive(boolean predictive) {
+		mPredictive = predictive;
+	}
+
+	public void setCallback(Callback callback) {
+		mCallback = callback;
+	}
+
+	/** 
+	 * Retains the frame until the packetizer has sent it, or drops it if the queue is full. 
+	 * A key frame or a codec config buffer that does not fit takes the place of the frames 
+	 * waiting in the queue instead.
+	 */
+	public void onFrame(EncodedFrame encoded) {
+		if (mClosed) return;
+		boolean key = encoded.isKeyFrame(), config = encoded.isCodecConfig();
+		if (mWaitingForKeyFrame) {
+			if (!key && !config) {
+				mDropped++;
+				return;
+			}
+			if (key) mWaitingForKeyFrame = false;
+		}
+		Frame frame = new Frame();
+		frame.buffer = ByteBuffer.wrap(encoded.getData(), 0, encoded.getLength());
+		frame.presentationTimeUs = encoded.getPresentationTimeUs();
+		frame.flags = encoded.getFlags();
+		frame.encoded = encoded.retain();
+		if (!mQueue.offer(frame)) {
+			if (key || config) {
+				// The frames that wait are dropped, a key frame does not need them
+				dropWaitingFrames();
+				if (!mQueue.offer(frame)) {
+					encoded.release();
+					mDropped++;
+					key = false;
+				}
+			} else {
+				encoded.release();
+				mDropped++;
+			}
+			// Unless a key frame follows the frames dropped, the receivers could not decode the next ones
+			if (mPredictive && !key) {
+				if (!mWaitingForKeyFrame) {
+					mWaitingForKeyFrame = true;
+					Callback callback = mCallback;
+					if (callback != null) callback.onKeyFrameNeeded(this);
+				}
+			}
+		}
+		if (mClosed) {
+			// The queue was closed meanwhile
+			drain();
+			mQueue.offer(CLOSED);
+		}
+	}
+
+	/** Drops the frames of the queue, but the codec config buffers. */
+	private void dropWaitingFrames() {
+		ArrayList<Frame> kept = new ArrayList<Frame>();
+		Frame frame;
+		while ((frame = mQueue.poll()) != null) {
+			if (frame == CLOSED || (frame.flags&EncodedFrame.FLAG_CODEC_CONFIG) != 0) {
+				kept.add(frame);
+			} else {
+				if (frame.encoded != null) frame.encoded.release();
+				mDropped++;
+			}
+		}
+		for (Frame f : kept) mQueue.offer(f);
+	}
+
+	/** Returns the number of frames dropped by {@link #onFrame(EncodedFrame)} because the queue was full, or while waiting for a key frame. */
+	public long getDroppedFrames() {
+		return mDropped;
+	}
+
+	public ByteBuffer nextFrame() throws IOException {
+		releaseFrame();
+		try {
+			Frame frame = mQueue.take();
+			if (frame == CLOSED || mClosed) {
+				if (frame.encoded != null) frame.encoded.release();
+				mQueue.offer(CLOSED);
+				throw new IOException("This FrameSource was closed");
+			}
+			mFrame = frame;
+			return frame.buffer;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted");
+		}
+	}
+
+	public long getPresentationTimeUs() {
+		return mFrame != null ? mFrame.presentationTimeUs : 0;
+	}
+
+	public int getFlags() {
+		return mFrame != null ? mFrame.flags : 0;
+	}
+
+	/** 
+	 * Returns the frame of the hub the last buffer wraps, from its first byte, null if it was 
+	 * queued with {@link #queueFrame}. Its NAL units were indexed by the hub of an Annex B stream.
+	 */
+	public EncodedFrame getEncodedFrame() {
+		return mFrame != null ? mFrame.encoded : null;
+	}
+
+	public void releaseFrame() {
+		if (mFrame != null && mFrame.encoded != null) mFrame.encoded.release();
+		mFrame = null;
+	}
+
+	public void close() {
+		mClosed = true;
+		drain();
+		mQueue.offer(CLOSED);
+	}
+
+	/** Releases the frames left in the queue, the CLOSED marker included. */
+	private void drain() {
+		Frame frame;
+		while ((frame = mQueue.poll()) != null) {
+			if (frame.encoded != null) frame.encoded.release();
+		}
+	}
+
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A source of encoded frames (access units) for the packetizers.
+ * The frames are handed over in the buffers of the source, so that their payload is only 
+ * copied once: in the RTP packets. 
+ * The packetizers that read an InputStream get a {@link MediaCodecInputStream} instead.
+ * @see MediaCodecFrameSource
+ * @see FrameQueue
+ */
+public interface FrameSource {
+
+	/**
+	 * Waits for the next frame, the previous one is released if needed.
+	 * @return A buffer holding the frame between its position and its limit. It belongs 
+	 * to the source and can only be used until {@link #releaseFrame()} is called.
+	 * @throws IOException The source was closed 
+	 */
+	public ByteBuffer nextFrame() throws IOException;
+
+	/** Returns the presentation time of the last frame in microseconds. */
+	public long getPresentationTimeUs();
+
+	/** Returns the flags of the last frame, the BUFFER_FLAG_* of {@link android.media.MediaCodec}. */
+	public int getFlags();
+
+	/** Gives the buffer of the last frame back to the source. */
+	public void releaseFrame();
+
+	/** A call to {@link #nextFrame()} will then throw an IOException. */
+	public void close();
+
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.streaming.rtp;
+
+/**
+ * The packets of the current group of pictures of an {@link RtpSocket}, from the last key frame 
+ * (parameter sets included) to the last packet sent, see {@link RtpSocket#setGopCacheEnabled(boolean)}.
+ * 
+ * The cache takes the buffers of the packets over from the socket instead of copying them, 
+ * they go back to the {@link PacketBufferPool} when the next key frame comes.
+ * A destination added to the socket first gets the content of the cache in a burst, 
+ * so that its receiver can start decoding right away instead of waiting for the next key frame.
+ * Only used by the thread that sends the packets of the socket.
+ */
+class GopCache {
+
+	/** Bytes held at most, the cache is emptied until the next key frame when the GOP gets bigger. */
+	public static final int MAX_BYTES = 2*1024*1024;
+	public static final int MAX_PACKETS = 4096;
+
+	private final PacketBufferPool mPool = PacketBufferPool.getInstance();
+	private final byte[][] mPackets = new byte[MAX_PACKETS][];
+	private final int[] mLengths = new int[MAX_PACKETS];
+	private final long[] mTimestamps = new long[MAX_PACKETS];
+	private final int[] mFlags = new int[MAX_PACKETS];
+	private int mCount = 0, mBytes = 0;
+	private boolean mOverflow = true, mLastSync = false;
+
+	/**
+	 * Takes a packet that has just been sent.
+	 * @param packet The packet, the cache owns it if true is returned
+	 * @param rtpts The RTP timestamp of the packet
+	 * @param flags The flags given to {@link RtpDestination#offer(byte[], int, long, int)}
+	 * @return False if the packet is not needed, the caller keeps it
+	 */
+	public boolean add(byte[] packet, int length, long rtpts, int flags) {
+		boolean sync = (flags&RtpDestination.FLAG_SYNC_POINT) != 0;
+		// A sync point that does not follow another one starts a new GOP
+		if (sync && !mLastSync) {
+			clear();
+			mOverflow = false;
+		}
+		mLastSync = sync;
+		if (mOverflow) return false;
+		// Counts the memory held, the buffer of a large packet may be much larger than the packet
+		if (mCount == MAX_PACKETS || mBytes+packet.length > MAX_BYTES) {
+			clear();
+			mOverflow = true;
+			return false;
+		}
+		mPackets[mCount] = packet;
+		mLengths[mCount] = length;
+		mTimestamps[mCount] = rtpts;
+		mFlags[mCount] = flags;
+		mBytes += packet.length;
+		mCount++;
+		return true;
+	}
+
+	/**
+	 * Offers the content of the cache to a destination that was just added to the socket. 
+	 * The timestamps of the cached frames are squeezed right before <code>rtpts</code>, 
+	 * the receiver decodes them all at once and shows the current picture in no time. 
+	 * The queue of the destination is smaller than the cache: the burst starts at the last 
+	 * sync point after which the packets fit in it, a burst that would overflow the queue 
+	 * would only be flushed with the packets that follow it.
+	 * @param rtpts The RTP timestamp of the packet that is about to be sent
+	 * @return False if the cache did not fit in the queue, the destination must then wait for the next key frame
+	 */
+	public boolean burst(RtpDestination destination, long rtpts) {
+		if (mCount == 0) return true;
+		int room = destination.getBurstRoom();
+		int start = -1;
+		for (int i=0;i<mCount;i++) {
+			boolean sync = (mFlags[i]&RtpDestination.FLAG_SYNC_POINT) != 0;
+			if (sync && (i == 0 || (mFlags[i-1]&RtpDestination.FLAG_SYNC_POINT) == 0) && mCount-i<=room) {
+				start = i;
+				break;
+			}
+		}
+		if (start<0) return false;
+		// The last frame of the cache may be the one the next packet belongs to
+		long target = mTimestamps[mCount-1] == rtpts ? rtpts : rtpts-1;
+		int[] shifts = new int[mCount];
+		for (int i=mCount-1;i>=start;i--) {
+			if (i<mCount-1 && mTimestamps[i] != mTimestamps[i+1]) target--;
+			shifts[i] = (int) (target-mTimestamps[i]);
+		}
+		for (int i=start;i<mCount;i++) {
+			if (!destination.offer(mPackets[i], mLengths[i], mTimestamps[i], mFlags[i], shifts[i])) break;
+		}
+		return true;
+	}
+
+	/** Gives the packets back to the pool. */
+	public void clear() {
+		for (int i=0;i<mCount;i++) {
+			mPool.giveBack(mPackets[i]);
+			mPackets[i] = null;
+		}
+		mCount = 0;
+		mBytes = 0;
+	}
+
+	public int size() {
+		return mCount;
+	}
+
+	public int bytes() {
+		return mBytes;
+	}
+
+}
@@ -67,7 +67,7 @@ public class H263Packetizer extends AbstractPacketizer implements Runnable {
 
 	public void run() {
 		long time, duration = 0;
-		int i = 0, j = 0, tr;
+		int i = 0, j = 0, tr, size = MAXPACKETSIZE;
 		boolean firstFragment = true;
 		byte[] nextBuffer;
 		stats.reset();
@@ -75,7 +75,10 @@ public class H263Packetizer extends AbstractPacketizer implements Runnable {
 		try { 
 			while (!Thread.interrupted()) {
 				
-				if (j==0) buffer = socket.requestBuffer();
+				if (j==0) {
+					size = packetSize();
+					buffer = socket.requestBuffer(size);
+				}
 				socket.updateTimestamp(ts);
 				
 				// Each packet we send has a two byte long header (See section 5.1 of RFC 4629)
@@ -83,19 +86,20 @@ public class H263Packetizer extends AbstractPacketizer implements Runnable {
 				buffer[rtphl+1] = 0;
 				
 				time = System.nanoTime();
-				if (fill(rtphl+j+2,MAXPACKETSIZE-rtphl-j-2)<0) return;
+				if (fill(rtphl+j+2,size-rtphl-j-2)<0) return;
 				duration += System.nanoTime() - time;
 				j = 0;
 				// Each h263 frame starts with: 0000 0000 0000 0000 1000 00??
 				// Here we search where the next frame begins in the bit stream
-				for (i=rtphl+2;i<MAXPACKETSIZE-1;i++) {
+				// The buffer may be exactly size bytes long, the scan must stay within it
+				for (i=rtphl+2;i+2<size;i++) {
 					if (buffer[i]==0 && buffer[i+1]==0 && (buffer[i+2]&0xFC)==0x80) {
 						j=i;
 						break;
 					}
 				}
 				// Parse temporal reference
-				tr = (buffer[i+2]&0x03)<<6 | (buffer[i+3]&0xFF)>>2;
+				if (j>0 && j+3<size) tr = (buffer[j+2]&0x03)<<6 | (buffer[j+3]&0xFF)>>2;
 				//Log.d(TAG,"j: "+j+" buffer: "+printBuffer(rtphl, rtphl+5)+" tr: "+tr);
 				if (firstFragment) {
 					// This is the first fragment of the frame -> header is set to 0x0400
@@ -112,15 +116,18 @@ public class H263Packetizer extends AbstractPacketizer implements Runnable {
 					// The last fragment of a frame has to be marked
 					socket.markNextPacket();
 					send(j);
-					nextBuffer = socket.requestBuffer();
-					System.arraycopy(buffer,j+2,nextBuffer,rtphl+2,MAXPACKETSIZE-j-2);
+					// The next packet must have room for the beginning of the next frame
+					int next = Math.max(packetSize(), size);
+					nextBuffer = socket.requestBuffer(next);
+					System.arraycopy(buffer,j+2,nextBuffer,rtphl+2,size-j-2);
 					buffer = nextBuffer;
-					j = MAXPACKETSIZE-j-2;
+					j = size-j-2;
+					size = next;
 					firstFragment = true;
 				} else {
 					// We have not found the beginning of another frame
 					// The whole packet is a fragment of a frame
-					send(MAXPACKETSIZE);
+					send(size);
 				}
 			}
 		} catch (IOException e) { 
@@ -130,6 +137,17 @@ public class H263Packetizer extends AbstractPacketizer implements Runnable {
 
 	}
 
+	/** 
+	 * The size of the next packet. When the socket allows packets larger than {@link #MAXPACKETSIZE}, 
+	 * whatever is already waiting in the input stream goes in the packet, but the packetizer 
+	 * never waits for more data than it would over UDP.
+	 */
+	private int packetSize() throws IOException {
+		int max = socket.getMaxPacketSize();
+		if (max<=MAXPACKETSIZE) return max;
+		return Math.max(MAXPACKETSIZE, Math.min(max, rtphl+2+is.available()));
+	}
+
 	private int fill(int offset,int length) throws IOException {
 
 		int sum = 0, len;
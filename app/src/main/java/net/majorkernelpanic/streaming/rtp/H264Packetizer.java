@@ -21,6 +21,7 @@
 package net.majorkernelpanic.streaming.rtp;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import android.annotation.SuppressLint;
 import android.util.Log;
@@ -31,7 +32,8 @@ import android.util.Log;
  *   
  *   H.264 streaming over RTP.
  *   
- *   Must be fed with an InputStream containing H.264 NAL units preceded by their length (4 bytes).
+ *   Must be fed with a {@link FrameSource}, the NAL units of each frame being preceded with 
+ *   0x00000001, or with an InputStream containing H.264 NAL units preceded by their length (4 bytes).
  *   The stream must start with mpeg4 or 3gpp header, it will be skipped.
  *   
  */
@@ -43,10 +45,23 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 	private int naluLength = 0;
 	private long delay = 0, oldtime = 0;
 	private Statistics stats = new Statistics();
-	private byte[] sps = null, pps = null, stapa = null;
+	private byte[] sps = null, pps = null;
+	private ByteBuffer spsBuffer = null, ppsBuffer = null;
 	byte[] header = new byte[5];	
 	private int count = 0;
-	private int streamType = 1;
+
+	// The NAL unit read from the InputStream when it fits in a packet
+	private byte[] nal = new byte[MAXPACKETSIZE];
+	private ByteBuffer nalBuffer = ByteBuffer.wrap(nal);
+	private final int[] unitStart = new int[64], unitEnd = new int[64];
+	private int units = 0;
+
+	// The NAL units of the STAP-A being built, they are only copied when it is sent, see aggregate()
+	private final ByteBuffer[] stapUnits = new ByteBuffer[64];
+	private final int[] stapOffset = new int[64], stapSize = new int[64];
+	private int stapHeader = 0, stapLength = 1, stapCount = 0;
+	private boolean stapReference = false, stapSync = false;
+	private volatile long stapPackets = 0, savedPackets = 0;
 
 
 	public H264Packetizer() {
@@ -74,31 +89,23 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 		}
 	}
 
+	/** The SPS and PPS of the stream are sent in front of each IDR picture, in the same STAP-A when they fit. */
 	public void setStreamParameters(byte[] pps, byte[] sps) {
 		this.pps = pps;
 		this.sps = sps;
+		ppsBuffer = pps != null ? ByteBuffer.wrap(pps) : null;
+		spsBuffer = sps != null ? ByteBuffer.wrap(sps) : null;
+	}	
 
-		// A STAP-A NAL (NAL type 24) containing the sps and pps of the stream
-		if (pps != null && sps != null) {
-			// STAP-A NAL header + NALU 1 (SPS) size + NALU 2 (PPS) size = 5 bytes
-			stapa = new byte[sps.length + pps.length + 5];
-
-			// STAP-A NAL header is 24
-			stapa[0] = 24;
-
-			// Write NALU 1 size into the array (NALU 1 is the SPS).
-			stapa[1] = (byte) (sps.length >> 8);
-			stapa[2] = (byte) (sps.length & 0xFF);
-
-			// Write NALU 2 size into the array (NALU 2 is the PPS).
-			stapa[sps.length + 3] = (byte) (pps.length >> 8);
-			stapa[sps.length + 4] = (byte) (pps.length & 0xFF);
+	/** Returns the number of STAP-A packets sent, each one carries two NAL units or more. */
+	public long getStapPackets() {
+		return stapPackets;
+	}
 
-			// Write NALU 1 into the array, then write NALU 2 into the array.
-			System.arraycopy(sps, 0, stapa, 3, sps.length);
-			System.arraycopy(pps, 0, stapa, 5 + sps.length, pps.length);
-		}
-	}	
+	/** Returns the number of packets saved by the STAP-A packets, compared to one packet per NAL unit. */
+	public long getSavedPackets() {
+		return savedPackets;
+	}
 
 	public void run() {
 		long duration = 0;
@@ -106,20 +113,15 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 		stats.reset();
 		count = 0;
 
-		if (is instanceof MediaCodecInputStream) {
-			streamType = 1;
-			socket.setCacheSize(0);
-		} else {
-			streamType = 0;	
-			socket.setCacheSize(400);
-		}
+		socket.setCacheSize(source != null ? 0 : 400);
 
 		try {
 			while (!Thread.interrupted()) {
 
 				oldtime = System.nanoTime();
 				// We read a NAL units from the input stream and we send them
-				send();
+				if (source != null) sendFrame();
+				else send();
 				// We measure how long it took to receive NAL units from the phone
 				duration = System.nanoTime() - oldtime;
 
@@ -136,106 +138,241 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 
 	}
 
+	/**
+	 * Sends the NAL units of a frame of the {@link FrameSource}. They go straight 
+	 * from the buffer of the source into the RTP packets.
+	 */
+	@SuppressLint("NewApi")
+	private void sendFrame() throws IOException, InterruptedException {
+		ByteBuffer frame = source.nextFrame();
+		try {
+			ts = source.getPresentationTimeUs()*1000L;
+			units = 0;
+			// The NAL units of a frame are preceded with 0x00000001, or by nothing with some phones
+			EncodedFrame encoded = source instanceof FrameQueue ? ((FrameQueue) source).getEncodedFrame() : null;
+			if (encoded != null && encoded.getUnitCount()>0 && encoded.getUnitCount()<unitStart.length) {
+				// The hub already found them
+				for (int i=0;i<encoded.getUnitCount();i++) {
+					int offset = encoded.getUnitOffset(i);
+					addUnit(offset, offset+encoded.getUnitLength(i));
+				}
+			} else {
+				split(frame, frame.position(), frame.limit());
+			}
+			sendUnits(frame, frame.limit(), frame.limit());
+		} finally {
+			clear();
+			source.releaseFrame();
+		}
+	}
+
 	/**
 	 * Reads a NAL unit in the FIFO and sends it.
 	 * If it is too big, we split it in FU-A units (RFC 3984).
 	 */
-	@SuppressLint("NewApi")
 	private void send() throws IOException, InterruptedException {
-		int sum = 1, len = 0, type;
-
-		if (streamType == 0) {
-			// NAL units are preceeded by their length, we parse the length
-			fill(header,0,5);
-			ts += delay;
-			naluLength = header[3]&0xFF | (header[2]&0xFF)<<8 | (header[1]&0xFF)<<16 | (header[0]&0xFF)<<24;
-			if (naluLength>100000 || naluLength<0) resync();
-		} else if (streamType == 1) {
-			// NAL units are preceeded with 0x00000001
-			fill(header,0,5);
-			ts = ((MediaCodecInputStream)is).getLastBufferInfo().presentationTimeUs*1000L;
-			//ts += delay;
-			naluLength = is.available()+1;
-			if (!(header[0]==0 && header[1]==0 && header[2]==0)) {
-				// Turns out, the NAL units are not preceeded with 0x00000001
-				Log.e(TAG, "NAL units are not preceeded by 0x00000001");
-				streamType = 2; 
-				return;
-			}
-		} else {
-			// Nothing preceededs the NAL units
-			fill(header,0,1);
-			header[4] = header[0];
-			ts = ((MediaCodecInputStream)is).getLastBufferInfo().presentationTimeUs*1000L;
-			//ts += delay;
-			naluLength = is.available()+1;
+		// NAL units are preceeded by their length, we parse the length
+		fill(header,0,5);
+		ts += delay;
+		naluLength = header[3]&0xFF | (header[2]&0xFF)<<8 | (header[1]&0xFF)<<16 | (header[0]&0xFF)<<24;
+		if (naluLength>100000 || naluLength<0) resync();
+
+		//Log.d(TAG,"- Nal unit length: " + naluLength + " delay: "+delay/1000000);
+
+		// Reads what fits in a packet, the rest of a large NAL unit is read as it is sent in FU-A units
+		int read = Math.min(naluLength, socket.getMaxPacketSize()-rtphl-2);
+		if (nal.length<read) {
+			nal = new byte[socket.getMaxPacketSize()];
+			nalBuffer = ByteBuffer.wrap(nal);
 		}
+		nal[0] = header[4];
+		fill(nal, 1, read-1);
 
-		// Parses the NAL unit type
-		type = header[4]&0x1F;
+		units = 0;
+		addUnit(0, read);
+		sendUnits(nalBuffer, read, naluLength);
+	}
 
+	/** 
+	 * Sends the NAL units found by {@link #split} or {@link #addUnit}. 
+	 * @param end Where the data available in the buffer ends
+	 * @param total Where the last NAL unit ends, the bytes after end are still in the InputStream
+	 */
+	private void sendUnits(ByteBuffer data, int end, int total) throws IOException, InterruptedException {
+		int type;
 
-		// The stream already contains NAL unit type 7 or 8, we don't need 
-		// to add them to the stream ourselves
-		if (type == 7 || type == 8) {
-			Log.v(TAG,"SPS or PPS present in the stream.");
-			count++;
-			if (count>4) {
-				sps = null;
-				pps = null;
+		// Up to 64 KB when the packets are interleaved in an RTSP connection
+		int maxPacketSize = socket.getMaxPacketSize();
+
+		boolean idr = false, parameterSets = false;
+		for (int i=0;i<units;i++) {
+			type = data.get(unitStart[i])&0x1F;
+			idr |= type == 5;
+			// The stream already contains NAL unit type 7 or 8, we don't need 
+			// to add them to the stream ourselves
+			if (type == 7 || type == 8) {
+				Log.v(TAG,"SPS or PPS present in the stream.");
+				parameterSets = true;
+				if (++count>4) {
+					setStreamParameters(null, null);
+				}
 			}
 		}
 
-		// We send two packets containing NALU type 7 (SPS) and 8 (PPS)
+		// We send the SPS and the PPS in front of the IDR picture, with it in a STAP-A when it is small
 		// Those should allow the H264 stream to be decoded even if no SDP was sent to the decoder.
-		if (type == 5 && sps != null && pps != null) {
-			buffer = socket.requestBuffer();
-			socket.markNextPacket();
-			socket.updateTimestamp(ts);
-			System.arraycopy(stapa, 0, buffer, rtphl, stapa.length);
-			super.send(rtphl+stapa.length);
+		if (idr && !parameterSets && sps != null && pps != null) {
+			aggregate(spsBuffer, 0, sps.length, maxPacketSize);
+			aggregate(ppsBuffer, 0, pps.length, maxPacketSize);
+		}
+
+		for (int i=0;i<units;i++) {
+			int buffered = unitEnd[i]-unitStart[i];
+			int length = i == units-1 ? total-unitStart[i] : buffered;
+			// Small NAL unit => Single NAL unit, or STAP-A with the NAL units that share its timestamp
+			if (length == buffered && length<=maxPacketSize-rtphl) {
+				aggregate(data, unitStart[i], length, maxPacketSize);
+			}
+			// Large NAL unit => Split nal unit 
+			else {
+				flush(false);
+				fragment(data, unitStart[i], buffered, length, maxPacketSize, i == units-1);
+			}
+		}
+		flush(true);
+	}
+
+	/** Finds the NAL units separated by start codes between <code>start</code> and <code>end</code>. */
+	private void split(ByteBuffer data, int start, int end) {
+		for (int i=start;i+2<end && units<unitStart.length-1;i++) {
+			if (data.get(i) == 0 && data.get(i+1) == 0 && data.get(i+2) == 1) {
+				int last = i;
+				// The zero byte of a 4 bytes start code
+				while (last>start && data.get(last-1) == 0) last--;
+				addUnit(start, last);
+				start = i+3;
+				i += 2;
+			}
 		}
+		addUnit(start, end);
+	}
 
-		//Log.d(TAG,"- Nal unit length: " + naluLength + " delay: "+delay/1000000+" type: "+type);
+	private void addUnit(int start, int end) {
+		if (end<=start) return;
+		unitStart[units] = start;
+		unitEnd[units] = end;
+		units++;
+	}
 
-		// Small NAL unit => Single NAL unit 
-		if (naluLength<=MAXPACKETSIZE-rtphl-2) {
-			buffer = socket.requestBuffer();
-			buffer[rtphl] = header[4];
-			len = fill(buffer, rtphl+1,  naluLength-1);
+	/** 
+	 * Sends a NAL unit too large for a packet in FU-A units. It starts at <code>offset</code> 
+	 * in data and goes on in the input stream.
+	 * @param buffered The number of bytes of the NAL unit in data
+	 * @param length The length of the NAL unit, header included
+	 * @param last True if nothing follows in the frame
+	 */
+	private void fragment(ByteBuffer data, int offset, int buffered, int length, int maxPacketSize, boolean last) throws IOException, InterruptedException {
+		int nri = data.get(offset)&0x60, type = data.get(offset)&0x1F, sum = 1, len;
+		// A nal_ref_idc of 0 means that no other picture depends on this one
+		boolean reference = nri != 0;
+		// A decoder can start with an IDR picture or with the parameter sets that come before it
+		boolean sync = type == 5 || type == 7 || type == 8;
+
+		// Set FU-A header
+		header[1] = (byte) type;  // FU header type
+		header[1] += 0x80; // Start bit
+		// Set FU-A indicator
+		header[0] = (byte) nri; // FU indicator NRI
+		header[0] += 28;
+
+		while (sum < length) {
+			len = length-sum > maxPacketSize-rtphl-2 ? maxPacketSize-rtphl-2 : length-sum;
+			buffer = socket.requestBuffer(rtphl+2+len);
+			buffer[rtphl] = header[0];
+			buffer[rtphl+1] = header[1];
 			socket.updateTimestamp(ts);
-			socket.markNextPacket();
-			super.send(naluLength+rtphl);
-			//Log.d(TAG,"----- Single NAL unit - len:"+len+" delay: "+delay);
+			if (!reference) socket.markNonReference();
+			if (sync && sum == 1) socket.markSyncPoint();
+			// The beginning of the NAL unit has already been read
+			int copied = Math.max(0, Math.min(len, buffered-sum));
+			if (copied>0) copy(data, offset+sum, buffer, rtphl+2, copied);
+			fill(buffer, rtphl+2+copied, len-copied);
+			sum += len;
+			// Last packet before next NAL
+			if (sum >= length) {
+				// End bit on
+				buffer[rtphl+1] += 0x40;
+				if (last) socket.markNextPacket();
+			}
+			super.send(len+rtphl+2);
+			// Switch start bit
+			header[1] = (byte) (header[1] & 0x7F); 
+			//Log.d(TAG,"----- FU-A unit, sum:"+sum);
 		}
-		// Large NAL unit => Split nal unit 
-		else {
-
-			// Set FU-A header
-			header[1] = (byte) (header[4] & 0x1F);  // FU header type
-			header[1] += 0x80; // Start bit
-			// Set FU-A indicator
-			header[0] = (byte) ((header[4] & 0x60) & 0xFF); // FU indicator NRI
-			header[0] += 28;
-
-			while (sum < naluLength) {
-				buffer = socket.requestBuffer();
-				buffer[rtphl] = header[0];
-				buffer[rtphl+1] = header[1];
-				socket.updateTimestamp(ts);
-				if ((len = fill(buffer, rtphl+2,  naluLength-sum > MAXPACKETSIZE-rtphl-2 ? MAXPACKETSIZE-rtphl-2 : naluLength-sum  ))<0) return; sum += len;
-				// Last packet before next NAL
-				if (sum >= naluLength) {
-					// End bit on
-					buffer[rtphl+1] += 0x40;
-					socket.markNextPacket();
-				}
-				super.send(len+rtphl+2);
-				// Switch start bit
-				header[1] = (byte) (header[1] & 0x7F); 
-				//Log.d(TAG,"----- FU-A unit, sum:"+sum);
+	}
+
+	/** 
+	 * Adds a NAL unit to the STAP-A (RFC 6184 section 5.7.1) sent by {@link #flush(boolean)}. 
+	 * All the NAL units of a STAP-A share the timestamp <code>ts</code>, it is sent before the 
+	 * packetizer reads more of the stream, so aggregating never delays a NAL unit.
+	 * Only the position of the NAL unit is kept, it must stay in data until then.
+	 */
+	private void aggregate(ByteBuffer data, int offset, int length, int maxPacketSize) throws IOException, InterruptedException {
+		if (stapCount == stapUnits.length || (stapCount>0 && stapLength+2+length>maxPacketSize-rtphl)) flush(false);
+		stapUnits[stapCount] = data;
+		stapOffset[stapCount] = offset;
+		stapSize[stapCount] = length;
+		stapLength += 2+length;
+		stapCount++;
+		int nri = data.get(offset), type = nri&0x1F;
+		// F bit and highest nal_ref_idc of the NAL units, STAP-A type 24
+		stapHeader = (stapHeader|nri)&0x80 | Math.max(stapHeader&0x60, nri&0x60) | 24;
+		stapReference |= (nri&0x60) != 0;
+		stapSync |= type == 5 || type == 7 || type == 8;
+	}
+
+	/** 
+	 * Sends the STAP-A, or a Single NAL unit packet if it only holds one NAL unit. 
+	 * @param marker True if nothing follows in the frame
+	 */
+	private void flush(boolean marker) throws IOException, InterruptedException {
+		if (stapCount == 0) return;
+		int length = stapCount == 1 ? stapSize[0] : stapLength;
+		buffer = socket.requestBuffer(rtphl+length);
+		if (stapCount == 1) {
+			copy(stapUnits[0], stapOffset[0], buffer, rtphl, length);
+		} else {
+			buffer[rtphl] = (byte) stapHeader;
+			for (int i=0, p=rtphl+1;i<stapCount;p+=2+stapSize[i],i++) {
+				buffer[p] = (byte) (stapSize[i]>>8);
+				buffer[p+1] = (byte) (stapSize[i]&0xFF);
+				copy(stapUnits[i], stapOffset[i], buffer, p+2, stapSize[i]);
 			}
 		}
+		socket.updateTimestamp(ts);
+		if (marker) socket.markNextPacket();
+		if (!stapReference) socket.markNonReference();
+		if (stapSync) socket.markSyncPoint();
+		super.send(rtphl+length);
+		if (stapCount>1) {
+			stapPackets++;
+			savedPackets += stapCount-1;
+		}
+		clear();
+	}
+
+	/** Forgets the NAL units of the STAP-A, the buffers they are in may be given back to the MediaCodec. */
+	private void clear() {
+		for (int i=0;i<stapCount;i++) stapUnits[i] = null;
+		stapHeader = 0;
+		stapLength = 1;
+		stapCount = 0;
+		stapReference = stapSync = false;
+	}
+
+	private static void copy(ByteBuffer data, int offset, byte[] buffer, int position, int length) {
+		data.position(offset);
+		data.get(buffer, position, length);
 	}
 
 	private int fill(byte[] buffer, int offset,int length) throws IOException {
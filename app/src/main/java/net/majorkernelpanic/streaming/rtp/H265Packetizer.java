@@ -0,0 +1,415 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import android.annotation.SuppressLint;
+import android.media.MediaCodec;
+import android.util.Log;
+
+/**
+ * 
+ *   RFC 7798.
+ *   
+ *   H.265 streaming over RTP.
+ *   
+ *   Must be fed with an InputStream containing H.265 NAL units preceded with start codes 
+ *   (0x000001 or 0x00000001). With a {@link MediaCodecInputStream} each buffer of the 
+ *   MediaCodec is an access unit, with any other InputStream (an elementary stream 
+ *   read from a file for instance) the access units are found by parsing the stream.
+ *   
+ *   Small NAL units of an access unit are sent together in aggregation packets (AP),
+ *   large ones in fragmentation units (FU).
+ *   
+ */
+public class H265Packetizer extends AbstractPacketizer implements Runnable {
+
+	public final static String TAG = "H265Packetizer";
+
+	// NAL unit types used here, see table 7-1 of H.265
+	private final static int BLA_W_LP = 16, RSV_IRAP_23 = 23;
+	private final static int VPS = 32, SPS = 33, PPS = 34, AUD = 35, PREFIX_SEI = 39;
+	private final static int AP = 48, FU = 49;
+
+	private Thread t = null;
+	private boolean mediaCodec = true;
+	private InputStream stream;
+	private long frameDuration = 1000000000L/25;
+	private byte[] vps = null, sps = null, pps = null;
+
+	// The access unit being sent and the bounds of its NAL units
+	private byte[] au = new byte[MAXPACKETSIZE];
+	private int auLength = 0;
+	private int[] unitStart = new int[64], unitEnd = new int[64];
+	private int units = 0;
+
+	// The NAL unit read after the end of the access unit, when the stream is parsed
+	private byte[] next = new byte[MAXPACKETSIZE];
+	private int nextLength = 0;
+
+	// The aggregation packet being built, see aggregate()
+	private byte[] ap = new byte[MAXPACKETSIZE];
+	private int apLength = 2, apCount = 0, apLayerId = 63, apTid = 7;
+	private boolean apForbidden = false, apReference = false, apSync = false;
+	private volatile long apPackets = 0, savedPackets = 0;
+
+	public H265Packetizer() {
+		super();
+		socket.setClockFrequency(90000);
+	}
+
+	public void start() {
+		if (t == null) {
+			t = new Thread(this);
+			t.start();
+		}
+	}
+
+	public void stop() {
+		if (t != null) {
+			try {
+				is.close();
+			} catch (IOException e) {}
+			t.interrupt();
+			try {
+				t.join();
+			} catch (InterruptedException e) {}
+			t = null;
+		}
+	}
+
+	/** The parameter sets of the stream are sent in front of each IRAP picture that comes without them. */
+	public void setStreamParameters(byte[] vps, byte[] sps, byte[] pps) {
+		this.vps = vps;
+		this.sps = sps;
+		this.pps = pps;
+	}
+
+	/** 
+	 * Used to compute the timestamps of the access units when the packetizer 
+	 * is not fed by a {@link MediaCodecInputStream}, 25 fps by default. 
+	 */
+	public void setFrameRate(int frameRate) {
+		frameDuration = 1000000000L/frameRate;
+	}
+
+	/** Returns the number of AP packets sent, each one carries two NAL units or more. */
+	public long getApPackets() {
+		return apPackets;
+	}
+
+	/** Returns the number of packets saved by the AP packets, compared to one packet per NAL unit. */
+	public long getSavedPackets() {
+		return savedPackets;
+	}
+
+	public void run() {
+		Log.d(TAG,"H265 packetizer started !");
+
+		if (is instanceof MediaCodecInputStream) {
+			mediaCodec = true;
+			stream = is;
+			socket.setCacheSize(0);
+		} else {
+			// The stream is parsed byte after byte
+			mediaCodec = false;
+			stream = new BufferedInputStream(is);
+			nextLength = 0;
+			socket.setCacheSize(400);
+		}
+
+		try {
+			while (!Thread.interrupted()) {
+				send();
+			}
+		} catch (IOException e) {
+		} catch (InterruptedException e) {}
+
+		Log.d(TAG,"H265 packetizer stopped !");
+
+	}
+
+	/**
+	 * Reads an access unit and sends its NAL units in Single NAL unit, AP or FU packets (RFC 7798 section 4.4).
+	 */
+	@SuppressLint("NewApi")
+	private void send() throws IOException, InterruptedException {
+		boolean config = false;
+
+		if (mediaCodec) {
+			fill(au, 0, 1);
+			MediaCodec.BufferInfo info = ((MediaCodecInputStream)is).getLastBufferInfo();
+			ts = info.presentationTimeUs*1000L;
+			config = (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+			int length = is.available()+1;
+			if (au.length<length) au = Arrays.copyOf(au, length);
+			fill(au, 1, length-1);
+			auLength = length;
+			units = 0;
+			split();
+		} else {
+			readAccessUnit();
+			ts += frameDuration;
+		}
+
+		boolean irap = false, parameterSets = false;
+		for (int i=0;i<units;i++) {
+			int type = type(au, unitStart[i]);
+			irap |= type >= BLA_W_LP && type <= RSV_IRAP_23;
+			if (type >= VPS && type <= PPS) {
+				// Keeps the last parameter sets of the stream for the next IRAP pictures
+				byte[] ps = Arrays.copyOfRange(au, unitStart[i], unitEnd[i]);
+				if (type == VPS) vps = ps;
+				else if (type == SPS) sps = ps;
+				else pps = ps;
+				parameterSets = true;
+			}
+		}
+
+		// The configuration of the MediaCodec is only sent in front of the IRAP pictures
+		if (config) return;
+
+		int maxPacketSize = socket.getMaxPacketSize();
+
+		// Those should allow the H265 stream to be decoded even if no SDP was sent to the decoder.
+		boolean prepend = irap && !parameterSets && vps != null && sps != null && pps != null;
+
+		for (int i=0;i<units;i++) {
+			int length = unitEnd[i]-unitStart[i];
+			if (length<2) continue;
+			// The parameter sets go after the access unit delimiter
+			if (prepend && type(au, unitStart[i]) != AUD) {
+				aggregate(vps, 0, vps.length, maxPacketSize);
+				aggregate(sps, 0, sps.length, maxPacketSize);
+				aggregate(pps, 0, pps.length, maxPacketSize);
+				prepend = false;
+			}
+			// An AP needs 2 bytes for its header and 2 for the size of each NAL unit
+			if (length<=maxPacketSize-rtphl-4) {
+				aggregate(au, unitStart[i], length, maxPacketSize);
+			} else {
+				flush(false);
+				fragment(unitStart[i], length, maxPacketSize, i == units-1);
+			}
+		}
+		flush(true);
+	}
+
+	/** Finds the NAL units separated by start codes in the access unit. */
+	private void split() {
+		int start = 0;
+		for (int i=0;i+2<auLength;i++) {
+			if (au[i] == 0 && au[i+1] == 0 && au[i+2] == 1) {
+				int end = i;
+				// The zero byte of a 4 bytes start code
+				while (end>start && au[end-1] == 0) end--;
+				addUnit(start, end);
+				start = i+3;
+				i += 2;
+			}
+		}
+		addUnit(start, auLength);
+	}
+
+	private void addUnit(int start, int end) {
+		if (end<=start) return;
+		if (units == unitStart.length) {
+			unitStart = Arrays.copyOf(unitStart, 2*units);
+			unitEnd = Arrays.copyOf(unitEnd, 2*units);
+		}
+		unitStart[units] = start;
+		unitEnd[units] = end;
+		units++;
+	}
+
+	/** 
+	 * Reads the NAL units of the stream until the first one of the next access 
+	 * unit (H.265 section 7.4.2.4.4), which is kept in next.
+	 */
+	private void readAccessUnit() throws IOException {
+		boolean vcl = false;
+		auLength = 0;
+		units = 0;
+		if (nextLength == 0 && !readNalUnit()) throw new IOException("End of stream");
+		do {
+			int type = type(next, 0);
+			if (vcl && nextLength>2) {
+				if (type<32 && (next[2]&0x80) != 0) break; // first_slice_segment_in_pic_flag
+				if (type>=VPS && type<=AUD || type == PREFIX_SEI || type>=41 && type<=44 || type>=48 && type<=55) break;
+			}
+			vcl |= type<32;
+			if (au.length<auLength+nextLength) au = Arrays.copyOf(au, 2*(auLength+nextLength));
+			System.arraycopy(next, 0, au, auLength, nextLength);
+			addUnit(auLength, auLength+nextLength);
+			auLength += nextLength;
+		} while (readNalUnit());
+	}
+
+	/** Reads the next NAL unit of the stream in next, without its start code. */
+	private boolean readNalUnit() throws IOException {
+		int b, zeros = 0;
+		nextLength = 0;
+		while ((b = stream.read()) >= 0) {
+			if (b == 1 && zeros>=2) {
+				nextLength -= zeros;
+				if (nextLength>0) return true;
+				// Start code in front of the first NAL unit
+				nextLength = zeros = 0;
+				continue;
+			}
+			zeros = b == 0 ? zeros+1 : 0;
+			if (nextLength == next.length) next = Arrays.copyOf(next, 2*nextLength);
+			next[nextLength++] = (byte) b;
+		}
+		// The last NAL unit of the stream and its trailing zero bytes
+		nextLength -= zeros;
+		return nextLength>0;
+	}
+
+	/** 
+	 * Sends a NAL unit that does not fit in an AP, in FU packets when it does not fit in a packet.
+	 * @param last True if nothing follows in the access unit
+	 */
+	private void fragment(int offset, int length, int maxPacketSize, boolean last) throws IOException, InterruptedException {
+		int type = type(au, offset), sum = 2, len;
+		boolean reference = isReference(type);
+		boolean sync = isSync(type);
+
+		if (length<=maxPacketSize-rtphl) {
+			buffer = socket.requestBuffer(rtphl+length);
+			System.arraycopy(au, offset, buffer, rtphl, length);
+			socket.updateTimestamp(ts);
+			if (!reference) socket.markNonReference();
+			if (sync) socket.markSyncPoint();
+			if (last) socket.markNextPacket();
+			super.send(rtphl+length);
+			return;
+		}
+
+		// PayloadHdr with the F bit, LayerId and TID of the NAL unit, FU type 49
+		byte h0 = (byte) ((au[offset] & 0x81) | FU<<1), h1 = au[offset+1];
+		// FU header, start bit on
+		byte fu = (byte) (0x80 | type);
+
+		while (sum < length) {
+			len = length-sum > maxPacketSize-rtphl-3 ? maxPacketSize-rtphl-3 : length-sum;
+			buffer = socket.requestBuffer(rtphl+3+len);
+			buffer[rtphl] = h0;
+			buffer[rtphl+1] = h1;
+			buffer[rtphl+2] = fu;
+			System.arraycopy(au, offset+sum, buffer, rtphl+3, len);
+			socket.updateTimestamp(ts);
+			if (!reference) socket.markNonReference();
+			if (sync && sum == 2) socket.markSyncPoint();
+			sum += len;
+			if (sum >= length) {
+				// End bit on
+				buffer[rtphl+2] |= 0x40;
+				if (last) socket.markNextPacket();
+			}
+			super.send(rtphl+3+len);
+			// Switch start bit
+			fu &= 0x7F;
+		}
+	}
+
+	/** 
+	 * Adds a NAL unit to the AP (RFC 7798 section 4.4.2) sent by {@link #flush(boolean)}. 
+	 * All the NAL units of an AP belong to the same access unit.
+	 */
+	private void aggregate(byte[] unit, int offset, int length, int maxPacketSize) throws IOException, InterruptedException {
+		if (apLength+2+length>maxPacketSize-rtphl) flush(false);
+		if (ap.length<apLength+2+length) ap = Arrays.copyOf(ap, Math.max(maxPacketSize, apLength+2+length));
+		ap[apLength] = (byte) (length>>8);
+		ap[apLength+1] = (byte) (length&0xFF);
+		System.arraycopy(unit, offset, ap, apLength+2, length);
+		apLength += 2+length;
+		apCount++;
+		int type = type(unit, offset);
+		// The F bit is set if any NAL unit has it, LayerId and TID are the lowest ones
+		apForbidden |= (unit[offset]&0x80) != 0;
+		apLayerId = Math.min(apLayerId, (unit[offset]&0x01)<<5 | (unit[offset+1]&0xFF)>>3);
+		apTid = Math.min(apTid, unit[offset+1]&0x07);
+		apReference |= isReference(type);
+		apSync |= isSync(type);
+	}
+
+	/** 
+	 * Sends the AP, or a Single NAL unit packet if it only holds one NAL unit. 
+	 * @param marker True if nothing follows in the access unit
+	 */
+	private void flush(boolean marker) throws IOException, InterruptedException {
+		if (apCount == 0) return;
+		ap[0] = (byte) ((apForbidden ? 0x80 : 0) | AP<<1 | apLayerId>>5);
+		ap[1] = (byte) ((apLayerId&0x1F)<<3 | apTid);
+		int offset = apCount == 1 ? 4 : 0, length = apLength-offset;
+		buffer = socket.requestBuffer(rtphl+length);
+		System.arraycopy(ap, offset, buffer, rtphl, length);
+		socket.updateTimestamp(ts);
+		if (marker) socket.markNextPacket();
+		if (!apReference) socket.markNonReference();
+		if (apSync) socket.markSyncPoint();
+		super.send(rtphl+length);
+		if (apCount>1) {
+			apPackets++;
+			savedPackets += apCount-1;
+		}
+		apLength = 2;
+		apCount = 0;
+		apLayerId = 63;
+		apTid = 7;
+		apForbidden = apReference = apSync = false;
+	}
+
+	private static int type(byte[] nal, int offset) {
+		return (nal[offset]>>1)&0x3F;
+	}
+
+	/** 
+	 * The sub-layer non-reference pictures (TRAIL_N, TSA_N, ...) have an even type lower than 16,
+	 * the encoders of the phones only use one temporal sub-layer so nothing depends on them.
+	 */
+	private static boolean isReference(int type) {
+		return type>14 || type%2 == 1;
+	}
+
+	/** A decoder can start with an IRAP picture or with the parameter sets that come before it. */
+	private static boolean isSync(int type) {
+		return type >= BLA_W_LP && type <= RSV_IRAP_23 || type >= VPS && type <= PPS;
+	}
+
+	private int fill(byte[] buffer, int offset,int length) throws IOException {
+		int sum = 0, len;
+		while (sum<length) {
+			len = is.read(buffer, offset+sum, length-sum);
+			if (len<0) {
+				throw new IOException("End of stream");
+			}
+			else sum+=len;
+		}
+		return sum;
+	}
+
+}
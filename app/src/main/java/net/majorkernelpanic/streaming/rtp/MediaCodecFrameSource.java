@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import android.annotation.SuppressLint;
+import android.media.MediaCodec;
+import android.media.MediaCodec.BufferInfo;
+import android.media.MediaFormat;
+import android.util.Log;
+
+/**
+ * Hands the output buffers of a MediaCodec over to a packetizer. 
+ * This class is not thread safe !
+ */
+@SuppressLint("NewApi")
+public class MediaCodecFrameSource implements FrameSource {
+
+	public final static String TAG = "MediaCodecFrameSource";
+
+	private MediaCodec mMediaCodec = null;
+	private BufferInfo mBufferInfo = new BufferInfo();
+	private ByteBuffer[] mBuffers = null;
+	private MediaFormat mMediaFormat;
+	private int mIndex = -1;
+	private volatile boolean mClosed = false;
+
+	public MediaCodecFrameSource(MediaCodec mediaCodec) {
+		mMediaCodec = mediaCodec;
+		mBuffers = mMediaCodec.getOutputBuffers();
+	}
+
+	public ByteBuffer nextFrame() throws IOException {
+		releaseFrame();
+		try {
+			while (!Thread.currentThread().isInterrupted() && !mClosed) {
+				int index = mMediaCodec.dequeueOutputBuffer(mBufferInfo, 500000);
+				if (index>=0) {
+					//Log.d(TAG,"Index: "+index+" Time: "+mBufferInfo.presentationTimeUs+" size: "+mBufferInfo.size);
+					mIndex = index;
+					ByteBuffer buffer = mBuffers[index];
+					buffer.clear();
+					buffer.position(mBufferInfo.offset);
+					buffer.limit(mBufferInfo.offset+mBufferInfo.size);
+					return buffer;
+				} else if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+					mBuffers = mMediaCodec.getOutputBuffers();
+				} else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+					mMediaFormat = mMediaCodec.getOutputFormat();
+					Log.i(TAG,mMediaFormat.toString());
+				} else if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+					Log.v(TAG,"No buffer available...");
+				} else {
+					Log.e(TAG,"Message: "+index);
+				}
+			}
+		} catch (RuntimeException e) {
+			// The MediaCodec was stopped
+			throw new IOException(e.getMessage());
+		}
+		throw new IOException("This FrameSource was closed");
+	}
+
+	public long getPresentationTimeUs() {
+		return mBufferInfo.presentationTimeUs;
+	}
+
+	public int getFlags() {
+		return mBufferInfo.flags;
+	}
+
+	public void releaseFrame() {
+		if (mIndex>=0) {
+			try {
+				mMediaCodec.releaseOutputBuffer(mIndex, false);
+			} catch (RuntimeException ignore) {}
+			mIndex = -1;
+		}
+	}
+
+	public void close() {
+		mClosed = true;
+	}
+
+	/** Returns the output format of the MediaCodec, null until it is known. */
+	public MediaFormat getOutputFormat() {
+		return mMediaFormat;
+	}
+
+}
@@ -27,36 +27,37 @@ import java.nio.ByteBuffer;
 import android.annotation.SuppressLint;
 import android.media.MediaCodec;
 import android.media.MediaCodec.BufferInfo;
-import android.media.MediaFormat;
-import android.util.Log;
 
 /**
- * An InputStream that uses data from a MediaCodec.
- * The purpose of this class is to interface existing RTP packetizers of
- * libstreaming with the new MediaCodec API. This class is not thread safe !  
+ * An InputStream that uses data from a MediaCodec, or from any {@link FrameSource}.
+ * The purpose of this class is to interface the RTP packetizers of libstreaming that 
+ * read an InputStream with the new MediaCodec API, the others use the {@link FrameSource} 
+ * directly. This class is not thread safe !  
  */
 @SuppressLint("NewApi")
 public class MediaCodecInputStream extends InputStream {
 
 	public final String TAG = "MediaCodecInputStream"; 
 
-	private MediaCodec mMediaCodec = null;
+	private FrameSource mSource;
 	private BufferInfo mBufferInfo = new BufferInfo();
-	private ByteBuffer[] mBuffers = null;
 	private ByteBuffer mBuffer = null;
-	private int mIndex = -1;
-	private boolean mClosed = false;
-	
-	public MediaFormat mMediaFormat;
 
 	public MediaCodecInputStream(MediaCodec mediaCodec) {
-		mMediaCodec = mediaCodec;
-		mBuffers = mMediaCodec.getOutputBuffers();
+		this(new MediaCodecFrameSource(mediaCodec));
+	}
+
+	public MediaCodecInputStream(FrameSource source) {
+		mSource = source;
+	}
+
+	public FrameSource getFrameSource() {
+		return mSource;
 	}
 
 	@Override
 	public void close() {
-		mClosed = true;
+		mSource.close();
 	}
 
 	@Override
@@ -66,43 +67,16 @@ public class MediaCodecInputStream extends InputStream {
 
 	@Override
 	public int read(byte[] buffer, int offset, int length) throws IOException {
-		int min = 0;
-
-		try {
-			if (mBuffer==null) {
-				while (!Thread.interrupted() && !mClosed) {
-					mIndex = mMediaCodec.dequeueOutputBuffer(mBufferInfo, 500000);
-					if (mIndex>=0 ){
-						//Log.d(TAG,"Index: "+mIndex+" Time: "+mBufferInfo.presentationTimeUs+" size: "+mBufferInfo.size);
-						mBuffer = mBuffers[mIndex];
-						mBuffer.position(0);
-						break;
-					} else if (mIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-						mBuffers = mMediaCodec.getOutputBuffers();
-					} else if (mIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-						mMediaFormat = mMediaCodec.getOutputFormat();
-						Log.i(TAG,mMediaFormat.toString());
-					} else if (mIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
-						Log.v(TAG,"No buffer available...");
-						//return 0;
-					} else {
-						Log.e(TAG,"Message: "+mIndex);
-						//return 0;
-					}
-				}			
-			}
-			
-			if (mClosed) throw new IOException("This InputStream was closed");
-			
-			min = length < mBufferInfo.size - mBuffer.position() ? length : mBufferInfo.size - mBuffer.position(); 
-			mBuffer.get(buffer, offset, min);
-			if (mBuffer.position()>=mBufferInfo.size) {
-				mMediaCodec.releaseOutputBuffer(mIndex, false);
-				mBuffer = null;
-			}
-			
-		} catch (RuntimeException e) {
-			e.printStackTrace();
+		if (mBuffer==null) {
+			mBuffer = mSource.nextFrame();
+			mBufferInfo.set(mBuffer.position(), mBuffer.remaining(), mSource.getPresentationTimeUs(), mSource.getFlags());
+		}
+
+		int min = length < mBuffer.remaining() ? length : mBuffer.remaining(); 
+		mBuffer.get(buffer, offset, min);
+		if (!mBuffer.hasRemaining()) {
+			mSource.releaseFrame();
+			mBuffer = null;
 		}
 
 		return min;
@@ -110,7 +84,7 @@ public class MediaCodecInputStream extends InputStream {
 	
 	public int available() {
 		if (mBuffer != null) 
-			return mBufferInfo.size - mBuffer.position();
+			return mBuffer.remaining();
 		else 
 			return 0;
 	}
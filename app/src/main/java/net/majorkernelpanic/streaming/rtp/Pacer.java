@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package net.majorkernelpanic.streaming.rtp;
+
+/**
+ * Token bucket used by an {@link RtpSocket} to spread its packets over time.
+ * 
+ * The bucket is filled at the pacing rate and holds at most the burst size, every packet 
+ * takes its length out of it. When the bucket is empty the packet is scheduled for the 
+ * instant at which enough tokens will have been added, with nanosecond precision. 
+ * Unless a fixed rate is set, the pacing rate follows the bitrate of the stream measured 
+ * by the socket, multiplied by a factor slightly above 1 so that the FIFO drains.
+ */
+public class Pacer {
+
+	/** By default packets are sent 25% faster than the average bitrate of the stream. */
+	public final static float DEFAULT_FACTOR = 1.25f;
+
+	/** By default up to two full sized packets can be sent back-to-back. */
+	public final static int DEFAULT_BURST = 2*RtpSocket.MTU;
+
+	private volatile long mRate = 0, mMeasuredRate = 0;
+	private volatile float mFactor = DEFAULT_FACTOR;
+	private volatile int mBurst = DEFAULT_BURST;
+
+	// Only used by the thread that sends the packets
+	private double mTokens = 0;
+	private long mLast = 0;
+
+	/**
+	 * Sets a fixed pacing rate.
+	 * @param rate The rate in bits per second, 0 to follow the bitrate of the stream (default)
+	 */
+	public void setRate(long rate) {
+		mRate = rate;
+	}
+
+	/**
+	 * Sets how much faster than the bitrate of the stream packets are sent 
+	 * when no fixed rate is set, {@link #DEFAULT_FACTOR} by default.
+	 */
+	public void setFactor(float factor) {
+		mFactor = factor;
+	}
+
+	/** Sets the number of bytes that can be sent back-to-back, {@link #DEFAULT_BURST} by default. */
+	public void setBurst(int burst) {
+		mBurst = burst;
+	}
+
+	/** Called by the RtpSocket with the bitrate of the stream in bits per second. */
+	public void setMeasuredBitrate(long bitrate) {
+		mMeasuredRate = bitrate;
+	}
+
+	/** Returns the rate in bits per second at which packets are currently sent, 0 if they are not paced. */
+	public long getRate() {
+		return mRate>0 ? mRate : (long) (mMeasuredRate*mFactor);
+	}
+
+	/** Fills the bucket up, the next packet will be sent right away. */
+	public void reset() {
+		mTokens = mBurst;
+		mLast = 0;
+	}
+
+	/**
+	 * Takes a packet out of the bucket.
+	 * @param now The current value of {@link System#nanoTime()}
+	 * @param length The length of the packet in bytes
+	 * @return When the packet can be sent, in the time base of {@link System#nanoTime()}
+	 */
+	public long reserve(long now, int length) {
+		long rate = getRate();
+		if (rate<=0) {
+			// Nothing is known about the stream yet
+			mLast = now;
+			return now;
+		}
+		if (mLast != 0 && now>mLast) {
+			mTokens = Math.min(mBurst, mTokens+(now-mLast)*rate/8e9);
+		}
+		mLast = now;
+		mTokens -= length;
+		if (mTokens>=0) return now;
+		// The bucket is in debt, the packet goes when the debt is paid back
+		return now+(long) (-mTokens*8e9/rate);
+	}
+
+}
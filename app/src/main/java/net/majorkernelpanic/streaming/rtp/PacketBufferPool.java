@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package net.majorkernelpanic.streaming.rtp;
+
+/**
+ * Process-wide pool of packet buffers shared by the {@link RtpSocket}s, their 
+ * {@link RtpDestination}s, {@link GopCache}s and {@link RetransmissionHistory}s.
+ * 
+ * Buffers come in a few size classes, a request is served with a buffer of the smallest 
+ * class that is large enough. Nothing is allocated up front: a class grows when it has 
+ * no free buffer left, and keeps at most {@link #setMaxFree(int)} bytes of free buffers 
+ * around, the others are left to the garbage collector.
+ * Each RtpSocket borrows a buffer when the packetizer requests one and gives it back 
+ * as soon as the packet has been sent, so the number of buffers a socket holds is bounded 
+ * by the size of its FIFO (see {@link RtpSocket#setFifoBounds(int, int)}).
+ */
+public class PacketBufferPool {
+
+	public final static String TAG = "PacketBufferPool";
+
+	/** Size classes in bytes. */
+	private final static int[] SIZES = new int[] {32, 128, 512, 1500, 8192, 65536};
+
+	private static final PacketBufferPool sInstance = new PacketBufferPool();
+
+	private final SizeClass[] mClasses;
+	private volatile int mMaxFree = 1024*1024;
+
+	/** Returns the pool shared by the whole process. */
+	public static PacketBufferPool getInstance() {
+		return sInstance;
+	}
+
+	private PacketBufferPool() {
+		mClasses = new SizeClass[SIZES.length];
+		for (int i=0;i<SIZES.length;i++) {
+			mClasses[i] = new SizeClass(SIZES[i]);
+		}
+	}
+
+	/** Sets how many bytes of free buffers each size class keeps around, 1 MB by default. */
+	public void setMaxFree(int bytes) {
+		mMaxFree = bytes;
+	}
+
+	/**
+	 * Returns a buffer of at least <code>size</code> bytes, its content is undefined.
+	 * @throws IllegalArgumentException if <code>size</code> is larger than the largest size class
+	 */
+	public byte[] borrow(int size) {
+		for (SizeClass c : mClasses) {
+			if (c.mSize>=size) return c.borrow();
+		}
+		throw new IllegalArgumentException("No size class for "+size+" bytes");
+	}
+
+	/** Gives a buffer obtained with {@link #borrow(int)} back to the pool. */
+	public void giveBack(byte[] buffer) {
+		for (SizeClass c : mClasses) {
+			if (c.mSize==buffer.length) {
+				c.giveBack(buffer, mMaxFree/c.mSize);
+				return;
+			}
+		}
+	}
+
+	/** Returns the number of bytes currently borrowed from the pool. */
+	public long getBytesInUse() {
+		long sum = 0;
+		for (SizeClass c : mClasses) sum += (long) c.mInUse*c.mSize;
+		return sum;
+	}
+
+	/** Returns the number of bytes held by the free buffers of the pool. */
+	public long getBytesFree() {
+		long sum = 0;
+		for (SizeClass c : mClasses) sum += (long) c.mTop*c.mSize;
+		return sum;
+	}
+
+	/** Returns the highest number of bytes that were borrowed at the same time. */
+	public long getHighWater() {
+		long sum = 0;
+		for (SizeClass c : mClasses) sum += (long) c.mHighWater*c.mSize;
+		return sum;
+	}
+
+	/** Returns one line per size class: size, buffers in use, high-water mark, free buffers and allocations. */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (SizeClass c : mClasses) {
+			synchronized (c) {
+				if (c.mAllocated==0) continue;
+				sb.append(c.mSize).append(" B: in use ").append(c.mInUse)
+				.append(", high-water ").append(c.mHighWater)
+				.append(", free ").append(c.mTop)
+				.append(", allocated ").append(c.mAllocated).append('\n');
+			}
+		}
+		return sb.toString();
+	}
+
+	private static class SizeClass {
+
+		private final int mSize;
+		private byte[][] mFree = new byte[16][];
+		private int mTop = 0, mInUse = 0, mHighWater = 0;
+		private long mAllocated = 0;
+
+		public SizeClass(int size) {
+			mSize = size;
+		}
+
+		public synchronized byte[] borrow() {
+			if (++mInUse>mHighWater) mHighWater = mInUse;
+			if (mTop>0) {
+				byte[] buffer = mFree[--mTop];
+				mFree[mTop] = null;
+				return buffer;
+			}
+			mAllocated++;
+			return new byte[mSize];
+		}
+
+		public synchronized void giveBack(byte[] buffer, int maxFree) {
+			mInUse--;
+			if (mTop>=maxFree) return;
+			if (mTop==mFree.length) {
+				byte[][] free = new byte[Math.min(2*mFree.length, Math.max(maxFree,16))][];
+				System.arraycopy(mFree, 0, free, 0, mTop);
+				mFree = free;
+			}
+			mFree[mTop++] = buffer;
+		}
+
+	}
+
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The packets recently sent by an {@link RtpSocket}, kept to answer the generic NACKs 
+ * of its receivers, see {@link RtpSocket#setRetransmissionMode(int)}.
+ * 
+ * Like the {@link GopCache}, the history takes the buffers of the packets over from the socket 
+ * instead of copying them. They go back to the {@link PacketBufferPool} once older than 
+ * {@link #MAX_AGE}, or when their slot is needed, so the memory held follows the bitrate. 
+ * The sending thread of the socket adds the packets, the threads that receive the RTCP 
+ * packets copy the ones that were lost.
+ */
+class RetransmissionHistory {
+
+	/** Packets held at most, a power of two. */
+	public static final int SIZE = 1024;
+
+	/** Packets sent longer ago than that are not sent again, the receiver gave up on them. */
+	public static final long MAX_AGE = TimeUnit.MILLISECONDS.toNanos(RtpSocket.RETRANSMISSION_WINDOW);
+
+	private static final int MASK = SIZE-1;
+
+	private final PacketBufferPool mPool = PacketBufferPool.getInstance();
+	private final byte[][] mPackets = new byte[SIZE][];
+	private final int[] mLengths = new int[SIZE];
+	private final int[] mSequences = new int[SIZE];
+	private final long[] mTimes = new long[SIZE];
+	// Sequence number of the oldest packet that may still be held, -1 if the history is empty
+	private int mOldest = -1;
+
+	/**
+	 * Takes a packet that has just been sent, the history owns it afterwards.
+	 * @param now When the packet was sent, in the time base of {@link System#nanoTime()}
+	 */
+	public synchronized void add(byte[] packet, int length, long now) {
+		int seq = (packet[2]&0xFF)<<8 | (packet[3]&0xFF);
+		int i = seq&MASK;
+		if (mPackets[i] != null) mPool.giveBack(mPackets[i]);
+		mPackets[i] = packet;
+		mLengths[i] = length;
+		mSequences[i] = seq;
+		mTimes[i] = now;
+		if (mOldest<0 || ((seq-mOldest)&0xFFFF)>=SIZE) {
+			// Everything before has been replaced, or belongs to another run of the stream
+			mOldest = (seq-MASK)&0xFFFF;
+		}
+		// Gives the packets that are too old back to the pool
+		while (mOldest != seq) {
+			int j = mOldest&MASK;
+			if (mPackets[j] != null && mSequences[j] == mOldest) {
+				if (now-mTimes[j]<=MAX_AGE) break;
+				mPool.giveBack(mPackets[j]);
+				mPackets[j] = null;
+			}
+			mOldest = (mOldest+1)&0xFFFF;
+		}
+	}
+
+	/**
+	 * Copies a packet that is still held.
+	 * @param seq The sequence number of the packet
+	 * @param now The current value of {@link System#nanoTime()}
+	 * @param out Where the packet is copied
+	 * @return The length of the packet, 0 if it is gone, or minus its length if <code>out</code> is too small
+	 */
+	public synchronized int copy(int seq, long now, byte[] out) {
+		int i = seq&MASK;
+		if (mPackets[i] == null || mSequences[i] != seq || now-mTimes[i]>MAX_AGE) return 0;
+		int length = mLengths[i];
+		if (length>out.length) return -length;
+		System.arraycopy(mPackets[i], 0, out, 0, length);
+		return length;
+	}
+
+	/** Gives the packets back to the pool. */
+	public synchronized void clear() {
+		for (int i=0;i<SIZE;i++) {
+			if (mPackets[i] != null) {
+				mPool.giveBack(mPackets[i]);
+				mPackets[i] = null;
+			}
+		}
+		mOldest = -1;
+	}
+
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free single-producer/single-consumer sequencer for a ring of buffers.
+ *
+ * The producer owns the slot at {@link #next()} until it calls {@link #publish()},
+ * the consumer owns every slot between {@link #consumed()} and {@link #published()}
+ * until it calls {@link #release(long)}. Slots are found with <code>sequence % capacity</code>.
+ * The producer may lower the number of slots in flight below the capacity with {@link #setLimit(int)}.
+ * Nothing is allocated and no lock is taken on the fast path: both sides spin a little,
+ * then yield, then park until the other side unparks them.
+ */
+class RingSequencer {
+
+	/** Busy spinning only makes sense when the other side runs on another core. */
+	private static final int SPIN_TRIES = Runtime.getRuntime().availableProcessors()>1 ? 200 : 0;
+	private static final int YIELD_TRIES = 10;
+	private static final long PARK_NANOS = 1000000L;
+
+	private final int mCapacity;
+	// Only used by the producer
+	private int mLimit;
+
+	// Written by the producer, read by the consumer
+	private final Sequence mPublished = new Sequence();
+	// Written by the consumer, read by the producer
+	private final Sequence mReleased = new Sequence();
+
+	private volatile boolean mProducerWaiting = false, mConsumerWaiting = false;
+	private volatile Thread mProducer, mConsumer;
+
+	// Local copies of the cursor of the other side, avoids a volatile read per slot
+	private long mCachedReleased = 0, mCachedPublished = 0;
+
+	public RingSequencer(int capacity) {
+		mCapacity = capacity;
+		mLimit = capacity;
+	}
+
+	public int capacity() {
+		return mCapacity;
+	}
+
+	/** Maximum number of slots in flight. */
+	public int limit() {
+		return mLimit;
+	}
+
+	/** 
+	 * Called by the producer, sets the maximum number of slots in flight. 
+	 * Lowering it never takes slots away from the consumer, the producer just 
+	 * waits longer in {@link #claim()}.
+	 */
+	public void setLimit(int limit) {
+		mLimit = Math.max(1, Math.min(limit, mCapacity));
+	}
+
+	/** Sequence of the slot the producer is currently filling. */
+	public long next() {
+		return mPublished.get();
+	}
+
+	/** Number of slots published so far. */
+	public long published() {
+		return mPublished.get();
+	}
+
+	/** Number of slots the consumer has given back so far. */
+	public long consumed() {
+		return mReleased.get();
+	}
+
+	/** Returns the number of slots waiting to be consumed. */
+	public int size() {
+		return (int) (mPublished.get()-mReleased.get());
+	}
+
+	/**
+	 * Called by the producer, blocks until the slot at {@link #next()} is free.
+	 * @return The sequence of the slot that can be filled
+	 */
+	public long claim() throws InterruptedException {
+		long seq = mPublished.get();
+		if (seq-mCachedReleased < mLimit) return seq;
+		mCachedReleased = mReleased.get();
+		if (seq-mCachedReleased < mLimit) return seq;
+		int tries = 0;
+		while (true) {
+			if (Thread.interrupted()) throw new InterruptedException();
+			mCachedReleased = mReleased.get();
+			if (seq-mCachedReleased < mLimit) return seq;
+			if (tries<SPIN_TRIES) {
+				tries++;
+			} else if (tries<SPIN_TRIES+YIELD_TRIES) {
+				tries++;
+				Thread.yield();
+			} else {
+				mProducer = Thread.currentThread();
+				mProducerWaiting = true;
+				if (seq-mReleased.get() >= mLimit) LockSupport.parkNanos(this, PARK_NANOS);
+				mProducerWaiting = false;
+			}
+		}
+	}
+
+	/** Called by the producer, hands the slot at {@link #next()} over to the consumer. */
+	public void publish() {
+		mPublished.set(mPublished.get()+1);
+		if (mConsumerWaiting) LockSupport.unpark(mConsumer);
+	}
+
+	/**
+	 * Called by the consumer, blocks until at least one slot has been published.
+	 * @param timeout Maximum time to wait in nanoseconds
+	 * @return The number of slots ready to be consumed, 0 if the timeout expired
+	 */
+	public int await(long timeout) throws InterruptedException {
+		long seq = mReleased.get();
+		if (mCachedPublished>seq) return (int) (mCachedPublished-seq);
+		mCachedPublished = mPublished.get();
+		if (mCachedPublished>seq) return (int) (mCachedPublished-seq);
+		long deadline = System.nanoTime()+timeout;
+		int tries = 0;
+		while (true) {
+			if (Thread.interrupted()) throw new InterruptedException();
+			mCachedPublished = mPublished.get();
+			if (mCachedPublished>seq) return (int) (mCachedPublished-seq);
+			if (tries<SPIN_TRIES) {
+				tries++;
+			} else if (tries<SPIN_TRIES+YIELD_TRIES) {
+				tries++;
+				Thread.yield();
+			} else {
+				long left = deadline-System.nanoTime();
+				if (left<=0) return 0;
+				mConsumer = Thread.currentThread();
+				mConsumerWaiting = true;
+				if (mPublished.get()<=seq) LockSupport.parkNanos(this, left);
+				mConsumerWaiting = false;
+			}
+		}
+	}
+
+	/** Called by the consumer, gives <code>count</code> slots back to the producer. */
+	public void release(long count) {
+		mReleased.set(mReleased.get()+count);
+		if (mProducerWaiting) LockSupport.unpark(mProducer);
+	}
+
+	/**
+	 * A volatile long padded on both sides so that the cursor of the
+	 * producer and the one of the consumer never share a cache line.
+	 */
+	static class LhsPadding {
+		protected long p1, p2, p3, p4, p5, p6, p7;
+	}
+
+	static class Value extends LhsPadding {
+		protected volatile long value;
+	}
+
+	static final class Sequence extends Value {
+		protected long p9, p10, p11, p12, p13, p14, p15;
+
+		public long get() {
+			return value;
+		}
+
+		public void set(long v) {
+			value = v;
+		}
+	}
+
+}
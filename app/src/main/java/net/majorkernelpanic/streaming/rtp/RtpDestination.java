@@ -0,0 +1,469 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.majorkernelpanic.streaming.rtcp.RtcpReceiver;
+import net.majorkernelpanic.streaming.rtcp.SenderReport;
+import android.util.Log;
+
+/**
+ * An additional receiver of the packets of an {@link RtpSocket}, see {@link RtpSocket#addDestination(RtpDestination)}.
+ * 
+ * Each destination looks like an independent RTP session to its receiver: the SSRC is its own, 
+ * and the sequence numbers and the timestamps of the packets are shifted by random offsets. 
+ * The packets of the RtpSocket are never modified, the header is rewritten while the packet 
+ * is copied to the {@link UdpChannel} or written to the OutputStream. 
+ * Each destination also sends its own RTCP sender reports.
+ * 
+ * Packets are copied in a bounded queue and sent by a thread of their own, so that a receiver 
+ * that does not keep up never slows down the RtpSocket nor the other destinations. 
+ * When the queue is full, what happens is decided by the slow consumer policy, 
+ * see {@link #setSlowConsumerPolicy(int)}.
+ */
+public class RtpDestination implements Runnable {
+
+	public final static String TAG = "RtpDestination";
+
+	/** 
+	 * When the queue is full, the packets waiting in the queue are dropped and so are 
+	 * the next ones until a key frame (see {@link RtpSocket#markSyncPoint()}) comes.
+	 */
+	public final static int SLOW_SKIP_TO_KEYFRAME = 0x00;
+
+	/**
+	 * Packets marked with {@link RtpSocket#markNonReference()} are dropped as soon as the queue 
+	 * is half full, the receiver gets a lower frame rate. When the queue is full anyway, 
+	 * the destination skips to the next key frame like with {@link #SLOW_SKIP_TO_KEYFRAME}.
+	 */
+	public final static int SLOW_DOWNGRADE = 0x01;
+
+	/**
+	 * Like {@link #SLOW_SKIP_TO_KEYFRAME}, but if the queue stays full for longer than 
+	 * the delay set with {@link #setDisconnectDelay(long)} the destination is removed from 
+	 * the RtpSocket and {@link Callback#onSlowConsumer(RtpDestination)} is called.
+	 */
+	public final static int SLOW_DISCONNECT = 0x02;
+
+	/** Flags passed along with the packets by the RtpSocket. */
+	static final int FLAG_NON_REFERENCE = 0x01, FLAG_SYNC_POINT = 0x02;
+
+	private static final int QUEUE_SIZE = 512;
+
+	public interface Callback {
+		/** 
+		 * Called by the thread of the RtpSocket when a destination is removed because 
+		 * of the {@link RtpDestination#SLOW_DISCONNECT} policy. The destination still 
+		 * needs to be closed with {@link RtpDestination#close()}.
+		 */
+		void onSlowConsumer(RtpDestination destination);
+	}
+
+	private final int mSsrc, mSeqOffset, mTimestampOffset;
+	private final boolean mRewrite;
+	private final SenderReport mReport;
+
+	private final InetAddress mAddress;
+	private final int mRtpPort, mRtcpPort;
+	private UdpChannel mChannel;
+	private ByteBuffer mBuffer;
+
+	private final OutputStream mOutputStream;
+	private final byte[] mTcpHeader, mHeader;
+
+	private volatile boolean mClosed = false;
+	private Callback mCallback = null;
+
+	// The queue, the RtpSocket is the producer and mThread the consumer
+	private final RingSequencer mQueue = new RingSequencer(QUEUE_SIZE);
+	private final PacketBufferPool mPool = PacketBufferPool.getInstance();
+	private final byte[][] mPackets = new byte[QUEUE_SIZE][];
+	private final int[] mLengths = new int[QUEUE_SIZE];
+	private final long[] mTimestamps = new long[QUEUE_SIZE];
+	private final int[] mShifts = new int[QUEUE_SIZE];
+	private volatile Thread mThread;
+
+	// Slow consumer policy, mSkipping and mFullSince are only used by the RtpSocket
+	private volatile int mPolicy = SLOW_SKIP_TO_KEYFRAME;
+	private volatile long mDisconnectDelay = 5000;
+	private boolean mSkipping = false;
+	private long mFullSince = 0;
+	// Only used by the RtpSocket, true once the destination got the GOP cache of the socket
+	boolean mJoined = false;
+	// Packets before this sequence of the queue must be dropped by the consumer
+	private volatile long mFlushTo = 0;
+	private volatile long mSent = 0, mDropped = 0, mDroppedNonReference = 0, mSkips = 0;
+
+	/**
+	 * Packets will be sent over UDP.
+	 * @param address The address of the receiver
+	 * @param rtpPort Destination port that will be used for RTP
+	 * @param rtcpPort Destination port that will be used for RTCP
+	 */
+	public RtpDestination(InetAddress address, int rtpPort, int rtcpPort) throws IOException {
+		this(address, rtpPort, rtcpPort, null, (byte) 0, true);
+		mChannel = UdpChannel.acquire(address, rtpPort);
+		mBuffer = ByteBuffer.allocateDirect(RtpSocket.MTU);
+		mReport.setUdpMode(RtpSocket.UDP_CHANNEL);
+		mReport.setDestination(address, rtcpPort);
+	}
+
+	/**
+	 * Packets will be interleaved in an RTSP connection.
+	 * @param outputStream The output stream of the RTSP connection
+	 * @param channelIdentifier The channel used for RTP, the next one is used for RTCP
+	 */
+	public RtpDestination(OutputStream outputStream, byte channelIdentifier) {
+		this(null, 0, 0, outputStream, channelIdentifier, true);
+		mReport.setOutputStream(outputStream, (byte) (channelIdentifier+1));
+	}
+
+	/** 
+	 * Used by the RtpSocket for its own interleaved transport: 
+	 * packets are written as they are and the RtpSocket sends the sender reports.
+	 */
+	RtpDestination(OutputStream outputStream, byte channelIdentifier, boolean rewrite) {
+		this(null, 0, 0, outputStream, channelIdentifier, rewrite);
+	}
+
+	private RtpDestination(InetAddress address, int rtpPort, int rtcpPort, OutputStream outputStream, byte channelIdentifier, boolean rewrite) {
+		Random random = new Random();
+		mRewrite = rewrite;
+		mSsrc = random.nextInt();
+		mSeqOffset = rewrite ? random.nextInt(0x10000) : 0;
+		mTimestampOffset = rewrite ? random.nextInt() : 0;
+		mAddress = address;
+		mRtpPort = rtpPort;
+		mRtcpPort = rtcpPort;
+		mOutputStream = outputStream;
+		mTcpHeader = new byte[] {'$',channelIdentifier,0,0};
+		mHeader = new byte[RtpSocket.RTP_HEADER_LENGTH];
+		if (rewrite) {
+			mReport = new SenderReport();
+			mReport.setSSRC(mSsrc);
+		} else {
+			mReport = null;
+		}
+	}
+
+	public int getSSRC() {
+		return mSsrc;
+	}
+
+	public InetAddress getAddress() {
+		return mAddress;
+	}
+
+	/** Returns the channel used for RTP when the packets are interleaved in an RTSP connection, -1 otherwise. */
+	public int getChannel() {
+		return mOutputStream != null ? mTcpHeader[1]&0xFF : -1;
+	}
+
+	/** Returns the parser of the RTCP packets sent back by the receiver, null if the destination does not send reports. */
+	public RtcpReceiver getRtcpReceiver() {
+		return mReport != null ? mReport.getReceiver() : null;
+	}
+
+	/** Returns the destination ports used for RTP and RTCP. */
+	public int[] getDestinationPorts() {
+		return new int[] {mRtpPort, mRtcpPort};
+	}
+
+	/** Returns the local ports used for RTP and RTCP. */
+	public int[] getLocalPorts() {
+		return new int[] {
+			mChannel != null ? mChannel.getLocalPort() : 0,
+			mReport != null ? mReport.getLocalPort() : 0
+		};
+	}
+
+	/**
+	 * Sets what happens when the receiver does not keep up with the stream.
+	 * @param policy Can be {@link #SLOW_SKIP_TO_KEYFRAME} (default), {@link #SLOW_DOWNGRADE} 
+	 * or {@link #SLOW_DISCONNECT}
+	 */
+	public void setSlowConsumerPolicy(int policy) {
+		mPolicy = policy;
+	}
+
+	public int getSlowConsumerPolicy() {
+		return mPolicy;
+	}
+
+	/** How long the queue may stay full with {@link #SLOW_DISCONNECT}, in ms, 5 seconds by default. */
+	public void setDisconnectDelay(long delay) {
+		mDisconnectDelay = delay;
+	}
+
+	public void setCallback(Callback callback) {
+		mCallback = callback;
+	}
+
+	/** Returns the number of packets waiting to be sent. */
+	public int getQueueDepth() {
+		return mQueue.size();
+	}
+
+	/** Returns the number of packets sent to the receiver. */
+	public long getSentPackets() {
+		return mSent;
+	}
+
+	/** Returns the number of packets dropped because the receiver did not keep up, including {@link #getDroppedNonReference()}. */
+	public long getDroppedPackets() {
+		return mDropped;
+	}
+
+	/** Returns the number of packets dropped by the {@link #SLOW_DOWNGRADE} policy. */
+	public long getDroppedNonReference() {
+		return mDroppedNonReference;
+	}
+
+	/** Returns how many times the destination had to skip to the next key frame. */
+	public long getSkipCount() {
+		return mSkips;
+	}
+
+	/**
+	 * Called by the sending thread of the RtpSocket, never blocks.
+	 * @param packet The packet, it is copied
+	 * @param length The length of the packet
+	 * @param rtpts The RTP timestamp of the packet, used for the sender reports
+	 * @param flags {@link #FLAG_NON_REFERENCE} and {@link #FLAG_SYNC_POINT}
+	 * @return False if the destination must be removed from the RtpSocket
+	 */
+	boolean offer(byte[] packet, int length, long rtpts, int flags) {
+		return offer(packet, length, rtpts, flags, 0);
+	}
+
+	/** 
+	 * Returns how many packets can be offered at once without filling half of the queue, 
+	 * beyond which the slow consumer policy may start dropping packets.
+	 */
+	int getBurstRoom() {
+		return Math.max(0, QUEUE_SIZE/2-mQueue.size());
+	}
+
+	/**
+	 * Same as {@link #offer(byte[], int, long, int)}, used for the packets of the {@link GopCache}.
+	 * @param shift Added to the timestamp of the packet
+	 */
+	boolean offer(byte[] packet, int length, long rtpts, int flags, int shift) {
+		if (mClosed) return false;
+		int depth = mQueue.size();
+		boolean full = depth>=QUEUE_SIZE;
+		if (full) {
+			long now = System.nanoTime();
+			if (mFullSince == 0) {
+				mFullSince = now;
+			} else if (mPolicy == SLOW_DISCONNECT && now-mFullSince>TimeUnit.MILLISECONDS.toNanos(mDisconnectDelay)) {
+				Log.w(TAG, "Removing "+this+", it did not keep up with the stream for "+mDisconnectDelay+" ms");
+				mClosed = true;
+				Callback callback = mCallback;
+				if (callback != null) callback.onSlowConsumer(this);
+				return false;
+			}
+		} else if (depth<QUEUE_SIZE/2) {
+			mFullSince = 0;
+		}
+		if (mSkipping) {
+			if ((flags&FLAG_SYNC_POINT) == 0 || full) {
+				mDropped++;
+				return true;
+			}
+			mSkipping = false;
+		}
+		if (mChannel != null && length>RtpSocket.MTU-28) {
+			// Packetized for an interleaved receiver, it does not fit in a datagram: wait for the next sync point
+			mSkipping = true;
+			mDropped++;
+			return true;
+		}
+		if (full) {
+			// What is in the queue is useless without the packet, the consumer flushes it
+			mFlushTo = mQueue.published();
+			mSkipping = true;
+			mSkips++;
+			mDropped++;
+			return true;
+		}
+		if (mPolicy == SLOW_DOWNGRADE && (flags&FLAG_NON_REFERENCE) != 0 && depth>=QUEUE_SIZE/2) {
+			mDropped++;
+			mDroppedNonReference++;
+			return true;
+		}
+		int i = (int) (mQueue.next()%QUEUE_SIZE);
+		mPackets[i] = mPool.borrow(length);
+		System.arraycopy(packet, 0, mPackets[i], 0, length);
+		mLengths[i] = length;
+		mTimestamps[i] = rtpts;
+		mShifts[i] = shift;
+		// Under the lock with which run() decides to exit on an empty queue, so that the packet is never left behind
+		synchronized (mQueue) {
+			mQueue.publish();
+			if (mThread == null) {
+				mThread = new Thread(this, "RtpDestination "+this);
+				mThread.start();
+			}
+		}
+		return true;
+	}
+
+	/** Sends the packets of the queue, the thread exits when the queue stays empty for a while. */
+	@Override
+	public void run() {
+		try {
+			while (!mClosed) {
+				int n = mQueue.await(TimeUnit.SECONDS.toNanos(4));
+				if (n == 0) {
+					// Decided under the lock with which offer() publishes, a packet published afterwards starts a new thread
+					synchronized (mQueue) {
+						if (mQueue.size() == 0 && !mClosed) {
+							mThread = null;
+							return;
+						}
+					}
+					continue;
+				}
+				long seq = mQueue.consumed();
+				for (int i=0;i<n;i++) {
+					int j = (int) ((seq+i)%QUEUE_SIZE);
+					if (!mClosed && seq+i>=mFlushTo) {
+						try {
+							send(mPackets[j], mLengths[j], mTimestamps[j], mShifts[j]);
+							mSent++;
+						} catch (IOException e) {
+							Log.e(TAG, "Could not send to "+this+": "+e.getMessage());
+						}
+					} else {
+						mDropped++;
+					}
+					mPool.giveBack(mPackets[j]);
+					mPackets[j] = null;
+					mQueue.release(1);
+				}
+			}
+		} catch (InterruptedException ignore) {}
+		if (mClosed) {
+			// Gives what is left in the queue back to the pool
+			for (long seq=mQueue.consumed();seq<mQueue.published();seq++) {
+				int j = (int) (seq%QUEUE_SIZE);
+				mPool.giveBack(mPackets[j]);
+				mPackets[j] = null;
+			}
+		}
+		synchronized (mQueue) {
+			mThread = null;
+		}
+	}
+
+	/** Returns the sequence number a packet had in the RtpSocket, from the one the receiver got. */
+	int toSourceSequence(int seq) {
+		return (seq-mSeqOffset)&0xFFFF;
+	}
+
+	/** 
+	 * Sends again a packet the receiver reported lost, called by the thread that got the NACK. 
+	 * @param packet The packet as it was sent by the RtpSocket
+	 */
+	void retransmit(byte[] packet, int length) throws IOException {
+		write(packet, length, 0);
+	}
+
+	/**
+	 * Called by the thread of the destination.
+	 * @param packet The packet, its header is left untouched
+	 * @param length The length of the packet
+	 * @param rtpts The RTP timestamp of the packet, used for the sender reports
+	 * @param shift Added to the timestamp of the packet
+	 */
+	private synchronized void send(byte[] packet, int length, long rtpts, int shift) throws IOException {
+		if (mClosed) return;
+		write(packet, length, shift);
+		if (mReport != null) mReport.update(length, rtpts+shift+(mTimestampOffset&0xFFFFFFFFL));
+	}
+
+	/** Rewrites the header while the packet is written. */
+	private synchronized void write(byte[] packet, int length, int shift) throws IOException {
+		if (mClosed) return;
+		int seq = ((packet[2]&0xFF)<<8 | (packet[3]&0xFF))+mSeqOffset;
+		int ts = ((packet[4]&0xFF)<<24 | (packet[5]&0xFF)<<16 | (packet[6]&0xFF)<<8 | (packet[7]&0xFF))+mTimestampOffset+shift;
+		if (mChannel != null) {
+			if (length>mBuffer.capacity()) mBuffer = ByteBuffer.allocateDirect(length);
+			mBuffer.clear();
+			mBuffer.put(packet, 0, length);
+			mBuffer.putShort(2, (short) seq);
+			mBuffer.putInt(4, ts);
+			mBuffer.putInt(8, mSsrc);
+			mBuffer.flip();
+			mChannel.write(mBuffer);
+		} else {
+			byte[] header = packet;
+			if (mRewrite) {
+				header = mHeader;
+				System.arraycopy(packet, 0, header, 0, 2);
+				setInt(header, seq, 2, 4);
+				setInt(header, ts, 4, 8);
+				setInt(header, mSsrc, 8, 12);
+			}
+			synchronized (mOutputStream) {
+				mTcpHeader[2] = (byte) (length>>8);
+				mTcpHeader[3] = (byte) (length&0xFF);
+				mOutputStream.write(mTcpHeader);
+				mOutputStream.write(header, 0, RtpSocket.RTP_HEADER_LENGTH);
+				mOutputStream.write(packet, RtpSocket.RTP_HEADER_LENGTH, length-RtpSocket.RTP_HEADER_LENGTH);
+			}
+		}
+	}
+
+	/** 
+	 * Stops sending packets and releases the sockets. Packets still in the queue 
+	 * are given back to the pool by the thread of the destination when it exits.
+	 */
+	public void close() {
+		mClosed = true;
+		synchronized (this) {
+			if (mChannel != null) {
+				mChannel.release();
+				mChannel = null;
+			}
+			if (mReport != null) mReport.close();
+		}
+	}
+
+	private static void setInt(byte[] buffer, long n, int begin, int end) {
+		for (end--; end >= begin; end--) {
+			buffer[end] = (byte) (n % 256);
+			n >>= 8;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return mAddress != null ? mAddress.getHostAddress()+":"+mRtpPort : "interleaved:"+mTcpHeader[1];
+	}
+
+}
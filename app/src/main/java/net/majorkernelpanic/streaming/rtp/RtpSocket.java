@@ -25,9 +25,16 @@ import java.io.OutputStream;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.MulticastSocket;
-import java.util.concurrent.Semaphore;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
+import net.majorkernelpanic.streaming.rtcp.ReceiverStats;
+import net.majorkernelpanic.streaming.rtcp.RtcpReceiver;
 import net.majorkernelpanic.streaming.rtcp.SenderReport;
 import android.os.SystemClock;
 import android.util.Log;
@@ -37,6 +44,8 @@ import android.util.Log;
  * It implements a buffering mechanism, relying on a FIFO of buffers and a Thread.
  * That way, if a packetizer tries to send many packets too quickly, the FIFO will
  * grow and packets will be sent one by one smoothly.
+ * The FIFO is a lock-free single-producer/single-consumer ring (see {@link RingSequencer}):
+ * the packetizer thread is the producer and the thread of the RtpSocket is the consumer.
  */
 public class RtpSocket implements Runnable {
 
@@ -47,28 +56,133 @@ public class RtpSocket implements Runnable {
 	
 	/** Use this to use TCP for the transport protocol. */
 	public final static int TRANSPORT_TCP = 0x01;	
+
+	/** UDP packets are sent one by one with a {@link MulticastSocket}. */
+	public final static int UDP_SOCKET = 0x00;
+
+	/** 
+	 * UDP packets are sent with a {@link UdpChannel} shared with the other sockets 
+	 * that stream to the same destination, all the packets waiting in the FIFO are 
+	 * sent back-to-back every time the thread of the socket wakes up.
+	 */
+	public final static int UDP_CHANNEL = 0x01;
 	
+	/** When the FIFO is full, {@link #requestBuffer()} waits until a packet has been sent. */
+	public final static int OVERFLOW_BLOCK = 0x00;
+
+	/** When the FIFO is full, the oldest frame waiting in the FIFO is dropped. */
+	public final static int OVERFLOW_DROP_OLDEST_FRAME = 0x01;
+
+	/** 
+	 * When the FIFO is full, the packets marked with {@link #markNonReference()} waiting 
+	 * in the FIFO are dropped, if there are none, the oldest frame is dropped. 
+	 */
+	public final static int OVERFLOW_DROP_NON_REFERENCE = 0x02;
+
+	/** Packets reported lost by the receivers are not sent again. */
+	public final static int RETRANSMIT_OFF = 0x00;
+
+	/** Packets reported lost by the receivers are sent again as they were, receivers take them for late packets. */
+	public final static int RETRANSMIT_IN_STREAM = 0x01;
+
+	/** 
+	 * Packets reported lost by the receiver are sent again in an RTX stream (RFC 4588), with the payload 
+	 * type {@link #RTX_PAYLOAD_TYPE} and an SSRC of its own, see {@link #getRtxSSRC()}. The receiver 
+	 * must know about it from the session description. Only for the destination set with 
+	 * {@link #setDestination(InetAddress, int, int)}, an {@link RtpDestination} gets the packets in-stream.
+	 */
+	public final static int RETRANSMIT_RTX = 0x02;
+
+	/** The payload type of the RTX stream, its packets carry those of payload type 96. */
+	public static final int RTX_PAYLOAD_TYPE = 97;
+
+	/** Packets are sent again for that long after they were first sent, in ms. */
+	public static final int RETRANSMISSION_WINDOW = 1000;
+
+	/** The payload type of the stream of parity packets (ULPFEC, RFC 5109), see {@link #setFecGroupSize(int)}. */
+	public static final int FEC_PAYLOAD_TYPE = 98;
+
 	public static final int RTP_HEADER_LENGTH = 12;
+
+	/** Sent packets are given back to the packetizer by batches of at most that many packets. */
+	private static final int BATCH_SIZE = 32;
 	public static final int MTU = 1300;
 
+	/** Largest packet with the interleaved transport, the length of a packet is coded on 16 bits. */
+	public static final int MAX_TCP_PACKET_SIZE = 65535;
+
+	private static int sDefaultUdpMode = UDP_SOCKET;
+	private static int sDefaultRetransmissionMode = RETRANSMIT_IN_STREAM;
+	private static TransmitScheduler sDefaultScheduler = null;
+	private static int sDefaultMinBuffers = 64, sDefaultMaxBuffers = 300;
+
 	private MulticastSocket mSocket;
-	private DatagramPacket[] mPackets;
+	private UdpChannel mChannel = null;
+	private ByteBuffer mChannelBuffer = null;
+	private InetAddress mDestination = null;
+	private volatile RtpDestination[] mDestinations = new RtpDestination[0];
+	private DatagramPacket mPacket;
+	private PacketBufferPool mPool;
 	private byte[][] mBuffers;
-	private long[] mTimestamps;
+	private int[] mLengths;
+	private long[] mTimestamps, mCommitTimes;
+	private boolean[] mNonReference, mSyncPoint;
 
 	private SenderReport mReport;
 	
-	private Semaphore mBufferRequested, mBufferCommitted;
+	private RingSequencer mFifo;
 	private Thread mThread;
+	private TransmitScheduler mScheduler;
+	private boolean mRegistered = false;
+	private Pacer mPacer;
+	private long mRateUpdate = 0;
+	private volatile long mQueueDelay = 0;
+	// Used when a TransmitScheduler sends the packets, only touched by its thread
+	private boolean mPending = false, mIdle = true;
+	private long mDue, mLastActive;
 
-	private int mTransport;
+	private int mTransport, mUdpMode, mTTL = -1;
+	// Set by the user, 0 if it depends on the transport
+	private volatile int mMaxPacketSize = 0;
 	private long mCacheSize;
 	private long mClock = 0;
 	private long mOldTimestamp = 0;
 	private int mSsrc, mSeq = 0, mPort = -1;
 	private int mBufferCount, mBufferIn, mBufferOut;
 	private int mCount = 0;
-	private byte mTcpHeader[];
+	// Interleaved transport, the packets are written by the thread of the destination
+	private volatile RtpDestination mInterleaved = null;
+	// Until a packetizer calls markSyncPoint(), every frame is a sync point
+	private volatile boolean mMarksSyncPoints = false;
+	private boolean mFrameStart = true;
+	private volatile boolean mGopCacheEnabled = false;
+	// Only used by the thread that sends the packets
+	private GopCache mGopCache = null;
+
+	// Answers the NACKs of the receivers, the threads that receive the RTCP packets send the packets again
+	private final RetransmissionHistory mHistory = new RetransmissionHistory();
+	private volatile int mRetransmissionMode;
+	private final int mRtxSsrc;
+	private int mRtxSeq;
+	// Updated by the threads that receive the NACKs of the destinations
+	private final AtomicLong mRetransmitted = new AtomicLong(), mSuppressed = new AtomicLong();
+
+	private volatile KeyFrameListener mKeyFrameListener = null;
+
+	// Parity packets, the encoder is only used by the thread that sends the packets
+	private volatile int mFecGroupSize = 0;
+	private volatile boolean mAdaptiveFec = false;
+	private FecEncoder mFec = null;
+	private final int mFecSsrc;
+	private long mFecUpdate = 0;
+	private volatile long mFecPackets = 0;
+
+	// Size of the FIFO and what happens when it is full
+	private volatile int mMinBuffers, mMaxBuffers, mOverflowPolicy = OVERFLOW_BLOCK;
+	private volatile int mDropRequests = 0;
+	private int mDropsHandled = 0, mHighWater = 0;
+	private long mResizeCheck = 0;
+	private volatile long mBlockedCount = 0, mDroppedFrames = 0, mDroppedPackets = 0, mDroppedNonReference = 0;
 	protected OutputStream mOutputStream = null;
 	
 	private AverageBitrate mAverageBitrate;
@@ -80,39 +194,36 @@ public class RtpSocket implements Runnable {
 	public RtpSocket() {
 		
 		mCacheSize = 0;
-		mBufferCount = 300; // TODO: readjust that when the FIFO is full 
+		mBufferCount = sDefaultMaxBuffers;
+		mMinBuffers = Math.min(sDefaultMinBuffers, mBufferCount);
+		mMaxBuffers = mBufferCount;
+		// Buffers are borrowed from the pool when the packetizer needs them
+		mPool = PacketBufferPool.getInstance();
 		mBuffers = new byte[mBufferCount][];
-		mPackets = new DatagramPacket[mBufferCount];
+		mLengths = new int[mBufferCount];
+		mPacket = new DatagramPacket(new byte[0], 0);
+		mTimestamps = new long[mBufferCount];
+		mCommitTimes = new long[mBufferCount];
+		mNonReference = new boolean[mBufferCount];
+		mSyncPoint = new boolean[mBufferCount];
+		mPacer = new Pacer();
+		mFifo = new RingSequencer(mBufferCount);
+		mFifo.setLimit(mMinBuffers);
 		mReport = new SenderReport();
 		mAverageBitrate = new AverageBitrate();
 		mTransport = TRANSPORT_UDP;
-		mTcpHeader = new byte[] {'$',0,0,0};
+		mUdpMode = sDefaultUdpMode;
+		mReport.setUdpMode(mUdpMode);
+		mReport.getReceiver().setCallback(new Feedback(null));
+		mRetransmissionMode = sDefaultRetransmissionMode;
+		Random random = new Random();
+		mRtxSsrc = random.nextInt();
+		mRtxSeq = random.nextInt(0x10000);
+		mFecSsrc = random.nextInt();
+		mScheduler = sDefaultScheduler;
 		
 		resetFifo();
 
-		for (int i=0; i<mBufferCount; i++) {
-
-			mBuffers[i] = new byte[MTU];
-			mPackets[i] = new DatagramPacket(mBuffers[i], 1);
-
-			/*							     Version(2)  Padding(0)					 					*/
-			/*									 ^		  ^			Extension(0)						*/
-			/*									 |		  |				^								*/
-			/*									 | --------				|								*/
-			/*									 | |---------------------								*/
-			/*									 | ||  -----------------------> Source Identifier(0)	*/
-			/*									 | ||  |												*/
-			mBuffers[i][0] = (byte) Integer.parseInt("10000000",2);
-
-			/* Payload Type */
-			mBuffers[i][1] = (byte) 96;
-
-			/* Byte 2,3        ->  Sequence Number                   */
-			/* Byte 4,5,6,7    ->  Timestamp                         */
-			/* Byte 8,9,10,11  ->  Sync Source Identifier            */
-
-		}
-
 		try {
 		mSocket = new MulticastSocket();
 		} catch (Exception e) {
@@ -121,28 +232,231 @@ public class RtpSocket implements Runnable {
 		
 	}
 
+	/** 
+	 * The sequence counters of the FIFO are never rewound, the producer might be
+	 * filling a buffer while the sending thread exits. Only the statistics are reset.
+	 */
 	private void resetFifo() {
 		mCount = 0;
-		mBufferIn = 0;
-		mBufferOut = 0;
-		mTimestamps = new long[mBufferCount];
-		mBufferRequested = new Semaphore(mBufferCount);
-		mBufferCommitted = new Semaphore(0);
 		mReport.reset();
 		mAverageBitrate.reset();
+		mPacer.reset();
+		mRateUpdate = 0;
+		if (mGopCache != null) mGopCache.clear();
+		mHistory.clear();
 	}
 	
-	/** Closes the underlying socket. */
-	public void close() {
+	/** Closes the underlying sockets, those of the RTCP reports included. */
+	public synchronized void close() {
+		if (mRegistered) {
+			mScheduler.unregister(this);
+			mRegistered = false;
+		}
 		mSocket.close();
+		mReport.close();
+		closeChannel();
+		if (mInterleaved != null) {
+			mInterleaved.close();
+			mInterleaved = null;
+		}
+	}
+
+	/**
+	 * Sets the scheduler that will send the packets of the RtpSockets created from now on.
+	 * @param scheduler The scheduler, or null (default) to give each RtpSocket its own thread
+	 */
+	public static void setDefaultScheduler(TransmitScheduler scheduler) {
+		sDefaultScheduler = scheduler;
+	}
+
+	/**
+	 * Sets the scheduler that will send the packets of this RtpSocket,
+	 * must be called before the first packet is committed.
+	 * @param scheduler The scheduler, or null to give the RtpSocket its own thread
+	 */
+	public void setScheduler(TransmitScheduler scheduler) {
+		mScheduler = scheduler;
+	}
+
+	/**
+	 * Sets how UDP packets are sent by the RtpSockets created from now on.
+	 * @param mode Can be {@link #UDP_SOCKET} (default) or {@link #UDP_CHANNEL}
+	 */
+	public static void setDefaultUdpMode(int mode) {
+		sDefaultUdpMode = mode;
+	}
+
+	/**
+	 * Sets how the RtpSockets created from now on answer the NACKs of their receivers. 
+	 * The audio packetizers turn it off for their socket, only video streams announce NACKs in their SDP.
+	 * @param mode Can be {@link #RETRANSMIT_OFF}, {@link #RETRANSMIT_IN_STREAM} (default) or {@link #RETRANSMIT_RTX}
+	 */
+	public static void setDefaultRetransmissionMode(int mode) {
+		sDefaultRetransmissionMode = mode;
+	}
+
+	/**
+	 * Sets the bounds of the FIFO of the RtpSockets created from now on, 64 and 300 packets by default.
+	 * The FIFO starts with <code>min</code> packets, doubles when it is full and is halved 
+	 * when it stays mostly empty, but never holds more than <code>max</code> packets.
+	 */
+	public static void setDefaultFifoBounds(int min, int max) {
+		sDefaultMinBuffers = min;
+		sDefaultMaxBuffers = max;
+	}
+
+	/**
+	 * Sets the bounds of the FIFO of this socket, <code>max</code> can not be 
+	 * greater than the one set with {@link #setDefaultFifoBounds(int, int)} 
+	 * when the socket was created.
+	 */
+	public void setFifoBounds(int min, int max) {
+		mMaxBuffers = Math.max(1, Math.min(max, mBufferCount));
+		mMinBuffers = Math.max(1, Math.min(min, mMaxBuffers));
+	}
+
+	/**
+	 * Sets what happens when the FIFO is full and can not grow anymore.
+	 * @param policy Can be {@link #OVERFLOW_BLOCK} (default), {@link #OVERFLOW_DROP_OLDEST_FRAME} 
+	 * or {@link #OVERFLOW_DROP_NON_REFERENCE}
+	 */
+	public void setOverflowPolicy(int policy) {
+		mOverflowPolicy = policy;
+	}
+
+	public int getOverflowPolicy() {
+		return mOverflowPolicy;
+	}
+
+	/** Returns the number of packets the FIFO can currently hold. */
+	public int getFifoSize() {
+		return mFifo.limit();
+	}
+
+	/** Returns how many times {@link #requestBuffer()} had to wait because the FIFO was full. */
+	public long getBlockedCount() {
+		return mBlockedCount;
+	}
+
+	/** Returns the number of frames dropped because the FIFO was full. */
+	public long getDroppedFrames() {
+		return mDroppedFrames;
+	}
+
+	/** Returns the number of packets dropped along with the frames counted by {@link #getDroppedFrames()}. */
+	public long getDroppedPackets() {
+		return mDroppedPackets;
+	}
+
+	/** Returns the number of packets marked with {@link #markNonReference()} dropped because the FIFO was full. */
+	public long getDroppedNonReference() {
+		return mDroppedNonReference;
+	}
+
+	/**
+	 * Sets how UDP packets are sent, takes effect the next 
+	 * time {@link #setDestination(InetAddress, int, int)} is called.
+	 * @param mode Can be {@link #UDP_SOCKET} or {@link #UDP_CHANNEL}
+	 */
+	public void setUdpMode(int mode) {
+		mUdpMode = mode;
+		mReport.setUdpMode(mode);
+	}
+
+	public int getUdpMode() {
+		return mUdpMode;
+	}
+
+	/**
+	 * Sets how the packets that the receivers report lost in generic NACKs (RFC 4585) are sent again. 
+	 * The packets sent during the last {@link #RETRANSMISSION_WINDOW} ms are kept for that. 
+	 * A packet is sent again to the same receiver at most once per round-trip time. 
+	 * Must be set before the session description is made.
+	 * @param mode Can be {@link #RETRANSMIT_OFF}, {@link #RETRANSMIT_IN_STREAM} (default) or {@link #RETRANSMIT_RTX}
+	 */
+	public void setRetransmissionMode(int mode) {
+		mRetransmissionMode = mode;
+		if (mode == RETRANSMIT_OFF) mHistory.clear();
+	}
+
+	public int getRetransmissionMode() {
+		return mRetransmissionMode;
+	}
+
+	/** Returns the SSRC of the RTX stream, see {@link #RETRANSMIT_RTX}. */
+	public int getRtxSSRC() {
+		return mRtxSsrc;
+	}
+
+	/** Returns the number of packets sent again because a receiver reported them lost. */
+	public long getRetransmittedPackets() {
+		return mRetransmitted.get();
+	}
+
+	/** Returns the number of NACKed packets that were not sent again, because they already had been less than a round-trip time ago. */
+	public long getSuppressedRetransmissions() {
+		return mSuppressed.get();
+	}
+
+	/** Told when a receiver of the socket or of one of its destinations asks for a key frame. */
+	public interface KeyFrameListener {
+		/** 
+		 * A receiver sent a PLI or a FIR, called by the thread that got its RTCP packet. 
+		 * The receiver is null when the socket asks on behalf of a destination that joined while 
+		 * the cached GOP was too large to be sent to it, called by the thread that sends the packets then.
+		 */
+		void onKeyFrameRequest(ReceiverStats receiver);
+	}
+
+	/** Sets the listener told when a receiver asks for a key frame, null for none. */
+	public void setKeyFrameListener(KeyFrameListener listener) {
+		mKeyFrameListener = listener;
+	}
+
+	/**
+	 * Sends a parity packet (ULPFEC, RFC 5109) after every group of <code>size</code> packets sent 
+	 * to the destination set with {@link #setDestination(InetAddress, int, int)}: the receiver can 
+	 * rebuild any packet lost in a group without asking for it, the only way to recover losses 
+	 * when nothing comes back from the receivers, with multicast for example. 
+	 * The parity packets have the payload type {@link #FEC_PAYLOAD_TYPE} and an SSRC of their own, 
+	 * see {@link #getFecSSRC()}, the overhead is about 1/size of the bitrate.
+	 * Must be set before the session description is made, can be changed while streaming.
+	 * @param size Between 2 and {@link FecEncoder#MAX_GROUP_SIZE}, 0 to send no parity packets (default)
+	 */
+	public void setFecGroupSize(int size) {
+		mFecGroupSize = size<=0 ? 0 : Math.max(2, Math.min(size, FecEncoder.MAX_GROUP_SIZE));
+	}
+
+	public int getFecGroupSize() {
+		return mFecGroupSize;
+	}
+
+	/** 
+	 * Lets the size of the groups protected by a parity packet follow the fraction lost reported 
+	 * by the receivers: the more losses, the smaller the groups, no parity packets without losses. 
+	 * Until a receiver reports, the size set with {@link #setFecGroupSize(int)} is used.
+	 */
+	public void setAdaptiveFec(boolean enabled) {
+		mAdaptiveFec = enabled;
+	}
+
+	public boolean isAdaptiveFec() {
+		return mAdaptiveFec;
+	}
+
+	/** Returns the SSRC of the stream of parity packets. */
+	public int getFecSSRC() {
+		return mFecSsrc;
+	}
+
+	/** Returns the number of parity packets sent. */
+	public long getFecPacketCount() {
+		return mFecPackets;
 	}
 
 	/** Sets the SSRC of the stream. */
 	public void setSSRC(int ssrc) {
 		this.mSsrc = ssrc;
-		for (int i=0;i<mBufferCount;i++) {
-			setLong(mBuffers[i], ssrc,8,12);
-		}
 		mReport.setSSRC(mSsrc);
 	}
 
@@ -163,19 +477,41 @@ public class RtpSocket implements Runnable {
 	
 	/** Sets the Time To Live of the UDP packets. */
 	public void setTimeToLive(int ttl) throws IOException {
+		mTTL = ttl;
 		mSocket.setTimeToLive(ttl);
+		if (mChannel != null) mChannel.setTimeToLive(ttl);
 	}
 
 	/** Sets the destination address and to which the packets will be sent. */
 	public void setDestination(InetAddress dest, int dport, int rtcpPort) {
 		if (dport != 0 && rtcpPort != 0) {
 			mTransport = TRANSPORT_UDP;
+			mDestination = dest;
 			mPort = dport;
-			for (int i=0;i<mBufferCount;i++) {
-				mPackets[i].setPort(dport);
-				mPackets[i].setAddress(dest);
-			}
+			mPacket.setPort(dport);
+			mPacket.setAddress(dest);
 			mReport.setDestination(dest, rtcpPort);
+			closeChannel();
+			if (mUdpMode == UDP_CHANNEL) openChannel();
+		}
+	}
+
+	private void openChannel() {
+		try {
+			mChannel = UdpChannel.acquire(mDestination, mPort);
+			if (mTTL>=0) mChannel.setTimeToLive(mTTL);
+			if (mChannelBuffer == null) mChannelBuffer = ByteBuffer.allocateDirect(MTU);
+		} catch (IOException e) {
+			// We fall back on the MulticastSocket
+			Log.e(TAG,"Could not open a channel to "+mDestination+":"+mPort+", "+e.getMessage());
+			mChannel = null;
+		}
+	}
+
+	private void closeChannel() {
+		if (mChannel != null) {
+			mChannel.release();
+			mChannel = null;
 		}
 	}
 	
@@ -183,23 +519,123 @@ public class RtpSocket implements Runnable {
 	 * If a TCP is used as the transport protocol for the RTP session,
 	 * the output stream to which RTP packets will be written to must
 	 * be specified with this method.
+	 * Packets are written by a thread of their own (see {@link RtpDestination}), 
+	 * a congested connection makes the stream skip to the next key frame 
+	 * instead of blocking the thread of the socket.
 	 */ 
-	public void setOutputStream(OutputStream outputStream, byte channelIdentifier) {
+	public synchronized void setOutputStream(OutputStream outputStream, byte channelIdentifier) {
 		if (outputStream != null) {
 			mTransport = TRANSPORT_TCP;
 			mOutputStream = outputStream;
-			mTcpHeader[1] = channelIdentifier;
+			if (mInterleaved != null) mInterleaved.close();
+			mInterleaved = new RtpDestination(outputStream, channelIdentifier, false);
 			mReport.setOutputStream(outputStream, (byte) (channelIdentifier+1));
 		}
 	}
 
+	/** Returns the destination used for the interleaved transport, to read its statistics, or null. */
+	public RtpDestination getInterleavedDestination() {
+		return mInterleaved;
+	}
+
 	public int getPort() {
 		return mPort;
 	}
 
+	/** Returns the parser of the RTCP packets sent back to the destination set with {@link #setDestination(InetAddress, int, int)} or {@link #setOutputStream(OutputStream, byte)}. */
+	public RtcpReceiver getRtcpReceiver() {
+		return mReport.getReceiver();
+	}
+
+	/** 
+	 * Returns what the receivers of the socket report in their RTCP packets: 
+	 * the receivers of its own destination and those of each {@link RtpDestination}. 
+	 */
+	public ReceiverStats[] getReceiverStats() {
+		ArrayList<ReceiverStats> stats = new ArrayList<ReceiverStats>();
+		Collections.addAll(stats, mReport.getReceiver().getReceivers());
+		for (RtpDestination destination : mDestinations) {
+			RtcpReceiver receiver = destination.getRtcpReceiver();
+			if (receiver != null) Collections.addAll(stats, receiver.getReceivers());
+		}
+		return stats.toArray(new ReceiverStats[stats.size()]);
+	}
+
+	/**
+	 * Sets the largest packet the packetizer may send, RTP header included, for example 
+	 * after the path MTU to the receiver has been probed.
+	 * @param size The size in bytes, 0 to let it depend on the transport (default), 
+	 * see {@link #getMaxPacketSize()}
+	 */
+	public void setMaxPacketSize(int size) {
+		mMaxPacketSize = size>0 ? Math.max(RTP_HEADER_LENGTH+64, Math.min(size, MAX_TCP_PACKET_SIZE)) : 0;
+	}
+
+	/**
+	 * Returns the largest packet the packetizer may send, RTP header included. 
+	 * Unless set with {@link #setMaxPacketSize(int)}, it is {@link #MAX_TCP_PACKET_SIZE} when the 
+	 * packets are only interleaved in the RTSP connection of the socket, large NAL units then go in a single 
+	 * packet instead of being split in fragments. Otherwise packets must fit in a datagram of {@link #MTU} bytes. 
+	 * As soon as the socket has a {@link RtpDestination}, the limit is the one of UDP even if every destination is 
+	 * interleaved, since packets are cached and replayed to the destinations that join later. A UDP destination 
+	 * skips the larger packets that were sent before it joined, up to the next sync point.
+	 */
+	public int getMaxPacketSize() {
+		int size = mMaxPacketSize;
+		if (size>0) return size;
+		if (mTransport == TRANSPORT_UDP && mDestination != null) return MTU-28;
+		if (mTransport != TRANSPORT_TCP || mDestinations.length>0) return MTU-28;
+		return MAX_TCP_PACKET_SIZE;
+	}
+
+	/**
+	 * Sends the packets to one more destination, with its own SSRC, sequence numbers and timestamps. 
+	 * Packets are still sent to the destination set with {@link #setDestination(InetAddress, int, int)} 
+	 * or {@link #setOutputStream(OutputStream, byte)} if there is one.
+	 */
+	public synchronized void addDestination(RtpDestination destination) {
+		RtpDestination[] destinations = new RtpDestination[mDestinations.length+1];
+		System.arraycopy(mDestinations, 0, destinations, 0, mDestinations.length);
+		destinations[mDestinations.length] = destination;
+		mDestinations = destinations;
+		RtcpReceiver receiver = destination.getRtcpReceiver();
+		if (receiver != null) receiver.setCallback(new Feedback(destination));
+	}
+
+	/** Stops sending packets to a destination added with {@link #addDestination(RtpDestination)}. */
+	public synchronized void removeDestination(RtpDestination destination) {
+		int count = 0;
+		for (RtpDestination d : mDestinations) if (d != destination) count++;
+		if (count == mDestinations.length) return;
+		RtpDestination[] destinations = new RtpDestination[count];
+		for (int i=0,j=0;i<mDestinations.length;i++) {
+			if (mDestinations[i] != destination) destinations[j++] = mDestinations[i];
+		}
+		mDestinations = destinations;
+	}
+
+	/**
+	 * Keeps the packets sent since the last key frame (see {@link #markSyncPoint()}) in memory, 
+	 * and sends them in a burst to each destination added with {@link #addDestination(RtpDestination)}: 
+	 * the receivers that join a running stream can show a picture without waiting for the next key frame. 
+	 * At most {@link GopCache#MAX_BYTES} bytes are kept. Disabled by default.
+	 */
+	public void setGopCacheEnabled(boolean enabled) {
+		mGopCacheEnabled = enabled;
+	}
+
+	/** Returns the number of destinations added with {@link #addDestination(RtpDestination)}. */
+	public int getDestinationCount() {
+		return mDestinations.length;
+	}
+
+	/** 
+	 * Returns the local ports used for RTP and RTCP. With {@link #UDP_CHANNEL} they are 
+	 * only known once {@link #setDestination(InetAddress, int, int)} has been called. 
+	 */
 	public int[] getLocalPorts() {
 		return new int[] {
-			mSocket.getLocalPort(),
+			mChannel != null ? mChannel.getLocalPort() : mSocket.getLocalPort(),
 			mReport.getLocalPort()
 		};
 		
@@ -211,39 +647,141 @@ public class RtpSocket implements Runnable {
 	 * @throws InterruptedException 
 	 **/
 	public byte[] requestBuffer() throws InterruptedException {
-		mBufferRequested.acquire();
-		mBuffers[mBufferIn][1] &= 0x7F;
+		return requestBuffer(MTU);
+	}
+
+	/** 
+	 * Same as {@link #requestBuffer()}, for a packet of up to <code>size</code> bytes, 
+	 * see {@link #getMaxPacketSize()}.
+	 * @throws InterruptedException 
+	 **/
+	public byte[] requestBuffer(int size) throws InterruptedException {
+		resizeFifo();
+		mBufferIn = (int) (mFifo.claim()%mBufferCount);
+		mBuffers[mBufferIn] = borrowBuffer(size);
+		mNonReference[mBufferIn] = false;
+		mSyncPoint[mBufferIn] = false;
 		return mBuffers[mBufferIn];
 	}
 
+	/** 
+	 * Called by the packetizer before the FIFO is claimed: grows the FIFO if it is full, 
+	 * shrinks it if it stayed mostly empty for a while, and applies the overflow policy. 
+	 */
+	private void resizeFifo() {
+		int size = mFifo.size(), limit = mFifo.limit();
+		if (size>mHighWater) mHighWater = size;
+		if (size>=limit) {
+			if (limit<mMaxBuffers) {
+				mFifo.setLimit(Math.min(2*limit, mMaxBuffers));
+			} else if (mOverflowPolicy == OVERFLOW_BLOCK) {
+				mBlockedCount++;
+			} else {
+				// Only the sending thread can touch the packets in the FIFO, it will drop some
+				mDropRequests++;
+				if (mScheduler != null && mRegistered) mScheduler.signal(this);
+			}
+			return;
+		}
+		long now = System.nanoTime();
+		if (now-mResizeCheck>2000000000L) {
+			if (mResizeCheck != 0 && mHighWater<limit/4 && limit>mMinBuffers) {
+				mFifo.setLimit(Math.max(limit/2, mMinBuffers));
+			} else if (limit>mMaxBuffers) {
+				mFifo.setLimit(mMaxBuffers);
+			}
+			mResizeCheck = now;
+			mHighWater = 0;
+		}
+	}
+
+	/** Borrows a buffer from the pool and writes the part of the header that does not change. */
+	private byte[] borrowBuffer(int size) {
+		byte[] buffer = mPool.borrow(size);
+
+		/*							     Version(2)  Padding(0)					 					*/
+		/*									 ^		  ^			Extension(0)						*/
+		/*									 |		  |				^								*/
+		/*									 | --------				|								*/
+		/*									 | |---------------------								*/
+		/*									 | ||  -----------------------> Source Identifier(0)	*/
+		/*									 | ||  |												*/
+		buffer[0] = (byte) 0x80;
+
+		/* Payload Type */
+		buffer[1] = (byte) 96;
+
+		/* Byte 2,3        ->  Sequence Number                   */
+		/* Byte 4,5,6,7    ->  Timestamp                         */
+		/* Byte 8,9,10,11  ->  Sync Source Identifier            */
+		setLong(buffer, mSsrc, 8, 12);
+
+		return buffer;
+	}
+
+	/** Called by the sending thread, gives <code>count</code> packets back to the pool and to the packetizer. */
+	private void release(long from, int count) {
+		for (long seq=from;seq<from+count;seq++) {
+			int i = (int) (seq%mBufferCount);
+			// The buffer may have been taken over by the GOP cache
+			if (mBuffers[i] != null) mPool.giveBack(mBuffers[i]);
+			mBuffers[i] = null;
+		}
+		mFifo.release(count);
+	}
+
 	/** Puts the buffer back into the FIFO without sending the packet. */
 	public void commitBuffer() throws IOException {
 
-		if (mThread == null) {
-			mThread = new Thread(this);
-			mThread.start();
-		}
-		
-		if (++mBufferIn>=mBufferCount) mBufferIn = 0;
-		mBufferCommitted.release();
+		// A zero length tells the sending thread to skip the buffer
+		mLengths[mBufferIn] = 0;
+		mFifo.publish();
+
+		wakeUp();
 
 	}	
 	
 	/** Sends the RTP packet over the network. */
 	public void commitBuffer(int length) throws IOException {
 		updateSequence();
-		mPackets[mBufferIn].setLength(length);
+		mLengths[mBufferIn] = length;
 
 		mAverageBitrate.push(length);
+		mCommitTimes[mBufferIn] = System.nanoTime();
 
-		if (++mBufferIn>=mBufferCount) mBufferIn = 0;
-		mBufferCommitted.release();
+		mFifo.publish();
 
-		if (mThread == null) {
+		wakeUp();
+		
+	}
+
+	/** Starts the thread that sends the packets or tells the scheduler that the FIFO is not empty. */
+	private void wakeUp() {
+		if (mScheduler != null) {
+			if (!mRegistered) {
+				synchronized (this) {
+					mScheduler.register(this);
+					mRegistered = true;
+				}
+			}
+			mScheduler.signal(this);
+		} else if (mThread == null) {
 			mThread = new Thread(this);
 			mThread.start();
-		}		
-		
+		}
+	}
+
+	/** Returns the pacer used when a cache size is set with {@link #setCacheSize(long)}. */
+	public Pacer getPacer() {
+		return mPacer;
+	}
+
+	/** 
+	 * Returns the average time packets spend in the FIFO between {@link #commitBuffer(int)} 
+	 * and the moment they are sent, in ns. This includes the cache and the delay added by the pacer.  
+	 */
+	public long getQueueDelay() {
+		return mQueueDelay;
 	}
 
 	/** Returns an approximation of the bitrate of the RTP stream in bits per second. */
@@ -270,44 +808,60 @@ public class RtpSocket implements Runnable {
 		mBuffers[mBufferIn][1] |= 0x80;
 	}
 
+	/** 
+	 * Tells the socket that nothing else depends on the packet (an H.264 NAL unit with 
+	 * a nal_ref_idc of 0 for instance), it goes first with {@link #OVERFLOW_DROP_NON_REFERENCE}. 
+	 */
+	public void markNonReference() {
+		mNonReference[mBufferIn] = true;
+	}
+
+	/** 
+	 * Tells the socket that a decoder can start decoding the stream with the packet (the first 
+	 * packet of an IDR frame for instance), destinations that fall behind resume from there.
+	 * If it is never called, every packet that follows the marker bit is a sync point.
+	 */
+	public void markSyncPoint() {
+		mSyncPoint[mBufferIn] = true;
+		mMarksSyncPoints = true;
+	}
+
 	/** The Thread sends the packets in the FIFO one by one at a constant rate. */
 	@Override
 	public void run() {
-		Statistics stats = new Statistics(50,3000);
 		try {
 			// Caches mCacheSize milliseconds of the stream in the FIFO.
 			Thread.sleep(mCacheSize);
-			long delta = 0;
-			while (mBufferCommitted.tryAcquire(4,TimeUnit.SECONDS)) {
-				if (mOldTimestamp != 0) {
-					// We use our knowledge of the clock rate of the stream and the difference between two timestamps to
-					// compute the time lapse that the packet represents.
-					if ((mTimestamps[mBufferOut]-mOldTimestamp)>0) {
-						stats.push(mTimestamps[mBufferOut]-mOldTimestamp);
-						long d = stats.average()/1000000;
-						//Log.d(TAG,"delay: "+d+" d: "+(mTimestamps[mBufferOut]-mOldTimestamp)/1000000);
-						// We ensure that packets are sent at a constant and suitable rate no matter how the RtpSocket is used.
-						if (mCacheSize>0) Thread.sleep(d);
-					} else if ((mTimestamps[mBufferOut]-mOldTimestamp)<0) {
-						Log.e(TAG, "TS: "+mTimestamps[mBufferOut]+" OLD: "+mOldTimestamp);
-					}
-					delta += mTimestamps[mBufferOut]-mOldTimestamp;
-					if (delta>500000000 || delta<0) {
-						//Log.d(TAG,"permits: "+mBufferCommitted.availablePermits());
-						delta = 0;
+			int n;
+			while ((n = mFifo.await(TimeUnit.SECONDS.toNanos(4)))>0) {
+				// Everything that was published since the last wake up is sent in one go, 
+				// unless packets are paced, in which case they are given back one by one
+				boolean paced = mCacheSize>0;
+				long seq = mFifo.consumed();
+				int done = 0;
+				for (int i=0;i<n;i++) {
+					if (mDropRequests != mDropsHandled) drop(seq+i);
+					mBufferOut = (int) ((seq+i)%mBufferCount);
+					if (mLengths[mBufferOut]==0) {
+						// The packetizer gave the buffer back without using it, or it was dropped
+						if (paced) release(seq+i, 1);
+						else {
+							// The packetizer may be waiting for it
+							release(seq+done, i+1-done);
+							done = i+1;
+						}
+						continue;
 					}
-				}
-				mReport.update(mPackets[mBufferOut].getLength(), (mTimestamps[mBufferOut]/100L)*(mClock/1000L)/10000L);
-				mOldTimestamp = mTimestamps[mBufferOut];
-				if (mCount++>30) {
-					if (mTransport == TRANSPORT_UDP) {
-						mSocket.send(mPackets[mBufferOut]);
-					} else {
-						sendTCP();
+					prepare();
+					if (paced) waitUntil(pace(System.nanoTime()));
+					transmit();
+					if (paced) release(seq+i, 1);
+					else if (i+1-done>=BATCH_SIZE) {
+						release(seq+done, i+1-done);
+						done = i+1;
 					}
 				}
-				if (++mBufferOut>=mBufferCount) mBufferOut = 0;
-				mBufferRequested.release();
+				if (!paced) release(seq+done, n-done);
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -316,16 +870,276 @@ public class RtpSocket implements Runnable {
 		resetFifo();
 	}
 
-	private void sendTCP() {
-		synchronized (mOutputStream) {
-			int len = mPackets[mBufferOut].getLength();
-			Log.d(TAG,"sent "+len);
-			mTcpHeader[2] = (byte) (len>>8);
-			mTcpHeader[3] = (byte) (len&0xFF);
-			try {
-				mOutputStream.write(mTcpHeader);
-				mOutputStream.write(mBuffers[mBufferOut], 0, len);
-			} catch (Exception e) {}
+	private static void waitUntil(long time) throws InterruptedException {
+		long left;
+		while ((left = time-System.nanoTime())>0) {
+			LockSupport.parkNanos(left);
+			if (Thread.interrupted()) throw new InterruptedException();
+		}
+	}
+
+	/** 
+	 * Takes the packet at mBufferOut out of the token bucket of the pacer. 
+	 * @return When the packet should be sent, in the time base of {@link System#nanoTime()}
+	 */
+	private long pace(long now) {
+		if (now-mRateUpdate>200000000L) {
+			// The bitrate is only recomputed every 200 ms by AverageBitrate
+			mRateUpdate = now;
+			mPacer.setMeasuredBitrate(mAverageBitrate.average());
+		}
+		return mPacer.reserve(now, mLengths[mBufferOut]);
+	}
+
+	/** 
+	 * Called by the sending thread when the packetizer asks for room in the FIFO. 
+	 * Dropped packets are given a length of 0 so that they are skipped like the others.
+	 * @param from The sequence of the first packet that has not been sent yet
+	 */
+	private void drop(long from) {
+		mDropsHandled = mDropRequests;
+		long end = mFifo.published();
+		if (mOverflowPolicy == OVERFLOW_DROP_NON_REFERENCE) {
+			int count = 0;
+			for (long seq=from;seq<end;seq++) {
+				int i = (int) (seq%mBufferCount);
+				if (mNonReference[i] && mLengths[i]>0) {
+					mLengths[i] = 0;
+					count++;
+				}
+			}
+			if (count>0) {
+				mDroppedNonReference += count;
+				return;
+			}
+		}
+		// Drops everything up to the end of the oldest frame, the packet with the marker bit
+		int count = 0;
+		for (long seq=from;seq<end;seq++) {
+			int i = (int) (seq%mBufferCount);
+			if (mLengths[i]>0) {
+				mLengths[i] = 0;
+				count++;
+			}
+			if ((mBuffers[i][1]&0x80) != 0) break;
+		}
+		if (count>0) {
+			mDroppedFrames++;
+			mDroppedPackets += count;
+		}
+	}
+
+	/** Updates the sender report with the packet at mBufferOut. */
+	private void prepare() throws IOException {
+		if (mOldTimestamp != 0 && (mTimestamps[mBufferOut]-mOldTimestamp)<0) {
+			Log.e(TAG, "TS: "+mTimestamps[mBufferOut]+" OLD: "+mOldTimestamp);
+		}
+		mReport.update(mLengths[mBufferOut], (mTimestamps[mBufferOut]/100L)*(mClock/1000L)/10000L);
+		mOldTimestamp = mTimestamps[mBufferOut];
+	}
+
+	/** Sends the packet at mBufferOut, the first packets of the stream are dropped. */
+	private boolean transmit() throws IOException {
+		if (mCount>30) {
+			if (mTransport == TRANSPORT_UDP && mDestination != null) {
+				if (!sendUDP()) return false;
+				if (mFecGroupSize>0 || mAdaptiveFec) protect();
+			}
+			RtpDestination interleaved = mTransport == TRANSPORT_TCP ? mInterleaved : null;
+			RtpDestination[] destinations = mDestinations;
+			long rtpts = (mTimestamps[mBufferOut]/100L)*(mClock/1000L)/10000L;
+			int flags = 0;
+			if (mNonReference[mBufferOut]) flags |= RtpDestination.FLAG_NON_REFERENCE;
+			if (mMarksSyncPoints ? mSyncPoint[mBufferOut] : mFrameStart) flags |= RtpDestination.FLAG_SYNC_POINT;
+			if (interleaved != null) {
+				interleaved.offer(mBuffers[mBufferOut], mLengths[mBufferOut], rtpts, flags);
+			}
+			for (RtpDestination destination : destinations) {
+				if (!destination.mJoined) {
+					destination.mJoined = true;
+					if (mGopCache != null && !mGopCache.burst(destination, rtpts)) {
+						// The GOP is too large for the queue of the destination, the next key frame comes sooner
+						KeyFrameListener listener = mKeyFrameListener;
+						if (listener != null) listener.onKeyFrameRequest(null);
+					}
+				}
+				// A destination that does not keep up never blocks the others
+				if (!destination.offer(mBuffers[mBufferOut], mLengths[mBufferOut], rtpts, flags)) {
+					removeDestination(destination);
+				}
+			}
+			mFrameStart = (mBuffers[mBufferOut][1]&0x80) != 0;
+			byte[] packet = mBuffers[mBufferOut];
+			if (mGopCacheEnabled || mGopCache != null) cache(rtpts, flags);
+			if (mRetransmissionMode != RETRANSMIT_OFF && canBeNacked(destinations)) keep(packet);
+		}
+		mCount++;
+		// Moving average over the last 16 packets or so
+		long delay = System.nanoTime()-mCommitTimes[mBufferOut];
+		mQueueDelay += (delay-mQueueDelay)>>4;
+		return true;
+	}
+
+	/** Whether a receiver may send NACKs, only those of UDP receivers are answered, see {@link Feedback}. */
+	private boolean canBeNacked(RtpDestination[] destinations) {
+		if (mTransport == TRANSPORT_UDP && mDestination != null) return true;
+		for (RtpDestination destination : destinations) {
+			if (destination.getChannel()<0) return true;
+		}
+		return false;
+	}
+
+	/** Hands the packet at mBufferOut over to the GOP cache if it is enabled. */
+	private void cache(long rtpts, int flags) {
+		if (!mGopCacheEnabled || !mMarksSyncPoints) {
+			if (mGopCache != null) {
+				mGopCache.clear();
+				mGopCache = null;
+			}
+			return;
+		}
+		if (mGopCache == null) mGopCache = new GopCache();
+		if (mGopCache.add(mBuffers[mBufferOut], mLengths[mBufferOut], rtpts, flags)) {
+			mBuffers[mBufferOut] = null;
+		}
+	}
+
+	/** Adds the packet at mBufferOut to the group of the FEC encoder, sends the parity packet when the group is complete. */
+	private void protect() throws IOException {
+		if (mAdaptiveFec) adaptFec();
+		int size = mFecGroupSize;
+		if (size == 0) {
+			if (mFec != null) mFec.reset();
+			return;
+		}
+		if (mFec == null) mFec = new FecEncoder(mFecSsrc, mSeq);
+		int length = mFec.add(mBuffers[mBufferOut], mLengths[mBufferOut], size);
+		if (length == 0) return;
+		UdpChannel channel = mChannel;
+		if (channel != null) {
+			if (length>mChannelBuffer.capacity()) mChannelBuffer = ByteBuffer.allocateDirect(length);
+			// The parity packet is lost if the send buffer of a non-blocking channel is full
+			channel.send(mChannelBuffer, mFec.getPacket(), length);
+		} else {
+			mPacket.setData(mFec.getPacket(), 0, length);
+			mSocket.send(mPacket);
+		}
+		mFecPackets++;
+	}
+
+	/** Every second, picks the size of the FEC groups from the worst fraction lost reported by the receivers. */
+	private void adaptFec() {
+		long now = System.nanoTime();
+		if (now-mFecUpdate<1000000000L) return;
+		mFecUpdate = now;
+		float loss = -1;
+		for (ReceiverStats receiver : mReport.getReceiver().getReceivers()) {
+			if (!receiver.hasLeft() && receiver.getLastReportTime() != 0 && now-receiver.getLastReportTime()<TimeUnit.SECONDS.toNanos(15)) {
+				loss = Math.max(loss, receiver.getFractionLost());
+			}
+		}
+		if (loss<0) return;
+		if (loss == 0) mFecGroupSize = 0;
+		else if (loss<0.02f) mFecGroupSize = 16;
+		else if (loss<0.05f) mFecGroupSize = 10;
+		else if (loss<0.10f) mFecGroupSize = 6;
+		else mFecGroupSize = 4;
+	}
+
+	/** Hands the packet at mBufferOut over to the history, copies it if the GOP cache took it. */
+	private void keep(byte[] packet) {
+		int length = mLengths[mBufferOut];
+		if (mBuffers[mBufferOut] != null) {
+			mBuffers[mBufferOut] = null;
+		} else {
+			byte[] copy = mPool.borrow(length);
+			System.arraycopy(packet, 0, copy, 0, length);
+			packet = copy;
+		}
+		mHistory.add(packet, length, System.nanoTime());
+	}
+
+	/**
+	 * Called by the thread of a {@link TransmitScheduler}.
+	 * @param now The current value of {@link System#nanoTime()}
+	 * @return When the next packet must be sent (in the time base of {@link System#nanoTime()}), 
+	 * or {@link Long#MAX_VALUE} if the FIFO is empty
+	 */
+	long deadline(long now) throws IOException {
+		if (mDropRequests != mDropsHandled) {
+			drop(mFifo.consumed());
+			if (mPending && mLengths[mBufferOut]==0) mPending = false;
+		}
+		if (mPending) return mDue;
+		while (mFifo.size()>0) {
+			mBufferOut = (int) (mFifo.consumed()%mBufferCount);
+			if (mLengths[mBufferOut]==0) {
+				release(mFifo.consumed(), 1);
+				continue;
+			}
+			mPending = true;
+			mLastActive = now;
+			prepare();
+			if (mIdle) {
+				// Caches mCacheSize milliseconds of the stream in the FIFO.
+				mIdle = false;
+				mDue = now+mCacheSize*1000000L;
+			} else {
+				mDue = mCacheSize>0 ? pace(now) : now;
+			}
+			return mDue;
+		}
+		if (!mIdle && now-mLastActive>TimeUnit.SECONDS.toNanos(4)) {
+			// Same thing as when the thread of the socket dies
+			mIdle = true;
+			resetFifo();
+		}
+		return Long.MAX_VALUE;
+	}
+
+	/**
+	 * Called by the thread of a {@link TransmitScheduler} once the deadline 
+	 * returned by {@link #deadline(long)} is reached. 
+	 * @return False if the UdpChannel is non-blocking and its send buffer is full, 
+	 * the packet must be sent again later
+	 */
+	boolean transmitPending() throws IOException {
+		if (!mPending) return true;
+		try {
+			if (!transmit()) return false;
+		} catch (IOException e) {
+			// The packet is lost
+			mPending = false;
+			release(mFifo.consumed(), 1);
+			throw e;
+		}
+		mPending = false;
+		release(mFifo.consumed(), 1);
+		return true;
+	}
+
+	/** Called by the thread of a {@link TransmitScheduler}, true if packets are waiting for {@link #deadline(long)}. */
+	boolean ready() {
+		return mFifo.size()>(mPending?1:0);
+	}
+
+	/** The UdpChannel used to send the packets, if any. */
+	UdpChannel getUdpChannel() {
+		return mTransport == TRANSPORT_UDP ? mChannel : null;
+	}
+
+	private boolean sendUDP() throws IOException {
+		UdpChannel channel = mChannel;
+		if (channel != null) {
+			if (mLengths[mBufferOut]>mChannelBuffer.capacity()) {
+				// Set with setMaxPacketSize()
+				mChannelBuffer = ByteBuffer.allocateDirect(mLengths[mBufferOut]);
+			}
+			return channel.send(mChannelBuffer, mBuffers[mBufferOut], mLengths[mBufferOut])>0;
+		} else {
+			mPacket.setData(mBuffers[mBufferOut], 0, mLengths[mBufferOut]);
+			mSocket.send(mPacket);
+			return true;
 		}
 	}
 
@@ -336,6 +1150,108 @@ public class RtpSocket implements Runnable {
 		}
 	}
 
+	/** 
+	 * Answers the feedback of the receivers of the socket, or of those of one of its destinations. 
+	 * Called by the thread that receives their RTCP packets.
+	 */
+	private class Feedback implements RtcpReceiver.Callback {
+
+		// Until the receiver reports its round-trip time, in ns
+		private static final long DEFAULT_RTT = 100000000L;
+
+		private final RtpDestination mTarget;
+		// When each packet was last sent again to the receiver, by slot of the history
+		private final int[] mSequences = new int[RetransmissionHistory.SIZE];
+		private final long[] mTimes = new long[RetransmissionHistory.SIZE];
+		private byte[] mPacket = new byte[MTU+2];
+		private ByteBuffer mBuffer = null;
+
+		/** @param target The destination whose receiver sends the feedback, null for the destination of the socket */
+		public Feedback(RtpDestination target) {
+			mTarget = target;
+		}
+
+		@Override
+		public void onNack(ReceiverStats receiver, int pid, int blp) {
+			if (mRetransmissionMode == RETRANSMIT_OFF) return;
+			// Packets interleaved in the RTSP connection are never lost
+			if (mTarget == null ? mTransport != TRANSPORT_UDP : mTarget.getChannel()>=0) return;
+			long now = System.nanoTime();
+			long rtt = receiver.getRoundTripTime();
+			// A packet sent again less than a round-trip time ago may still be on its way
+			long interval = rtt>0 ? rtt+rtt/4 : DEFAULT_RTT;
+			for (int k=0;k<=16;k++) {
+				if (k>0 && (blp&1<<(k-1)) == 0) continue;
+				int seq = (pid+k)&0xFFFF;
+				if (mTarget != null) seq = mTarget.toSourceSequence(seq);
+				int i = seq&(RetransmissionHistory.SIZE-1);
+				if (mSequences[i] == seq && mTimes[i] != 0 && now-mTimes[i]<interval) {
+					mSuppressed.incrementAndGet();
+					continue;
+				}
+				int length = mHistory.copy(seq, now, mPacket);
+				if (length<0) {
+					mPacket = new byte[-length+2];
+					length = mHistory.copy(seq, now, mPacket);
+				}
+				// Gone from the history
+				if (length<=0) continue;
+				mSequences[i] = seq;
+				mTimes[i] = now;
+				try {
+					send(length);
+					mRetransmitted.incrementAndGet();
+				} catch (IOException e) {
+					Log.e(TAG, "Could not send a packet again: "+e.getMessage());
+					return;
+				}
+			}
+		}
+
+		@Override
+		public void onKeyFrameRequest(ReceiverStats receiver) {
+			KeyFrameListener listener = mKeyFrameListener;
+			if (listener != null) listener.onKeyFrameRequest(receiver);
+		}
+
+		@Override
+		public void onBitrateEstimate(ReceiverStats receiver, long bitrate) {}
+
+		private void send(int length) throws IOException {
+			if (mTarget != null) {
+				mTarget.retransmit(mPacket, length);
+				return;
+			}
+			if (mRetransmissionMode == RETRANSMIT_RTX) length = toRtx(length);
+			UdpChannel channel = mChannel;
+			if (channel != null) {
+				if (mBuffer == null || mBuffer.capacity()<length) mBuffer = ByteBuffer.allocateDirect(Math.max(length, MTU+2));
+				channel.send(mBuffer, mPacket, length);
+			} else if (mDestination != null) {
+				mSocket.send(new DatagramPacket(mPacket, length, mDestination, mPort));
+			}
+		}
+
+		/** Turns the packet into a packet of the RTX stream, the original sequence number goes before the payload. */
+		private int toRtx(int length) {
+			if (length+2>mPacket.length) {
+				byte[] packet = new byte[length+2];
+				System.arraycopy(mPacket, 0, packet, 0, length);
+				mPacket = packet;
+			}
+			System.arraycopy(mPacket, RTP_HEADER_LENGTH, mPacket, RTP_HEADER_LENGTH+2, length-RTP_HEADER_LENGTH);
+			mPacket[RTP_HEADER_LENGTH] = mPacket[2];
+			mPacket[RTP_HEADER_LENGTH+1] = mPacket[3];
+			// Keeps the marker bit
+			mPacket[1] = (byte) ((mPacket[1]&0x80) | RTX_PAYLOAD_TYPE);
+			mRtxSeq = (mRtxSeq+1)&0xFFFF;
+			setLong(mPacket, mRtxSeq, 2, 4);
+			setLong(mPacket, mRtxSsrc, 8, 12);
+			return length+2;
+		}
+
+	}
+
 	/** 
 	 * Computes an average bit rate. 
 	 **/
@@ -398,54 +1314,5 @@ public class RtpSocket implements Runnable {
 		}
 		
 	}
-	
-	/** Computes the proper rate at which packets are sent. */
-	protected static class Statistics {
-
-		public final static String TAG = "Statistics";
-		
-		private int count=500, c = 0;
-		private float m = 0, q = 0;
-		private long elapsed = 0;
-		private long start = 0;
-		private long duration = 0;
-		private long period = 6000000000L;
-		private boolean initoffset = false;
-
-		public Statistics(int count, long period) {
-			this.count = count;
-			this.period = period*1000000L; 
-		}
-		
-		public void push(long value) {
-			duration += value;
-			elapsed += value;
-			if (elapsed>period) {
-				elapsed = 0;
-				long now = System.nanoTime();
-				if (!initoffset || (now - start < 0)) {
-					start = now;
-					duration = 0;
-					initoffset = true;
-				}
-				value -= (now - start) - duration;
-				//Log.d(TAG, "sum1: "+duration/1000000+" sum2: "+(now-start)/1000000+" drift: "+((now-start)-duration)/1000000+" v: "+value/1000000);
-			}
-			if (c<40) {
-				// We ignore the first 40 measured values because they may not be accurate
-				c++;
-				m = value;
-			} else {
-				m = (m*q+value)/(q+1);
-				if (q<count) q++;
-			}
-		}
-		
-		public long average() {
-			long l = (long)m-2000000;
-			return l>0 ? l : 0;
-		}
-
-	}
 
 }
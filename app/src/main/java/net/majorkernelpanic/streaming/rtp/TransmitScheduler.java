@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package net.majorkernelpanic.streaming.rtp;
+
+/**
+ * Sends the packets waiting in the FIFO of one or more {@link RtpSocket}s.
+ * By default each RtpSocket sends its own packets with a dedicated thread, 
+ * use {@link RtpSocket#setDefaultScheduler(TransmitScheduler)} to change that.
+ * @see EventLoopScheduler
+ */
+public interface TransmitScheduler {
+
+	/** Called the first time a packet is committed to the socket. */
+	public void register(RtpSocket socket);
+
+	/** Called when the socket is closed. */
+	public void unregister(RtpSocket socket);
+
+	/** Called by the packetizer of the socket every time a packet has been committed. */
+	public void signal(RtpSocket socket);
+
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashMap;
+
+import android.annotation.SuppressLint;
+import android.util.Log;
+
+/**
+ * A connected {@link DatagramChannel} shared by every RTP or RTCP sender that
+ * streams to the same destination (for example all the sessions of a multicast group).
+ * Call {@link #acquire(InetAddress, int)} to get one and {@link #release()} when you are done with it,
+ * the channel is closed when its last user releases it.
+ * The packets sent back by the destination can be read with {@link #addListener(Listener)}.
+ */
+public class UdpChannel implements Runnable {
+
+	public final static String TAG = "UdpChannel";
+
+	private final static HashMap<InetSocketAddress,UdpChannel> sChannels = new HashMap<InetSocketAddress,UdpChannel>();
+
+	private final InetSocketAddress mDestination;
+	private final DatagramChannel mChannel;
+	private int mReferences = 0;
+
+	/** Gets the packets received by a channel. */
+	public interface Listener {
+		/** Called by the thread of the channel, the buffer is reused for the next packet. */
+		void onReceive(byte[] buffer, int length);
+	}
+
+	private volatile Listener[] mListeners = new Listener[0];
+	private Thread mThread = null;
+
+	private UdpChannel(InetSocketAddress destination) throws IOException {
+		mDestination = destination;
+		mChannel = DatagramChannel.open();
+		mChannel.connect(destination);
+	}
+
+	/**
+	 * Returns the channel that sends packets to the given destination, opens it if needed.
+	 * @param address The destination address
+	 * @param port The destination port
+	 */
+	public static UdpChannel acquire(InetAddress address, int port) throws IOException {
+		InetSocketAddress destination = new InetSocketAddress(address, port);
+		synchronized (sChannels) {
+			UdpChannel channel = sChannels.get(destination);
+			if (channel == null) {
+				channel = new UdpChannel(destination);
+				sChannels.put(destination, channel);
+			}
+			channel.mReferences++;
+			return channel;
+		}
+	}
+
+	/** Gives the channel back, it is closed once nobody uses it anymore. */
+	public void release() {
+		synchronized (sChannels) {
+			if (--mReferences>0) return;
+			sChannels.remove(mDestination);
+		}
+		try {
+			mChannel.close();
+		} catch (IOException ignore) {}
+	}
+
+	/** 
+	 * Passes the packets sent back by the destination to the listener. 
+	 * The first listener starts a thread that reads the channel until it is closed.
+	 */
+	public synchronized void addListener(Listener listener) {
+		Listener[] listeners = new Listener[mListeners.length+1];
+		System.arraycopy(mListeners, 0, listeners, 0, mListeners.length);
+		listeners[mListeners.length] = listener;
+		mListeners = listeners;
+		if (mThread == null) {
+			mThread = new Thread(this, TAG+" "+mDestination);
+			mThread.start();
+		}
+	}
+
+	public synchronized void removeListener(Listener listener) {
+		int count = 0;
+		for (Listener l : mListeners) if (l != listener) count++;
+		if (count == mListeners.length) return;
+		Listener[] listeners = new Listener[count];
+		for (int i=0,j=0;i<mListeners.length;i++) {
+			if (mListeners[i] != listener) listeners[j++] = mListeners[i];
+		}
+		mListeners = listeners;
+	}
+
+	/** Reads the channel until it is closed, waits on a selector of its own if the channel is non-blocking. */
+	@Override
+	public void run() {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(2048);
+		byte[] packet = new byte[2048];
+		Selector selector = null;
+		while (mChannel.isOpen()) {
+			try {
+				buffer.clear();
+				int length = mChannel.read(buffer);
+				if (length<=0) {
+					if (selector == null) {
+						selector = Selector.open();
+						mChannel.register(selector, SelectionKey.OP_READ);
+					}
+					selector.select(1000);
+					selector.selectedKeys().clear();
+					continue;
+				}
+				buffer.flip();
+				buffer.get(packet, 0, length);
+				for (Listener listener : mListeners) {
+					listener.onReceive(packet, length);
+				}
+			} catch (PortUnreachableException e) {
+				// Nobody listens on the other side (yet)
+			} catch (IOException e) {
+				break;
+			}
+		}
+		if (selector != null) {
+			try {
+				selector.close();
+			} catch (IOException ignore) {}
+		}
+	}
+
+	public DatagramChannel getChannel() {
+		return mChannel;
+	}
+
+	public InetSocketAddress getDestination() {
+		return mDestination;
+	}
+
+	public int getLocalPort() {
+		return mChannel.socket().getLocalPort();
+	}
+
+	/** Only has an effect on multicast destinations and on Android 7.0 and later. */
+	@SuppressLint("NewApi")
+	public void setTimeToLive(int ttl) {
+		if (!mDestination.getAddress().isMulticastAddress()) return;
+		try {
+			mChannel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, ttl);
+		} catch (Throwable e) {
+			Log.w(TAG,"Could not set the TTL of the channel: "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Sends a packet. The caller owns <code>buffer</code>, a direct ByteBuffer large enough
+	 * for the packet, reusing it for every packet avoids the temporary direct buffer
+	 * the channel would otherwise need for each heap array it is given.
+	 * @return The number of bytes sent, 0 if the channel is non-blocking and its send buffer is full
+	 */
+	public int send(ByteBuffer buffer, byte[] packet, int length) throws IOException {
+		buffer.clear();
+		buffer.put(packet, 0, length);
+		buffer.flip();
+		return write(buffer);
+	}
+
+	/**
+	 * Sends the content of a buffer prepared by the caller, between its position and its limit.
+	 * @return The number of bytes sent, 0 if the channel is non-blocking and its send buffer is full
+	 */
+	public int write(ByteBuffer buffer) throws IOException {
+		int length = buffer.remaining();
+		try {
+			return mChannel.write(buffer);
+		} catch (PortUnreachableException e) {
+			// An ICMP error was received for a previous packet, nobody listens there (yet)
+			return length;
+		}
+	}
+
+}
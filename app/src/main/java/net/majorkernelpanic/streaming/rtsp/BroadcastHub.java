@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package net.majorkernelpanic.streaming.rtsp;
+
+import java.net.URI;
+import java.util.HashMap;
+
+import net.majorkernelpanic.streaming.Session;
+
+/**
+ * Keeps track of the sessions shared by the clients of the {@link RtspServer} in broadcast mode.
+ * All the clients that request the same URI share the same {@link Session}, 
+ * the session is stopped and released when the last of them leaves. A client that 
+ * joins meanwhile waits for it, so that two sessions never compete for the camera.
+ */
+class BroadcastHub {
+
+	public final static String TAG = "BroadcastHub";
+
+	static class Broadcast {
+
+		private final String mKey;
+		// Only modified by the hub
+		private volatile int mClients = 0;
+		private boolean mClosing = false;
+
+		/** Null until the first client configures it, synchronize on the broadcast to access it. */
+		Session session = null;
+
+		private Broadcast(String key) {
+			mKey = key;
+		}
+
+		public int getClientCount() {
+			return mClients;
+		}
+
+	}
+
+	private final HashMap<String,Broadcast> mBroadcasts = new HashMap<String,Broadcast>();
+
+	/** Returns the part of the URI that identifies a stream: its path and its parameters. */
+	public static String keyOf(String uri) {
+		try {
+			URI u = URI.create(uri);
+			String path = u.getRawPath()!=null ? u.getRawPath() : "";
+			return path+"?"+(u.getRawQuery()!=null ? u.getRawQuery() : "");
+		} catch (IllegalArgumentException e) {
+			return uri;
+		}
+	}
+
+	/** 
+	 * Adds a client to the broadcast of the URI, creates the broadcast if needed. 
+	 * The caller must create the session if {@link Broadcast#session} is null.
+	 * Waits if the last client of the broadcast is still stopping its session.
+	 */
+	public synchronized Broadcast join(String uri) {
+		String key = keyOf(uri);
+		Broadcast broadcast = mBroadcasts.get(key);
+		while (broadcast != null && broadcast.mClosing) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while the broadcast was stopping");
+			}
+			broadcast = mBroadcasts.get(key);
+		}
+		if (broadcast == null) {
+			broadcast = new Broadcast(key);
+			mBroadcasts.put(key, broadcast);
+		}
+		broadcast.mClients++;
+		return broadcast;
+	}
+
+	/**
+	 * Removes a client from a broadcast.
+	 * @return True if it was the last one, the caller must then stop and release the session 
+	 * and call {@link #remove(Broadcast)}
+	 */
+	public synchronized boolean leave(Broadcast broadcast) {
+		if (--broadcast.mClients>0) return false;
+		broadcast.mClosing = true;
+		return true;
+	}
+
+	/** Forgets a broadcast once its session was stopped, the clients waiting in {@link #join(String)} go on. */
+	public synchronized void remove(Broadcast broadcast) {
+		if (mBroadcasts.get(broadcast.mKey) == broadcast) {
+			mBroadcasts.remove(broadcast.mKey);
+		}
+		notifyAll();
+	}
+
+	/** Returns the number of broadcasts currently running. */
+	public synchronized int size() {
+		return mBroadcasts.size();
+	}
+
+}
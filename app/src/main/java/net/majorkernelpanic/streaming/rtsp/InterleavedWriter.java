@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.streaming.rtsp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+import net.majorkernelpanic.streaming.rtsp.RtspServer.Connection;
+import android.util.Log;
+
+/**
+ * Writes the RTP and RTCP packets interleaved in the RTSP connection of a client 
+ * (RFC 2326 section 10.12), and its RTSP responses once packets are interleaved.
+ * 
+ * The senders ({@link net.majorkernelpanic.streaming.rtp.RtpDestination} and 
+ * {@link net.majorkernelpanic.streaming.rtcp.SenderReport}) never write to the socket: 
+ * what they write is appended to a buffer and a thread of its own writes everything 
+ * written since its last write to the socket at once. 
+ * A sender writes each packet while holding the lock of the stream, so the packets 
+ * of the different channels are never mixed and keep their order.
+ * When the buffer is full the senders wait, the queue of their RtpDestination fills up 
+ * and its slow consumer policy applies. They only wait before the '$' header of 
+ * a packet, so the 4 bytes of the header must be written at once.
+ */
+class InterleavedWriter extends OutputStream implements Runnable {
+
+	public final static String TAG = "InterleavedWriter";
+
+	/** Above this many bytes waiting to be written, the senders wait. */
+	private static final int CAPACITY = 256*1024;
+
+	private final Connection mConnection;
+	private final OutputStream mOutput;
+	private final SocketChannel mChannel;
+	private final Thread mThread;
+
+	// mFill is filled by the senders while the thread writes mDrain
+	private byte[] mFill = new byte[16384], mDrain = new byte[16384];
+	private int mLength = 0;
+	// What is left of the packet being written
+	private int mFrameLeft = 0;
+	private ByteBuffer mWrapped = null;
+	private Selector mSelector = null;
+	private boolean mClosed = false;
+
+	private volatile long mBytes = 0, mWrites = 0;
+
+	/** The client is handled by a {@link RtspServer.WorkerThread}, the socket is blocking. */
+	public InterleavedWriter(Connection connection, OutputStream output) {
+		this(connection, output, null);
+	}
+
+	/** The client is handled by the {@link SelectorListener}, the channel is non-blocking. */
+	public InterleavedWriter(Connection connection, SocketChannel channel) {
+		this(connection, null, channel);
+	}
+
+	private InterleavedWriter(Connection connection, OutputStream output, SocketChannel channel) {
+		mConnection = connection;
+		mOutput = output;
+		mChannel = channel;
+		mThread = new Thread(this, TAG);
+		mThread.start();
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] {(byte) b}, 0, 1);
+	}
+
+	/** Appends the data to the buffer, waits if the buffer is full and no packet is being written. */
+	@Override
+	public synchronized void write(byte[] buffer, int offset, int length) throws IOException {
+		if (mFrameLeft == 0) {
+			// Waiting would release the lock of the stream in the middle of a packet otherwise
+			try {
+				while (!mClosed && mLength>0 && mLength+length>CAPACITY) wait();
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted");
+			}
+		}
+		append(buffer, offset, length);
+		while (length>0) {
+			if (mFrameLeft == 0) {
+				if (length<4 || buffer[offset] != '$') break;
+				mFrameLeft = 4 + ((buffer[offset+2]&0xFF)<<8 | (buffer[offset+3]&0xFF));
+			}
+			int n = Math.min(length, mFrameLeft);
+			mFrameLeft -= n;
+			offset += n;
+			length -= n;
+		}
+	}
+
+	/** 
+	 * Appends the data to the buffer even if it is full, used for the RTSP responses 
+	 * so that the thread that sends them never waits.
+	 */
+	public synchronized void writeNow(byte[] buffer) throws IOException {
+		append(buffer, 0, buffer.length);
+	}
+
+	private void append(byte[] buffer, int offset, int length) throws IOException {
+		if (mClosed) throw new IOException("Connection closed");
+		if (mLength+length>mFill.length) {
+			byte[] fill = new byte[Math.max(2*mFill.length, mLength+length)];
+			System.arraycopy(mFill, 0, fill, 0, mLength);
+			mFill = fill;
+		}
+		System.arraycopy(buffer, offset, mFill, mLength, length);
+		if (mLength == 0) notifyAll();
+		mLength += length;
+	}
+
+	/** Stops the thread, what has not been written yet is dropped. The socket is left open. */
+	@Override
+	public synchronized void close() {
+		mClosed = true;
+		notifyAll();
+	}
+
+	/** Returns the number of bytes written to the socket. */
+	public long getBytesWritten() {
+		return mBytes;
+	}
+
+	/** Returns the number of writes to the socket, each one carries all the packets that were waiting. */
+	public long getWriteCount() {
+		return mWrites;
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				int length;
+				synchronized (this) {
+					while (mLength == 0 && !mClosed) wait();
+					if (mClosed) break;
+					byte[] drain = mDrain;
+					mDrain = mFill;
+					mFill = drain;
+					length = mLength;
+					mLength = 0;
+					notifyAll();
+				}
+				if (mChannel != null) {
+					writeChannel(length);
+				} else {
+					mOutput.write(mDrain, 0, length);
+				}
+				mBytes += length;
+				mWrites++;
+			}
+		} catch (IOException e) {
+			boolean closed;
+			synchronized (this) {
+				closed = mClosed;
+				mClosed = true;
+				notifyAll();
+			}
+			if (!closed) {
+				Log.e(TAG, "Could not write to the client: "+e.getMessage());
+				mConnection.disconnect();
+			}
+		} catch (InterruptedException ignore) {}
+		if (mSelector != null) {
+			try {
+				mSelector.close();
+			} catch (IOException ignore) {}
+		}
+	}
+
+	/** The channel is non-blocking, waits with a selector of its own when its send buffer is full. */
+	private void writeChannel(int length) throws IOException {
+		if (mWrapped == null || mWrapped.array() != mDrain) mWrapped = ByteBuffer.wrap(mDrain);
+		mWrapped.clear();
+		mWrapped.limit(length);
+		while (mWrapped.hasRemaining()) {
+			if (mChannel.write(mWrapped)>0) continue;
+			if (mSelector == null) {
+				mSelector = Selector.open();
+				mChannel.register(mSelector, SelectionKey.OP_WRITE);
+			}
+			mSelector.select(1000);
+			mSelector.selectedKeys().clear();
+			synchronized (this) {
+				if (mClosed) return;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.streaming.rtsp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import net.majorkernelpanic.streaming.rtsp.RtspServer.Connection;
+import net.majorkernelpanic.streaming.rtsp.RtspServer.Request;
+
+/**
+ * Frames the requests sent by a client in a buffer that is reused for all of them. 
+ * The bytes are only scanned once, whether they come from a blocking stream or 
+ * from a non-blocking channel. Interleaved binary packets ('$') are passed to the 
+ * {@link Connection}, for the RTCP packets sent back by the client, or skipped.
+ * 
+ * Call {@link #next()} once some bytes have been read, and {@link #done()} 
+ * once the request it returned has been handled: until then, the request 
+ * points into the buffer.
+ */
+class RequestReader {
+
+	/** A client that sends a request longer than that is disconnected. */
+	public static final int MAX_REQUEST_LENGTH = 65536;
+
+	private final Request mRequest = new Request();
+	private final Connection mConnection;
+	private byte[] mBuffer;
+	private ByteBuffer mByteBuffer;
+	// mStart: start of the pending request, mScan: where the search for its end resumes, mLength: bytes read
+	private int mStart = 0, mScan = 0, mLength = 0;
+	// End of the request returned by next(), -1 if there is none
+	private int mEnd = -1;
+	// Length of the headers and of the content of a request whose content is still coming, 0 if there is none
+	private int mHeaders = 0, mContent = 0;
+
+	public RequestReader(int size) {
+		this(size, null);
+	}
+
+	/** @param connection Gets the packets interleaved in the connection, may be null */
+	public RequestReader(int size, Connection connection) {
+		mConnection = connection;
+		mBuffer = new byte[size];
+		mByteBuffer = ByteBuffer.wrap(mBuffer);
+	}
+
+	/**
+	 * Reads what is available from the stream, blocks if nothing is.
+	 * @return The number of bytes read, -1 if the end of the stream has been reached
+	 */
+	public int read(InputStream input) throws IOException {
+		makeRoom();
+		int n = input.read(mBuffer, mLength, mBuffer.length-mLength);
+		if (n>0) mLength += n;
+		return n;
+	}
+
+	/**
+	 * Reads what is available from the channel.
+	 * @return The number of bytes read, -1 if the end of the stream has been reached
+	 */
+	public int read(ReadableByteChannel channel) throws IOException {
+		makeRoom();
+		mByteBuffer.limit(mBuffer.length).position(mLength);
+		int n = channel.read(mByteBuffer);
+		if (n>0) mLength += n;
+		return n;
+	}
+
+	/**
+	 * Returns the next complete request, its content is skipped.
+	 * @return The request, or null if more bytes are needed
+	 * @throws IllegalStateException If the request is malformed, {@link #done()} must be called anyway
+	 */
+	public Request next() throws IllegalStateException {
+		if (mEnd>=0) throw new IllegalStateException("The previous request has not been handled");
+		byte[] buffer = mBuffer;
+		if (mHeaders>0) {
+			// Waiting for the content of a request, the headers may have been moved since they were parsed
+			if (mStart+mHeaders+mContent>mLength) return null;
+			mRequest.parse(buffer, mStart, mStart+mHeaders);
+			mEnd = mScan = mStart+mHeaders+mContent;
+			mHeaders = mContent = 0;
+			return mRequest;
+		}
+		while (true) {
+			if (mScan == mStart) {
+				// Looking for the start of a request
+				while (mStart<mLength && (buffer[mStart] == '\r' || buffer[mStart] == '\n')) mStart++;
+				if (mStart<mLength && buffer[mStart] == '$') {
+					// RTP or RTCP packet interleaved in the connection
+					if (mStart+4>mLength) break;
+					int size = (buffer[mStart+2]&0xFF)<<8 | (buffer[mStart+3]&0xFF);
+					if (mStart+4+size>mLength) break;
+					if (mConnection != null) mConnection.receiveInterleaved(buffer[mStart+1]&0xFF, buffer, mStart+4, size);
+					mStart += 4+size;
+					mScan = mStart;
+					continue;
+				}
+				mScan = mStart;
+			}
+			// Looking for the empty line that ends the headers
+			int end = -1, i = Math.max(mScan, mStart+1);
+			for (;i<mLength;i++) {
+				if (buffer[i] != '\n') continue;
+				if (buffer[i-1] == '\n') {
+					end = i+1;
+					break;
+				}
+				if (buffer[i-1] == '\r' && i-2>=mStart && buffer[i-2] == '\n') {
+					end = i+1;
+					break;
+				}
+			}
+			if (end<0) {
+				mScan = Math.max(mStart, mLength-2);
+				return null;
+			}
+			mScan = end;
+			try {
+				mRequest.parse(buffer, mStart, end);
+			} catch (IllegalStateException e) {
+				mEnd = end;
+				throw e;
+			}
+			int length = end+mRequest.getContentLength();
+			if (length>mLength) {
+				// The content has not been received yet
+				mHeaders = end-mStart;
+				mContent = mRequest.getContentLength();
+				return null;
+			}
+			mEnd = length;
+			return mRequest;
+		}
+		return null;
+	}
+
+	/** Forgets the request returned by {@link #next()}. */
+	public void done() {
+		if (mEnd<0) return;
+		mStart = mScan = mEnd;
+		mEnd = -1;
+	}
+
+	/** Moves the pending bytes to the start of the buffer, or grows it. */
+	private void makeRoom() throws IOException {
+		if (mLength<mBuffer.length) return;
+		if (mEnd>=0) {
+			// A request still points into the buffer, it can not be moved
+			grow();
+		} else if (mStart>0) {
+			System.arraycopy(mBuffer, mStart, mBuffer, 0, mLength-mStart);
+			mLength -= mStart;
+			mScan -= mStart;
+			mStart = 0;
+		} else {
+			grow();
+		}
+	}
+
+	private void grow() throws IOException {
+		if (mBuffer.length>=MAX_REQUEST_LENGTH) throw new IOException("Request too long");
+		byte[] buffer = new byte[2*mBuffer.length];
+		System.arraycopy(mBuffer, 0, buffer, 0, mLength);
+		mBuffer = buffer;
+		mByteBuffer = ByteBuffer.wrap(mBuffer);
+	}
+
+}
@@ -1,10 +1,19 @@
 package net.majorkernelpanic.streaming.rtsp;
 
+import java.io.BufferedInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
 
+import net.majorkernelpanic.streaming.rtcp.RtcpReceiver;
+
+/**
+ * Separates the RTCP packets that a server interleaves in an RTSP connection ('$' frames) from 
+ * its responses: the packets go to the {@link RtcpReceiver} of their channel, the responses 
+ * can be read from this stream.
+ */
 class RtcpDeinterleaver extends InputStream implements Runnable {
 	
 	public final static String TAG = "RtcpDeinterleaver";
@@ -14,6 +23,9 @@ class RtcpDeinterleaver extends InputStream implements Runnable {
 	private PipedInputStream mPipedInputStream;
 	private PipedOutputStream mPipedOutputStream;
 	private byte[] mBuffer;
+	private byte[] mFrame = new byte[1500];
+	// By channel, copied on write
+	private volatile RtcpReceiver[] mReceivers = new RtcpReceiver[256];
 	
 	public RtcpDeinterleaver(InputStream inputStream) {
 		mInputStream = inputStream;
@@ -25,12 +37,38 @@ class RtcpDeinterleaver extends InputStream implements Runnable {
 		new Thread(this).start();
 	}
 
+	/** Passes the packets interleaved on a channel to a receiver, null to skip them. */
+	public synchronized void setReceiver(int channel, RtcpReceiver receiver) {
+		RtcpReceiver[] receivers = mReceivers.clone();
+		receivers[channel&0xFF] = receiver;
+		mReceivers = receivers;
+	}
+
 	@Override
 	public void run() {
+		InputStream input = new BufferedInputStream(mInputStream);
+		boolean lineStart = true;
+		int length = 0;
 		try {
 			while (true) {
-				int len = mInputStream.read(mBuffer, 0, 1024);
-				mPipedOutputStream.write(mBuffer, 0, len);
+				int c = input.read();
+				if (c<0) throw new EOFException("Connection closed");
+				if (lineStart && c == '$') {
+					// A frame only starts where a line could
+					if (length>0) {
+						mPipedOutputStream.write(mBuffer, 0, length);
+						length = 0;
+					}
+					receiveFrame(input);
+					continue;
+				}
+				mBuffer[length++] = (byte) c;
+				lineStart = c == '\n';
+				// Hands the text over when nothing more is available or the buffer is full
+				if (length == mBuffer.length || input.available() == 0) {
+					mPipedOutputStream.write(mBuffer, 0, length);
+					length = 0;
+				}
 			}
 		} catch (IOException e) {
 			try {
@@ -40,6 +78,25 @@ class RtcpDeinterleaver extends InputStream implements Runnable {
 		}
 	}
 
+	private void receiveFrame(InputStream input) throws IOException {
+		int channel = readByte(input);
+		int size = readByte(input)<<8 | readByte(input);
+		if (size>mFrame.length) mFrame = new byte[size];
+		for (int n=0;n<size;) {
+			int len = input.read(mFrame, n, size-n);
+			if (len<0) throw new EOFException("Connection closed");
+			n += len;
+		}
+		RtcpReceiver receiver = mReceivers[channel];
+		if (receiver != null) receiver.receive(mFrame, 0, size);
+	}
+
+	private static int readByte(InputStream input) throws IOException {
+		int c = input.read();
+		if (c<0) throw new EOFException("Connection closed");
+		return c;
+	}
+
 	@Override
 	public int read(byte[] buffer) throws IOException {
 		if (mIOException != null) {
@@ -36,6 +36,7 @@ import java.util.concurrent.Semaphore;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import net.majorkernelpanic.streaming.MediaStream;
 import net.majorkernelpanic.streaming.Session;
 import net.majorkernelpanic.streaming.Stream;
 import net.majorkernelpanic.streaming.rtp.RtpSocket;
@@ -118,6 +119,7 @@ public class RtspClient {
 	private String mSessionID;
 	private String mAuthorization;
 	private BufferedReader mBufferedReader;
+	private RtcpDeinterleaver mDeinterleaver;
 	private OutputStream mOutputStream;
 	private Callback mCallback;
 	private Handler mMainHandler;
@@ -307,7 +309,9 @@ public class RtspClient {
 	private void tryConnection() throws IOException {
 		mCSeq = 0;
 		mSocket = new Socket(mParameters.host, mParameters.port);
-		mBufferedReader = new BufferedReader(new InputStreamReader(mSocket.getInputStream()));
+		// The server may interleave RTCP packets between its responses
+		mDeinterleaver = new RtcpDeinterleaver(mSocket.getInputStream());
+		mBufferedReader = new BufferedReader(new InputStreamReader(mDeinterleaver));
 		mOutputStream = new BufferedOutputStream(mSocket.getOutputStream());
 		sendRequestAnnounce();
 		sendRequestSetup();
@@ -432,6 +436,7 @@ public class RtspClient {
 					}
 				} else {
 					stream.setOutputStream(mOutputStream, (byte)(2*i));
+					mDeinterleaver.setReceiver(2*i+1, ((MediaStream) stream).getPacketizer().getRtpSocket().getRtcpReceiver());
 				}
 			}
 		}
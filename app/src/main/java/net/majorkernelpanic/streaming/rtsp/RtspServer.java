@@ -20,24 +20,31 @@
 
 package net.majorkernelpanic.streaming.rtsp;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.BindException;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
-import java.util.HashMap;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.Locale;
 import java.util.WeakHashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
+import net.majorkernelpanic.streaming.MediaStream;
 import net.majorkernelpanic.streaming.Session;
 import net.majorkernelpanic.streaming.SessionBuilder;
+import net.majorkernelpanic.streaming.Stream;
+import net.majorkernelpanic.streaming.rtcp.ReceiverStats;
+import net.majorkernelpanic.streaming.rtcp.RtcpReceiver;
+import net.majorkernelpanic.streaming.rtp.RtpDestination;
+import net.majorkernelpanic.streaming.rtp.RtpSocket;
+import net.majorkernelpanic.streaming.rtsp.BroadcastHub.Broadcast;
 import android.app.Service;
 import android.content.Intent;
 import android.content.SharedPreferences;
@@ -79,6 +86,12 @@ public class RtspServer extends Service {
 	/** Streaming stopped. */
 	public final static int MESSAGE_STREAMING_STOPPED = 0X01;
 	
+	/** Each client is served by a thread of its own. */
+	public final static int LISTENER_THREADS = 0x00;
+
+	/** All the clients are served by a single thread and a small pool of workers, see {@link SelectorListener}. */
+	public final static int LISTENER_SELECTOR = 0x01;
+
 	/** Key used in the SharedPreferences to store whether the RTSP server is enabled or not. */
 	public final static String KEY_ENABLED = "rtsp_enabled";
 
@@ -90,8 +103,12 @@ public class RtspServer extends Service {
 	protected boolean mEnabled = true;	
 	protected int mPort = DEFAULT_RTSP_PORT;
 	protected WeakHashMap<Session,Object> mSessions = new WeakHashMap<Session,Object>(2);
+	protected boolean mBroadcast = false;
+	protected int mListenerMode = LISTENER_THREADS;
+	private final BroadcastHub mHub = new BroadcastHub();
 	
 	private RequestListener mListenerThread;
+	private SelectorListener mSelectorListener;
 	private final IBinder mBinder = new LocalBinder();
 	private boolean mRestart = false;
 	private final LinkedList<CallbackListener> mListeners = new LinkedList<CallbackListener>();
@@ -166,17 +183,56 @@ public class RtspServer extends Service {
         mPassword = password;
     }
 
+	/**
+	 * In broadcast mode, all the clients that request the same URI share the same 
+	 * {@link Session}: the camera and the encoders are only used once and the packets 
+	 * are sent to every client with its own SSRC, sequence numbers and timestamps.
+	 * Disabled by default. The parameters of the URI that concern the destination of 
+	 * the stream (multicast, unicast, ttl) are ignored in broadcast mode. 
+	 * A client that does not keep up with the stream skips to the next key frame, 
+	 * it is disconnected if it stays behind for more than 5 seconds 
+	 * (see {@link RtpDestination#SLOW_DISCONNECT}).
+	 */
+	public void setBroadcastMode(boolean broadcast) {
+		mBroadcast = broadcast;
+	}
+
+	public boolean isBroadcastMode() {
+		return mBroadcast;
+	}
+
+	/**
+	 * Sets how the clients are served, takes effect the next time {@link #start()} is called.
+	 * @param mode Can be {@link #LISTENER_THREADS} (default) or {@link #LISTENER_SELECTOR}, 
+	 * use the latter when many clients are connected at the same time.
+	 */
+	public void setListenerMode(int mode) {
+		if (mode != mListenerMode) {
+			mListenerMode = mode;
+			mRestart = true;
+		}
+	}
+
+	public int getListenerMode() {
+		return mListenerMode;
+	}
+
 	/** 
 	 * Starts (or restart if needed, if for example the configuration 
 	 * of the server has been modified) the RTSP server. 
 	 */
 	public void start() {
 		if (!mEnabled || mRestart) stop();
-		if (mEnabled && mListenerThread == null) {
+		if (mEnabled && mListenerThread == null && mSelectorListener == null) {
 			try {
-				mListenerThread = new RequestListener();
+				if (mListenerMode == LISTENER_SELECTOR) {
+					mSelectorListener = new SelectorListener(this, mPort);
+				} else {
+					mListenerThread = new RequestListener();
+				}
 			} catch (Exception e) {
 				mListenerThread = null;
+				mSelectorListener = null;
 			}
 		}
 		mRestart = false;
@@ -187,9 +243,10 @@ public class RtspServer extends Service {
 	 * To stop the Android Service you need to call {@link android.content.Context#stopService(Intent)}; 
 	 */
 	public void stop() {
-		if (mListenerThread != null) {
+		if (mListenerThread != null || mSelectorListener != null) {
 			try {
-				mListenerThread.kill();
+				if (mListenerThread != null) mListenerThread.kill();
+				if (mSelectorListener != null) mSelectorListener.kill();
 				for ( Session session : mSessions.keySet() ) {
 				    if ( session != null ) {
 				    	if (session.isStreaming()) session.stop();
@@ -198,6 +255,7 @@ public class RtspServer extends Service {
 			} catch (Exception e) {
 			} finally {
 				mListenerThread = null;
+				mSelectorListener = null;
 			}
 		}
 	}
@@ -227,6 +285,19 @@ public class RtspServer extends Service {
 		return bitrate;
 	}
 	
+	/** Returns what the receivers of every session report in their RTCP packets. */
+	public ReceiverStats[] getReceiverStats() {
+		ArrayList<ReceiverStats> stats = new ArrayList<ReceiverStats>();
+		for ( Session session : mSessions.keySet() ) {
+			if ( session != null ) {
+				for (int id=0;id<2;id++) {
+					if (session.trackExists(id)) Collections.addAll(stats, session.getReceiverStats(id));
+				}
+			}
+		}
+		return stats.toArray(new ReceiverStats[stats.size()]);
+	}
+
 	@Override
 	public int onStartCommand(Intent intent, int flags, int startId) {
 		return START_STICKY;
@@ -365,16 +436,16 @@ public class RtspServer extends Service {
 
 		private final Socket mClient;
 		private final OutputStream mOutput;
-		private final BufferedReader mInput;
-
-		// Each client has an associated session
-		private Session mSession;
+		private final InputStream mInput;
+		private final RequestReader mReader;
+		private final Connection mConnection;
 
 		public WorkerThread(final Socket client) throws IOException {
-			mInput = new BufferedReader(new InputStreamReader(client.getInputStream()));
+			mInput = client.getInputStream();
 			mOutput = client.getOutputStream();
 			mClient = client;
-			mSession = new Session();
+			mConnection = new Connection(client);
+			mReader = new RequestReader(1024, mConnection);
 		}
 
 		public void run() {
@@ -390,8 +461,10 @@ public class RtspServer extends Service {
 
 				// Parse the request
 				try {
-					request = Request.parseRequest(mInput);
-				} catch (SocketException e) {
+					while ((request = mReader.next()) == null) {
+						if (mReader.read(mInput)<0) throw new SocketException("Client disconnected");
+					}
+				} catch (IOException e) {
 					// Client has left
 					break;
 				} catch (Exception e) {
@@ -403,7 +476,7 @@ public class RtspServer extends Service {
 				// Do something accordingly like starting the streams, sending a session description
 				if (request != null) {
 					try {
-						response = processRequest(request);
+						response = mConnection.processRequest(request);
 					}
 					catch (Exception e) {
 						// This alerts the main thread that something has gone wrong in this thread
@@ -417,33 +490,174 @@ public class RtspServer extends Service {
 				// We always send a response
 				// The client will receive an "INTERNAL SERVER ERROR" if an exception has been thrown at some point
 				try {
-					response.send(mOutput);
+					// Once packets are interleaved in the connection, responses are written between them
+					InterleavedWriter writer = mConnection.getWriter();
+					response.send(writer != null ? writer : mOutput);
 				} catch (IOException e) {
 					Log.e(TAG,"Response was not sent properly");
 					break;
 				}
+				mReader.done();
 
 			}
 
 			// Streaming stops when client disconnects
+			mConnection.release();
+
+			try {
+				mClient.close();
+			} catch (IOException ignore) {}
+
+			Log.i(TAG, "Client disconnected");
+
+		}
+
+	}
+
+	/** 
+	 * A client of the server and its session. Its requests are handled one at a time, 
+	 * by its {@link WorkerThread} or by the workers of the {@link SelectorListener}.
+	 */
+	class Connection {
+
+		private final Socket mClient;
+
+		// Each client has an associated session
+		private Session mSession;
+
+		// In broadcast mode the session is shared, the client gets its own destinations
+		private Broadcast mBroadcastSession = null;
+		private final RtpDestination[] mDestinations = new RtpDestination[2];
+
+		// Writes the packets interleaved in the connection, created by the first SETUP that asks for TCP
+		private volatile InterleavedWriter mWriter = null;
+		// Parse the RTCP packets interleaved by the client, by channel, copied on write
+		private volatile RtcpReceiver[] mRtcpReceivers = new RtcpReceiver[256];
+		// The client joined a video track that was already running, it needs a key frame when it plays
+		private boolean mJoined = false;
+
+		public Connection(final Socket client) {
+			mClient = client;
+			mSession = new Session();
+		}
+
+		/** Returns the writer of the packets interleaved in the connection, null if there are none. */
+		public InterleavedWriter getWriter() {
+			return mWriter;
+		}
+
+		/** Called once the client is gone, stops the session or leaves the broadcast. */
+		public void release() {
 			boolean streaming = isStreaming();
-			mSession.syncStop();
+			// Wakes up the senders that wait for the writer
+			if (mWriter != null) mWriter.close();
+			if (mBroadcastSession != null) {
+				leaveBroadcast();
+			} else {
+				mSession.syncStop();
+				mSession.release();
+			}
 			if (streaming && !isStreaming()) {
 				postMessage(MESSAGE_STREAMING_STOPPED);
 			}
-			mSession.release();
+		}
 
+		/** Closes the connection, called when the client does not keep up with the stream. */
+		protected void disconnect() {
+			// The thread that reads the requests of the client then calls release()
 			try {
 				mClient.close();
 			} catch (IOException ignore) {}
+		}
 
-			Log.i(TAG, "Client disconnected");
+		/** Joins the broadcast of the URI, the session is created by the first client. */
+		private void joinBroadcast(String uri) throws IllegalStateException, IOException {
+			Broadcast broadcast = mHub.join(uri);
+			try {
+				synchronized (broadcast) {
+					if (broadcast.session == null) {
+						Session session = handleRequest(uri, mClient);
+						// The packets only go to the RtpDestinations of the clients, not to the 
+						// address and the ports set by the SessionBuilder for the first one
+						for (int id=0;id<2;id++) {
+							if (session.trackExists(id)) session.getTrack(id).setDestinationPorts(0, 0);
+						}
+						session.syncConfigure();
+						broadcast.session = session;
+					}
+					mSession = broadcast.session;
+				}
+			} catch (IOException e) {
+				if (mHub.leave(broadcast)) closeBroadcast(broadcast);
+				throw e;
+			} catch (RuntimeException e) {
+				if (mHub.leave(broadcast)) closeBroadcast(broadcast);
+				throw e;
+			}
+			mBroadcastSession = broadcast;
+			mSessions.put(mSession, null);
+		}
 
+		/** Removes the destinations of the client, the last client stops the session. */
+		private void leaveBroadcast() {
+			Broadcast broadcast = mBroadcastSession;
+			for (int id=0;id<2;id++) {
+				if (mDestinations[id] != null) {
+					getRtpSocket(mSession, id).removeDestination(mDestinations[id]);
+					mDestinations[id].close();
+					mDestinations[id] = null;
+				}
+			}
+			if (mHub.leave(broadcast)) closeBroadcast(broadcast);
+			mBroadcastSession = null;
+		}
+
+		/** Stops the session of a broadcast that lost its last client. */
+		private void closeBroadcast(Broadcast broadcast) {
+			try {
+				synchronized (broadcast) {
+					if (broadcast.session != null) {
+						broadcast.session.syncStop();
+						broadcast.session.release();
+					}
+				}
+			} finally {
+				// Only now can a new client create another session
+				mHub.remove(broadcast);
+			}
+		}
+
+		/** Called by the reader of the requests with each packet interleaved by the client. */
+		public void receiveInterleaved(int channel, byte[] buffer, int offset, int length) {
+			RtcpReceiver receiver = mRtcpReceivers[channel];
+			if (receiver != null) receiver.receive(buffer, offset, length);
+		}
+
+		private void setRtcpReceiver(int channel, RtcpReceiver receiver) {
+			if (channel>255) return;
+			RtcpReceiver[] receivers = mRtcpReceivers.clone();
+			receivers[channel] = receiver;
+			mRtcpReceivers = receivers;
+		}
+
+		private InterleavedWriter openWriter() throws IOException {
+			if (mWriter == null) {
+				SocketChannel channel = mClient.getChannel();
+				mWriter = channel != null ? new InterleavedWriter(this, channel) : new InterleavedWriter(this, mClient.getOutputStream());
+			}
+			return mWriter;
+		}
+
+		private RtpSocket getRtpSocket(Session session, int trackId) {
+			return ((MediaStream) session.getTrack(trackId)).getPacketizer().getRtpSocket();
 		}
 
 		public Response processRequest(Request request) throws IllegalStateException, IOException {
 			Response response = new Response(request);
 
+			// It's not an error, it's just easier to follow what's happening in logcat with the request in red
+			Log.e(TAG,request.method+" "+request.uri);
+
             //Ask for authorization unless this is an OPTIONS request
             if(!isAuthorized(request) && !request.method.equalsIgnoreCase("OPTIONS"))
             {
@@ -457,12 +671,23 @@ public class RtspServer extends Service {
 			    /* ********************************************************************************** */
                 if (request.method.equalsIgnoreCase("DESCRIBE")) {
 
-                    // Parse the requested URI and configure the session
-                    mSession = handleRequest(request.uri, mClient);
-                    mSessions.put(mSession, null);
-                    mSession.syncConfigure();
+                    String requestContent;
+                    if (mBroadcast) {
+                        // The session may already be running for other clients
+                        if (mBroadcastSession == null) joinBroadcast(request.uri);
+                        synchronized (mBroadcastSession) {
+                            requestContent = mSession.getSessionDescription().replace(
+                                    "c=IN IP4 " + mSession.getDestination(),
+                                    "c=IN IP4 " + mClient.getInetAddress().getHostAddress());
+                        }
+                    } else {
+                        // Parse the requested URI and configure the session
+                        mSession = handleRequest(request.uri, mClient);
+                        mSessions.put(mSession, null);
+                        mSession.syncConfigure();
+                        requestContent = mSession.getSessionDescription();
+                    }
 
-                    String requestContent = mSession.getSessionDescription();
                     String requestAttributes =
                             "Content-Base: " + mClient.getLocalAddress().getHostAddress() + ":" + mClient.getLocalPort() + "/\r\n" +
                                     "Content-Type: application/sdp\r\n";
@@ -480,7 +705,7 @@ public class RtspServer extends Service {
                 /* ********************************************************************************** */
                 else if (request.method.equalsIgnoreCase("OPTIONS")) {
                     response.status = Response.STATUS_OK;
-                    response.attributes = "Public: DESCRIBE,SETUP,TEARDOWN,PLAY,PAUSE\r\n";
+                    response.attributes = "Public: DESCRIBE,SETUP,TEARDOWN,PLAY,PAUSE,GET_PARAMETER\r\n";
                     response.status = Response.STATUS_OK;
                 }
 
@@ -488,40 +713,41 @@ public class RtspServer extends Service {
                 /* ********************************** Method SETUP ********************************** */
                 /* ********************************************************************************** */
                 else if (request.method.equalsIgnoreCase("SETUP")) {
-                    Pattern p;
-                    Matcher m;
                     int p2, p1, ssrc, trackId, src[];
                     String destination;
 
-                    p = Pattern.compile("trackID=(\\w+)", Pattern.CASE_INSENSITIVE);
-                    m = p.matcher(request.uri);
+                    trackId = request.getTrackId();
 
-                    if (!m.find()) {
+                    if (trackId<0) {
                         response.status = Response.STATUS_BAD_REQUEST;
                         return response;
                     }
 
-                    trackId = Integer.parseInt(m.group(1));
-
                     if (!mSession.trackExists(trackId)) {
                         response.status = Response.STATUS_NOT_FOUND;
                         return response;
                     }
 
-                    p = Pattern.compile("client_port=(\\d+)-(\\d+)", Pattern.CASE_INSENSITIVE);
-                    m = p.matcher(request.headers.get("transport"));
+                    Transport transport = request.getTransport();
 
-                    if (!m.find()) {
+                    if (transport == null || transport.rtpPort<0) {
                         int[] ports = mSession.getTrack(trackId).getDestinationPorts();
                         p1 = ports[0];
                         p2 = ports[1];
                     } else {
-                        p1 = Integer.parseInt(m.group(1));
-                        p2 = Integer.parseInt(m.group(2));
+                        p1 = transport.rtpPort;
+                        p2 = transport.rtcpPort;
+                    }
+
+                    if (mBroadcastSession != null) {
+                        return setupBroadcast(response, trackId, transport, p1, p2);
+                    }
+
+                    if (transport != null && transport.tcp) {
+                        return setupInterleaved(response, trackId, transport);
                     }
 
                     ssrc = mSession.getTrack(trackId).getSSRC();
-                    src = mSession.getTrack(trackId).getLocalPorts();
                     destination = mSession.getDestination();
 
                     mSession.getTrack(trackId).setDestinationPorts(p1, p2);
@@ -532,6 +758,9 @@ public class RtspServer extends Service {
                         postMessage(MESSAGE_STREAMING_STARTED);
                     }
 
+                    // Only known once the destination is set when the RTP sockets use a UdpChannel
+                    src = mSession.getTrack(trackId).getLocalPorts();
+
                     response.attributes = "Transport: RTP/AVP/UDP;" + (InetAddress.getByName(destination).isMulticastAddress() ? "multicast" : "unicast") +
                             ";destination=" + mSession.getDestination() +
                             ";client_port=" + p1 + "-" + p2 +
@@ -560,11 +789,22 @@ public class RtspServer extends Service {
 
                     response.attributes = requestAttributes;
 
+                    // The receiver can only decode what follows the next key frame
+                    if (mJoined) mSession.requestKeyFrame();
+
                     // If no exception has been thrown, we reply with OK
                     response.status = Response.STATUS_OK;
 
                 }
 
+                /* ********************************************************************************** */
+                /* ****************************** Method GET_PARAMETER ****************************** */
+                /* ********************************************************************************** */
+                else if (request.method.equalsIgnoreCase("GET_PARAMETER")) {
+                    // Used by clients to keep the connection alive
+                    response.status = Response.STATUS_OK;
+                }
+
                 /* ********************************************************************************** */
                 /* ********************************** Method PAUSE ********************************** */
                 /* ********************************************************************************** */
@@ -591,6 +831,92 @@ public class RtspServer extends Service {
 
 		}
 
+        /** SETUP with RTP/AVP/TCP: the packets of the track are interleaved in the connection. */
+        private Response setupInterleaved(Response response, int trackId, Transport transport) throws IllegalStateException, IOException {
+            int channel = interleavedChannel(trackId, transport);
+            InterleavedWriter writer = openWriter();
+            Stream stream = mSession.getTrack(trackId);
+            stream.setOutputStream(writer, (byte) channel);
+            // The stream was configured by DESCRIBE, it only gives the output stream to its RTP socket when configured
+            RtpSocket socket = getRtpSocket(mSession, trackId);
+            socket.setOutputStream(writer, (byte) channel);
+            setRtcpReceiver(channel+1, socket.getRtcpReceiver());
+
+            boolean streaming = isStreaming();
+            mSession.syncStart(trackId);
+            if (!streaming && isStreaming()) {
+                postMessage(MESSAGE_STREAMING_STARTED);
+            }
+
+            response.attributes = "Transport: RTP/AVP/TCP;unicast" +
+                    ";interleaved=" + channel + "-" + (channel+1) +
+                    ";ssrc=" + Integer.toHexString(stream.getSSRC()) +
+                    ";mode=play\r\n" +
+                    "Session: " + "1185d20035702ca" + "\r\n" +
+                    "Cache-Control: no-cache\r\n";
+            response.status = Response.STATUS_OK;
+            return response;
+        }
+
+        /** The channel asked by the client for RTP, RTCP always uses the next one. */
+        private int interleavedChannel(int trackId, Transport transport) {
+            return transport.rtpChannel>=0 && transport.rtpChannel<255 ? transport.rtpChannel : 2*trackId;
+        }
+
+        /** SETUP in broadcast mode: the client gets its own destination on the shared RTP socket. */
+        private Response setupBroadcast(Response response, int trackId, Transport transport, int p1, int p2) throws IllegalStateException, IOException {
+            boolean tcp = transport != null && transport.tcp;
+            RtpDestination destination = mDestinations[trackId];
+            if (destination == null) {
+                if (tcp) {
+                    destination = new RtpDestination(openWriter(), (byte) interleavedChannel(trackId, transport));
+                    setRtcpReceiver(destination.getChannel()+1, destination.getRtcpReceiver());
+                } else {
+                    destination = new RtpDestination(mClient.getInetAddress(), p1, p2);
+                }
+                destination.setSlowConsumerPolicy(RtpDestination.SLOW_DISCONNECT);
+                destination.setCallback(new RtpDestination.Callback() {
+                    @Override
+                    public void onSlowConsumer(RtpDestination destination) {
+                        disconnect();
+                    }
+                });
+                mDestinations[trackId] = destination;
+                // Clients that join a running broadcast start with the cached GOP
+                RtpSocket socket = getRtpSocket(mSession, trackId);
+                socket.setGopCacheEnabled(true);
+                socket.addDestination(destination);
+            }
+
+            boolean streaming = isStreaming();
+            synchronized (mBroadcastSession) {
+                if (!mSession.getTrack(trackId).isStreaming()) mSession.syncStart(trackId);
+                else if (trackId == 1) mJoined = true;
+            }
+            if (!streaming && isStreaming()) {
+                postMessage(MESSAGE_STREAMING_STARTED);
+            }
+
+            String spec;
+            if (destination.getChannel()>=0) {
+                spec = "RTP/AVP/TCP;unicast" +
+                        ";interleaved=" + destination.getChannel() + "-" + (destination.getChannel()+1);
+            } else {
+                int[] src = destination.getLocalPorts();
+                spec = "RTP/AVP/UDP;unicast" +
+                        ";destination=" + mClient.getInetAddress().getHostAddress() +
+                        ";client_port=" + p1 + "-" + p2 +
+                        ";server_port=" + src[0] + "-" + src[1];
+            }
+            response.attributes = "Transport: " + spec +
+                    ";ssrc=" + Integer.toHexString(destination.getSSRC()) +
+                    ";mode=play\r\n" +
+                    "Session: " + "1185d20035702ca" + "\r\n" +
+                    "Cache-Control: no-cache\r\n";
+            response.status = Response.STATUS_OK;
+            return response;
+        }
+
         /**
          * Check if the request is authorized
          * @param request
@@ -598,7 +924,7 @@ public class RtspServer extends Service {
          */
         private boolean isAuthorized(Request request)
         {
-            String auth = request.headers.get("authorization");
+            String auth = request.getHeader(Request.AUTHORIZATION);
             if(mUsername == null || mPassword == null || mUsername.isEmpty())
                 return true;
 
@@ -615,43 +941,209 @@ public class RtspServer extends Service {
         }
 	}
 
+	/**
+	 * A request of a client, parsed in place in the buffer of a {@link RequestReader}: 
+	 * headers are not copied, their values are only decoded when they are asked for. 
+	 * The same instance is reused for all the requests of a client.
+	 */
 	static class Request {
 
-		// Parse method & uri
-		public static final Pattern regexMethod = Pattern.compile("(\\w+) (\\S+) RTSP",Pattern.CASE_INSENSITIVE);
-		// Parse a request header
-		public static final Pattern rexegHeader = Pattern.compile("(\\S+):(.+)",Pattern.CASE_INSENSITIVE);
+		/** Ids of the headers the server cares about, see {@link #getHeader(int)}. */
+		public static final int CSEQ = 0, TRANSPORT = 1, SESSION = 2, AUTHORIZATION = 3, CONTENT_LENGTH = 4;
+		private static final String[] KNOWN_HEADERS = {"CSeq", "Transport", "Session", "Authorization", "Content-Length"};
+
+		/** The usual methods, {@link #method} is one of them if the client used one, it can be compared with ==. */
+		public static final String OPTIONS = "OPTIONS", GET_PARAMETER = "GET_PARAMETER", DESCRIBE = "DESCRIBE", SETUP = "SETUP", 
+				PLAY = "PLAY", PAUSE = "PAUSE", TEARDOWN = "TEARDOWN", SET_PARAMETER = "SET_PARAMETER", ANNOUNCE = "ANNOUNCE", RECORD = "RECORD";
+		private static final String[] METHODS = {
+			OPTIONS, GET_PARAMETER, DESCRIBE, SETUP, PLAY, PAUSE, TEARDOWN, SET_PARAMETER, ANNOUNCE, RECORD
+		};
+
+		private static final int MAX_HEADERS = 32;
+
+		static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
 
 		public String method;
 		public String uri;
-		public HashMap<String,String> headers = new HashMap<String,String>();
-
-		/** Parse the method, uri & headers of a RTSP request */
-		public static Request parseRequest(BufferedReader input) throws IOException, IllegalStateException, SocketException {
-			Request request = new Request();
-			String line;
-			Matcher matcher;
-
-			// Parsing request method & uri
-			if ((line = input.readLine())==null) throw new SocketException("Client disconnected");
-			matcher = regexMethod.matcher(line);
-			matcher.find();
-			request.method = matcher.group(1);
-			request.uri = matcher.group(2);
-
-			// Parsing headers of the request
-			while ( (line = input.readLine()) != null && line.length()>3 ) {
-				matcher = rexegHeader.matcher(line);
-				matcher.find();
-				request.headers.put(matcher.group(1).toLowerCase(Locale.US),matcher.group(2));
+
+		private byte[] mBuffer;
+		private int mCount, mContentLength;
+		private final int[] mNameStart = new int[MAX_HEADERS], mNameEnd = new int[MAX_HEADERS];
+		private final int[] mValueStart = new int[MAX_HEADERS], mValueEnd = new int[MAX_HEADERS];
+		private final int[] mKnown = new int[KNOWN_HEADERS.length];
+		private final Transport mTransport = new Transport();
+		private boolean mTransportParsed;
+
+		/**
+		 * Parses the request line and the headers of a request.
+		 * @param buffer Holds the request, it must not be modified while the request is used
+		 * @param start Where the request starts
+		 * @param end Where the headers end, after the empty line
+		 * @throws IllegalStateException If the request is malformed
+		 */
+		public void parse(byte[] buffer, int start, int end) throws IllegalStateException {
+			mBuffer = buffer;
+			mCount = 0;
+			mTransportParsed = false;
+			for (int i=0;i<mKnown.length;i++) mKnown[i] = -1;
+
+			// Request line: method SP uri SP RTSP/1.0
+			int eol = endOfLine(buffer, start, end);
+			int sp1 = indexOf(buffer, start, eol, ' ');
+			int sp2 = indexOf(buffer, sp1+1, eol, ' ');
+			if (sp1 == start || sp2 >= eol || !startsWith(buffer, sp2+1, eol, "RTSP/")) {
+				method = uri = null;
+				throw new IllegalStateException("Malformed request line");
+			}
+			method = method(buffer, start, sp1);
+			if (uri == null || !equals(buffer, sp1+1, sp2, uri)) {
+				// Clients usually request the same URI again and again
+				uri = new String(buffer, sp1+1, sp2-sp1-1, ISO_8859_1);
 			}
-			if (line==null) throw new SocketException("Client disconnected");
 
-			// It's not an error, it's just easier to follow what's happening in logcat with the request in red
-			Log.e(TAG,request.method+" "+request.uri);
+			// Headers: name ':' value
+			int line = next(buffer, eol, end);
+			while (line<end && (eol = endOfLine(buffer, line, end))>line) {
+				int colon = indexOf(buffer, line, eol, ':');
+				if (colon<eol && buffer[line] != ' ' && buffer[line] != '\t' && mCount<MAX_HEADERS) {
+					int vs = colon+1, ve = eol;
+					while (vs<ve && (buffer[vs] == ' ' || buffer[vs] == '\t')) vs++;
+					while (ve>vs && (buffer[ve-1] == ' ' || buffer[ve-1] == '\t')) ve--;
+					mNameStart[mCount] = line;
+					mNameEnd[mCount] = colon;
+					mValueStart[mCount] = vs;
+					mValueEnd[mCount] = ve;
+					for (int i=0;i<KNOWN_HEADERS.length;i++) {
+						if (mKnown[i]<0 && equalsIgnoreCase(buffer, line, colon, KNOWN_HEADERS[i])) mKnown[i] = mCount;
+					}
+					mCount++;
+				}
+				line = next(buffer, eol, end);
+			}
+
+			int i = mKnown[CONTENT_LENGTH];
+			mContentLength = i>=0 ? Math.max(0, parseInt(buffer, mValueStart[i], mValueEnd[i])) : 0;
+		}
+
+		/** Returns the value of a header, decoded now, or null. */
+		public String getHeader(int id) {
+			int i = mKnown[id];
+			return i>=0 ? new String(mBuffer, mValueStart[i], mValueEnd[i]-mValueStart[i], ISO_8859_1) : null;
+		}
 
-			return request;
+		/** Returns the value of a header, its name is not case sensitive, or null. */
+		public String getHeader(String name) {
+			for (int i=0;i<mCount;i++) {
+				if (equalsIgnoreCase(mBuffer, mNameStart[i], mNameEnd[i], name)) {
+					return new String(mBuffer, mValueStart[i], mValueEnd[i]-mValueStart[i], ISO_8859_1);
+				}
+			}
+			return null;
+		}
+
+		public boolean hasHeader(int id) {
+			return mKnown[id]>=0;
+		}
+
+		/** Returns the CSeq of the request, -1 if it has none. */
+		public int getCSeq() {
+			int i = mKnown[CSEQ];
+			return i>=0 ? parseInt(mBuffer, mValueStart[i], mValueEnd[i]) : -1;
+		}
+
+		/** Returns the length of the content that follows the headers. */
+		public int getContentLength() {
+			return mContentLength;
+		}
+
+		/** Returns the decoded Transport header, or null if the request has none. */
+		public Transport getTransport() {
+			int i = mKnown[TRANSPORT];
+			if (i<0) return null;
+			if (!mTransportParsed) {
+				mTransport.parse(mBuffer, mValueStart[i], mValueEnd[i]);
+				mTransportParsed = true;
+			}
+			return mTransport;
+		}
+
+		/** Returns the number that follows "trackID=" in the URI, or -1. */
+		public int getTrackId() {
+			int i = uri.toLowerCase(Locale.US).indexOf("trackid=");
+			if (i<0) return -1;
+			int n = -1;
+			for (i+=8;i<uri.length() && uri.charAt(i)>='0' && uri.charAt(i)<='9';i++) {
+				n = (n<0 ? 0 : 10*n) + uri.charAt(i)-'0';
+			}
+			return n;
+		}
+
+		private static String method(byte[] buffer, int start, int end) {
+			for (String m : METHODS) {
+				if (equalsIgnoreCase(buffer, start, end, m)) return m;
+			}
+			return new String(buffer, start, end-start, ISO_8859_1);
+		}
+
+		/** Returns the end of the line that starts at <code>start</code>, before the CRLF or the LF. */
+		private static int endOfLine(byte[] buffer, int start, int end) {
+			int i = indexOf(buffer, start, end, '\n');
+			return i>start && buffer[i-1] == '\r' ? i-1 : i;
+		}
+
+		/** Returns the start of the line that follows the one that ends at <code>eol</code>. */
+		private static int next(byte[] buffer, int eol, int end) {
+			if (eol<end && buffer[eol] == '\r') eol++;
+			return eol+1;
+		}
+
+		static int indexOf(byte[] buffer, int start, int end, char c) {
+			while (start<end && buffer[start] != c) start++;
+			return start;
 		}
+
+		static boolean startsWith(byte[] buffer, int start, int end, String s) {
+			return end-start>=s.length() && equals(buffer, start, start+s.length(), s);
+		}
+
+		static boolean equals(byte[] buffer, int start, int end, String s) {
+			if (end-start != s.length()) return false;
+			for (int i=0;i<s.length();i++) {
+				if (buffer[start+i] != s.charAt(i)) return false;
+			}
+			return true;
+		}
+
+		static boolean equalsIgnoreCase(byte[] buffer, int start, int end, String s) {
+			if (end-start != s.length()) return false;
+			for (int i=0;i<s.length();i++) {
+				int a = buffer[start+i], b = s.charAt(i);
+				if (a == b) continue;
+				a |= 0x20;
+				if (a != (b|0x20) || a<'a' || a>'z') return false;
+			}
+			return true;
+		}
+
+		/** Parses the digits found between <code>start</code> and <code>end</code>, spaces are skipped, -1 if there are none. */
+		static int parseInt(byte[] buffer, int start, int end) {
+			int n = -1;
+			for (int i=start;i<end;i++) {
+				int c = buffer[i];
+				if (c>='0' && c<='9') {
+					n = (n<0 ? 0 : 10*n) + c-'0';
+				} else if (c != ' ' && c != '\t') {
+					break;
+				}
+			}
+			return n;
+		}
+
+		@Override
+		public String toString() {
+			return method+" "+uri;
+		}
+
 	}
 
 	static class Response {
@@ -679,13 +1171,12 @@ public class RtspServer extends Service {
 		}
 
 		public void send(OutputStream output) throws IOException {
-			int seqid = -1;
+			output.write(format().getBytes());
+		}
 
-			try {
-				seqid = Integer.parseInt(mRequest.headers.get("cseq").replace(" ",""));
-			} catch (Exception e) {
-				Log.e(TAG,"Error parsing CSeq: "+(e.getMessage()!=null?e.getMessage():""));
-			}
+		/** Returns the response as it is sent to the client. */
+		public String format() {
+			int seqid = mRequest != null ? mRequest.getCSeq() : -1;
 
 			String response = 	"RTSP/1.0 "+status+"\r\n" +
 					"Server: "+SERVER_NAME+"\r\n" +
@@ -697,7 +1188,7 @@ public class RtspServer extends Service {
 
 			Log.d(TAG,response.replace("\r", ""));
 
-			output.write(response.getBytes());
+			return response;
 		}
 	}
 
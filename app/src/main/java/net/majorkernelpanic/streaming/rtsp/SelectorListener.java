@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.streaming.rtsp;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import net.majorkernelpanic.streaming.rtsp.RtspServer.Connection;
+import net.majorkernelpanic.streaming.rtsp.RtspServer.Request;
+import net.majorkernelpanic.streaming.rtsp.RtspServer.Response;
+import android.util.Log;
+
+/**
+ * Accepts the clients of an {@link RtspServer} and reads their requests on a single thread 
+ * with a {@link Selector}, see {@link RtspServer#setListenerMode(int)}.
+ * 
+ * Requests are framed as their bytes come in. OPTIONS and GET_PARAMETER, sent by the clients 
+ * to keep their connection alive, are answered right away by the thread of the selector. 
+ * The other requests may take a while (the camera and the encoders are started on SETUP), 
+ * they are handled by a small pool of workers, one at a time for each client.
+ * Responses are encoded in a direct buffer and written without blocking.
+ * An idle client costs a {@link Connection} and a {@link RequestReader}, no thread.
+ */
+class SelectorListener extends Thread implements Runnable {
+
+	public final static String TAG = "SelectorListener";
+
+	/** Number of threads that handle the requests that may block. */
+	private static final int WORKERS = 2;
+
+	private final RtspServer mServer;
+	private final ServerSocketChannel mChannel;
+	private final Selector mSelector;
+	private final ExecutorService mWorkers;
+	private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<Runnable>();
+	private volatile boolean mRunning = true;
+	// Set once the thread of the selector does not run the tasks anymore
+	private boolean mStopped = false;
+
+	// Only used by the thread of the selector
+	private final CharsetEncoder mEncoder = Charset.forName("UTF-8").newEncoder();
+	private final ByteBuffer mOutput = ByteBuffer.allocateDirect(8192);
+
+	public SelectorListener(RtspServer server, int port) throws IOException {
+		mServer = server;
+		mSelector = Selector.open();
+		mChannel = ServerSocketChannel.open();
+		try {
+			mChannel.socket().bind(new InetSocketAddress(port));
+		} catch (BindException e) {
+			Log.e(TAG,"Port already in use !");
+			mChannel.close();
+			mSelector.close();
+			mServer.postError(e, RtspServer.ERROR_BIND_FAILED);
+			throw e;
+		}
+		mChannel.configureBlocking(false);
+		mChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+		mWorkers = Executors.newFixedThreadPool(WORKERS);
+		start();
+	}
+
+	/** A connected client, only used by the thread of the selector. */
+	private class Client {
+
+		private final SocketChannel mSocket;
+		private final Connection mConnection;
+		private SelectionKey mKey;
+		private final RequestReader mReader;
+		// What could not be written yet
+		private ByteBuffer mPending = null;
+		// True while a worker handles a request of the client
+		private boolean mBusy = false, mClosed = false;
+
+		public Client(SocketChannel socket) {
+			mSocket = socket;
+			mConnection = mServer.new Connection(socket.socket()) {
+				@Override
+				protected void disconnect() {
+					post(new Runnable() {
+						@Override
+						public void run() {
+							close(Client.this);
+						}
+					});
+				}
+			};
+			mReader = new RequestReader(1024, mConnection);
+		}
+
+	}
+
+	public void run() {
+		Log.i(TAG,"RTSP server listening on port "+mChannel.socket().getLocalPort());
+		try {
+			while (mRunning) {
+				mSelector.select();
+				Runnable task;
+				while ((task = mTasks.poll()) != null) {
+					task.run();
+				}
+				Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					try {
+						if (!key.isValid()) continue;
+						if (key.isAcceptable()) {
+							accept();
+							continue;
+						}
+						Client client = (Client) key.attachment();
+						if (key.isWritable()) flush(client);
+						if (key.isValid() && key.isReadable()) read(client);
+					} catch (CancelledKeyException ignore) {}
+				}
+			}
+		} catch (IOException e) {
+			Log.e(TAG,e.getMessage()!=null?e.getMessage():"An error occurred");
+		} catch (ClosedSelectorException ignore) {}
+
+		// Clients are disconnected and their sessions released by the workers
+		for (SelectionKey key : mSelector.keys().toArray(new SelectionKey[0])) {
+			if (key.attachment() != null) close((Client) key.attachment());
+		}
+		synchronized (mTasks) {
+			mStopped = true;
+		}
+		Runnable task;
+		while ((task = mTasks.poll()) != null) {
+			task.run();
+		}
+		try {
+			mChannel.close();
+			mSelector.close();
+		} catch (IOException ignore) {}
+		mWorkers.shutdown();
+		Log.i(TAG,"RTSP server stopped !");
+	}
+
+	public void kill() {
+		mRunning = false;
+		mSelector.wakeup();
+		try {
+			this.join();
+		} catch (InterruptedException ignore) {}
+	}
+
+	/** Runs the task on the thread of the selector, or right away if it is gone. */
+	private void post(Runnable task) {
+		synchronized (mTasks) {
+			if (!mStopped) {
+				mTasks.add(task);
+				mSelector.wakeup();
+				return;
+			}
+		}
+		task.run();
+	}
+
+	private void accept() throws IOException {
+		SocketChannel socket;
+		while ((socket = mChannel.accept()) != null) {
+			socket.configureBlocking(false);
+			Client client = new Client(socket);
+			client.mKey = socket.register(mSelector, SelectionKey.OP_READ, client);
+			Log.i(TAG, "Connection from "+socket.socket().getInetAddress().getHostAddress());
+		}
+	}
+
+	private void read(Client client) {
+		int n;
+		try {
+			n = client.mReader.read(client.mSocket);
+		} catch (IOException e) {
+			Log.e(TAG,e.getMessage()!=null?e.getMessage():"An error occurred");
+			n = -1;
+		}
+		if (n<0) {
+			close(client);
+		} else {
+			dispatch(client);
+		}
+	}
+
+	/** Handles the requests waiting in the buffer of the client, until one has to be handled by a worker. */
+	private void dispatch(final Client client) {
+		while (!client.mBusy && !client.mClosed) {
+			final Request request;
+			try {
+				if ((request = client.mReader.next()) == null) return;
+			} catch (Exception e) {
+				// We don't understand the request :/
+				Response response = new Response();
+				response.status = Response.STATUS_BAD_REQUEST;
+				send(client, response.format());
+				client.mReader.done();
+				continue;
+			}
+			if (request.method == Request.OPTIONS || request.method == Request.GET_PARAMETER) {
+				send(client, handle(client, request).format());
+				client.mReader.done();
+				continue;
+			}
+			client.mBusy = true;
+			mWorkers.execute(new Runnable() {
+				@Override
+				public void run() {
+					final String response = handle(client, request).format();
+					post(new Runnable() {
+						@Override
+						public void run() {
+							client.mBusy = false;
+							client.mReader.done();
+							if (client.mClosed) {
+								release(client);
+							} else {
+								send(client, response);
+								dispatch(client);
+							}
+						}
+					});
+				}
+			});
+		}
+	}
+
+	private Response handle(Client client, Request request) {
+		try {
+			return client.mConnection.processRequest(request);
+		} catch (Exception e) {
+			// This alerts the main thread that something has gone wrong in this thread
+			mServer.postError(e, RtspServer.ERROR_START_FAILED);
+			Log.e(TAG,e.getMessage()!=null?e.getMessage():"An error occurred");
+			e.printStackTrace();
+			// The client will receive an "INTERNAL SERVER ERROR"
+			return new Response(request);
+		}
+	}
+
+	/** Encodes the response in the direct buffer and writes it, what can not be written now is kept for later. */
+	private void send(Client client, String response) {
+		if (client.mClosed) return;
+		InterleavedWriter writer = client.mConnection.getWriter();
+		if (writer != null) {
+			sendInterleaved(client, writer, response);
+			return;
+		}
+		CharBuffer chars = CharBuffer.wrap(response);
+		mEncoder.reset();
+		try {
+			CoderResult result;
+			do {
+				mOutput.clear();
+				result = mEncoder.encode(chars, mOutput, true);
+				if (!result.isOverflow()) mEncoder.flush(mOutput);
+				mOutput.flip();
+				if (client.mPending == null) client.mSocket.write(mOutput);
+				if (mOutput.hasRemaining()) {
+					// The send buffer of the socket is full
+					ByteBuffer pending = client.mPending;
+					int size = (pending != null ? pending.remaining() : 0) + mOutput.remaining();
+					client.mPending = ByteBuffer.allocate(size);
+					if (pending != null) client.mPending.put(pending);
+					client.mPending.put(mOutput);
+					client.mPending.flip();
+				}
+			} while (result.isOverflow());
+		} catch (IOException e) {
+			close(client);
+			return;
+		}
+		if (client.mPending != null) {
+			client.mKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+	}
+
+	/** Packets are interleaved in the connection, from now on the writer sends the responses in between. */
+	private void sendInterleaved(Client client, InterleavedWriter writer, String response) {
+		try {
+			if (client.mPending != null) {
+				byte[] pending = new byte[client.mPending.remaining()];
+				client.mPending.get(pending);
+				client.mPending = null;
+				client.mKey.interestOps(SelectionKey.OP_READ);
+				writer.writeNow(pending);
+			}
+			writer.writeNow(response.getBytes("UTF-8"));
+		} catch (IOException e) {
+			close(client);
+		}
+	}
+
+	private void flush(Client client) {
+		try {
+			client.mSocket.write(client.mPending);
+		} catch (IOException e) {
+			close(client);
+			return;
+		}
+		if (!client.mPending.hasRemaining()) {
+			client.mPending = null;
+			client.mKey.interestOps(SelectionKey.OP_READ);
+		}
+	}
+
+	private void close(Client client) {
+		if (client.mClosed) return;
+		client.mClosed = true;
+		client.mKey.cancel();
+		try {
+			client.mSocket.close();
+		} catch (IOException ignore) {}
+		// Otherwise the worker will release it when it is done with the request
+		if (!client.mBusy) release(client);
+	}
+
+	/** Stops the session of the client on a worker, it may take a while. */
+	private void release(final Client client) {
+		Runnable release = new Runnable() {
+			@Override
+			public void run() {
+				client.mConnection.release();
+				Log.i(TAG, "Client disconnected");
+			}
+		};
+		try {
+			mWorkers.execute(release);
+		} catch (RejectedExecutionException e) {
+			// The server is being stopped
+			release.run();
+		}
+	}
+
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.streaming.rtsp;
+
+import net.majorkernelpanic.streaming.rtsp.RtspServer.Request;
+
+/**
+ * The Transport header of a SETUP request (RFC 2326 section 12.39), decoded 
+ * straight from the bytes of the request by {@link RtspServer.Request#getTransport()}.
+ * Only the first transport specification of the header is decoded, the ones that 
+ * follow are alternatives the client would also accept.
+ */
+class Transport {
+
+	/** True for RTP/AVP/TCP, the packets are interleaved in the RTSP connection. */
+	public boolean tcp;
+
+	public boolean multicast;
+
+	/** The client_port parameter, -1 if absent. */
+	public int rtpPort, rtcpPort;
+
+	/** The interleaved parameter, -1 if absent. */
+	public int rtpChannel, rtcpChannel;
+
+	/** The ttl parameter, -1 if absent. */
+	public int ttl;
+
+	/** The destination parameter, null if absent. */
+	public String destination;
+
+	/** True if the mode parameter is "record". */
+	public boolean record;
+
+	public void reset() {
+		tcp = false;
+		multicast = false;
+		rtpPort = rtcpPort = -1;
+		rtpChannel = rtcpChannel = -1;
+		ttl = -1;
+		destination = null;
+		record = false;
+	}
+
+	/** Decodes the header value found between <code>start</code> and <code>end</code>. */
+	public void parse(byte[] buffer, int start, int end) {
+		reset();
+		int i = start;
+		while (i<end) {
+			// One parameter, up to the next ';'
+			int s = i, e = i;
+			while (e<end && buffer[e] != ';' && buffer[e] != ',') e++;
+			int eq = s;
+			while (eq<e && buffer[eq] != '=') eq++;
+			int ns = trimStart(buffer, s, eq), ne = trimEnd(buffer, ns, eq);
+			int vs = eq<e ? trimStart(buffer, eq+1, e) : e, ve = trimEnd(buffer, vs, e);
+			if (ne-ns>0) parameter(buffer, ns, ne, vs, ve);
+			if (e<end && buffer[e] == ',') break;
+			i = e+1;
+		}
+	}
+
+	private void parameter(byte[] buffer, int ns, int ne, int vs, int ve) {
+		if (Request.equalsIgnoreCase(buffer, ns, ne, "RTP/AVP/TCP")) {
+			tcp = true;
+		} else if (Request.equalsIgnoreCase(buffer, ns, ne, "multicast")) {
+			multicast = true;
+		} else if (Request.equalsIgnoreCase(buffer, ns, ne, "client_port")) {
+			int dash = indexOf(buffer, vs, ve, '-');
+			rtpPort = Request.parseInt(buffer, vs, dash);
+			rtcpPort = dash<ve ? Request.parseInt(buffer, dash+1, ve) : rtpPort+1;
+		} else if (Request.equalsIgnoreCase(buffer, ns, ne, "interleaved")) {
+			int dash = indexOf(buffer, vs, ve, '-');
+			rtpChannel = Request.parseInt(buffer, vs, dash);
+			rtcpChannel = dash<ve ? Request.parseInt(buffer, dash+1, ve) : rtpChannel+1;
+		} else if (Request.equalsIgnoreCase(buffer, ns, ne, "ttl")) {
+			ttl = Request.parseInt(buffer, vs, ve);
+		} else if (Request.equalsIgnoreCase(buffer, ns, ne, "destination")) {
+			destination = new String(buffer, vs, ve-vs, Request.ISO_8859_1);
+		} else if (Request.equalsIgnoreCase(buffer, ns, ne, "mode")) {
+			if (ve-vs>=2 && buffer[vs] == '"') {
+				vs++;
+				ve--;
+			}
+			record = Request.equalsIgnoreCase(buffer, vs, ve, "record");
+		}
+	}
+
+	private static int indexOf(byte[] buffer, int start, int end, char c) {
+		while (start<end && buffer[start] != c) start++;
+		return start;
+	}
+
+	private static int trimStart(byte[] buffer, int start, int end) {
+		while (start<end && (buffer[start] == ' ' || buffer[start] == '\t')) start++;
+		return start;
+	}
+
+	private static int trimEnd(byte[] buffer, int start, int end) {
+		while (end>start && (buffer[end-1] == ' ' || buffer[end-1] == '\t')) end--;
+		return end;
+	}
+
+}
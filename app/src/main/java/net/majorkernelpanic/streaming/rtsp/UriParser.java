@@ -25,6 +25,7 @@ import static net.majorkernelpanic.streaming.SessionBuilder.AUDIO_AMRNB;
 import static net.majorkernelpanic.streaming.SessionBuilder.AUDIO_NONE;
 import static net.majorkernelpanic.streaming.SessionBuilder.VIDEO_H263;
 import static net.majorkernelpanic.streaming.SessionBuilder.VIDEO_H264;
+import static net.majorkernelpanic.streaming.SessionBuilder.VIDEO_H265;
 import static net.majorkernelpanic.streaming.SessionBuilder.VIDEO_NONE;
 
 import java.io.IOException;
@@ -56,6 +57,7 @@ public class UriParser {
 	 * <ul><li>rtsp://xxx.xxx.xxx.xxx:8086?h264&flash=on</li>
 	 * <li>rtsp://xxx.xxx.xxx.xxx:8086?h263&camera=front&flash=on</li>
 	 * <li>rtsp://xxx.xxx.xxx.xxx:8086?h264=200-20-320-240</li>
+	 * <li>rtsp://xxx.xxx.xxx.xxx:8086?h265=500-20-640-480</li>
 	 * <li>rtsp://xxx.xxx.xxx.xxx:8086?aac</li></ul>
 	 * @param uri The URI
 	 * @throws IllegalStateException
@@ -176,6 +178,12 @@ public class UriParser {
 					builder.setVideoQuality(quality).setVideoEncoder(VIDEO_H264);
 				}
 
+				// H.265
+				else if (paramName.equalsIgnoreCase("h265")) {
+					VideoQuality quality = VideoQuality.parseQuality(paramValue);
+					builder.setVideoQuality(quality).setVideoEncoder(VIDEO_H265);
+				}
+
 				// H.263
 				else if (paramName.equalsIgnoreCase("h263")) {
 					VideoQuality quality = VideoQuality.parseQuality(paramValue);
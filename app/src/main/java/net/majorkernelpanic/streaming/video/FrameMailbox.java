@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.video;
+
+/**
+ * A bounded queue between the preview callback of the camera and the thread that feeds the encoder. 
+ * When it is full the oldest frame is dropped and handed back to the caller, so that its buffer 
+ * can be given back to the camera right away: the newest frames win, and a frame never waits 
+ * behind more than <code>depth-1</code> others before being encoded.
+ * It also counts the frames captured, dropped and encoded, and how long they waited.
+ */
+public class FrameMailbox {
+
+	private final byte[][] mFrames;
+	private final long[] mTimes;
+	private int mHead = 0, mCount = 0;
+	private boolean mClosed = false;
+
+	private long mCaptured = 0, mDropped = 0, mEncoded = 0;
+	private long mTaken = 0, mWaitSum = 0, mWaitMax = 0;
+
+	/** @param depth How many frames can wait to be encoded, at least 1 */
+	public FrameMailbox(int depth) {
+		mFrames = new byte[Math.max(1, depth)][];
+		mTimes = new long[mFrames.length];
+	}
+
+	/**
+	 * Adds a frame from the camera, drops the oldest one if the mailbox is full.
+	 * @return The frame dropped, whose buffer can be given back to the camera, or null
+	 */
+	public synchronized byte[] put(byte[] frame) {
+		if (mClosed) return frame;
+		mCaptured++;
+		byte[] dropped = null;
+		if (mCount == mFrames.length) {
+			dropped = mFrames[mHead];
+			mFrames[mHead] = null;
+			mHead = (mHead+1)%mFrames.length;
+			mCount--;
+			mDropped++;
+		}
+		int tail = (mHead+mCount)%mFrames.length;
+		mFrames[tail] = frame;
+		mTimes[tail] = System.nanoTime();
+		mCount++;
+		notify();
+		return dropped;
+	}
+
+	/**
+	 * Waits for the oldest frame of the mailbox.
+	 * @return The frame, or null once the mailbox was closed
+	 */
+	public synchronized byte[] take() throws InterruptedException {
+		while (mCount == 0 && !mClosed) wait();
+		if (mClosed) return null;
+		byte[] frame = mFrames[mHead];
+		long wait = System.nanoTime()-mTimes[mHead];
+		mFrames[mHead] = null;
+		mHead = (mHead+1)%mFrames.length;
+		mCount--;
+		mTaken++;
+		mWaitSum += wait;
+		if (wait>mWaitMax) mWaitMax = wait;
+		return frame;
+	}
+
+	/** Counts a frame that was taken and then handed to the encoder. */
+	public synchronized void frameEncoded() {
+		mEncoded++;
+	}
+
+	/** Counts a frame that was taken but could not be encoded, because the encoder had no free buffer. */
+	public synchronized void frameDropped() {
+		mDropped++;
+	}
+
+	/** Wakes up {@link #take()}, the frames still in the mailbox are forgotten. */
+	public synchronized void close() {
+		mClosed = true;
+		for (int i=0;i<mFrames.length;i++) mFrames[i] = null;
+		mCount = 0;
+		notifyAll();
+	}
+
+	public synchronized boolean isClosed() {
+		return mClosed;
+	}
+
+	public int getDepth() {
+		return mFrames.length;
+	}
+
+	/** Returns the number of frames received from the camera. */
+	public synchronized long getCapturedFrames() {
+		return mCaptured;
+	}
+
+	/** Returns the number of frames dropped because the mailbox was full or the encoder busy. */
+	public synchronized long getDroppedFrames() {
+		return mDropped;
+	}
+
+	/** Returns the number of frames handed to the encoder. */
+	public synchronized long getEncodedFrames() {
+		return mEncoded;
+	}
+
+	/** Returns the average time a frame waited in the mailbox, in microseconds. */
+	public synchronized long getAverageWaitUs() {
+		return mTaken == 0 ? 0 : mWaitSum/mTaken/1000;
+	}
+
+	/** Returns the longest time a frame waited in the mailbox, in microseconds. */
+	public synchronized long getMaxWaitUs() {
+		return mWaitMax/1000;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "captured "+mCaptured+", dropped "+mDropped+", encoded "+mEncoded
+				+", wait avg "+getAverageWaitUs()+" us, max "+getMaxWaitUs()+" us";
+	}
+
+}
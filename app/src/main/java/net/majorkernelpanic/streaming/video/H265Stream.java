@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.video;
+
+import java.io.IOException;
+
+import net.majorkernelpanic.streaming.SessionBuilder;
+import net.majorkernelpanic.streaming.exceptions.ConfNotSupportedException;
+import net.majorkernelpanic.streaming.hw.EncoderDebugger;
+import net.majorkernelpanic.streaming.rtp.H265Packetizer;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.hardware.Camera.CameraInfo;
+import android.service.textservice.SpellCheckerService.Session;
+import android.util.Base64;
+
+/**
+ * A class for streaming H.265 from the camera of an android device using RTP.
+ * Only the MediaCodec API can encode H.265, use {@link SessionBuilder#VIDEO_H264} on 
+ * phones without an H.265 encoder.
+ * You should use a {@link Session} instantiated with {@link SessionBuilder} instead of using this class directly.
+ * Call {@link #setDestinationAddress(InetAddress)}, {@link #setDestinationPorts(int)} and {@link #setVideoQuality(VideoQuality)}
+ * to configure the stream. You can then call {@link #start()} to start the RTP stream.
+ * Call {@link #stop()} to stop the stream.
+ */
+public class H265Stream extends VideoStream {
+
+	public final static String TAG = "H265Stream";
+
+	private EncoderDebugger mDebugger;
+
+	/**
+	 * Constructs the H.265 stream.
+	 * Uses CAMERA_FACING_BACK by default.
+	 */
+	public H265Stream() {
+		this(CameraInfo.CAMERA_FACING_BACK, null);
+	}
+
+	/**
+	 * Constructs the H.265 stream.
+	 * @param cameraId Can be either CameraInfo.CAMERA_FACING_BACK or CameraInfo.CAMERA_FACING_FRONT
+	 */
+	public H265Stream(int cameraId, Context context) {
+		super(cameraId, context);
+		mMimeType = EncoderDebugger.MIME_TYPE_HEVC;
+		mCameraImageFormat = ImageFormat.NV21;
+		mPacketizer = new H265Packetizer();
+	}
+
+	/**
+	 * Returns a description of the stream using SDP (RFC 7798 section 7). It can then be included in an SDP file.
+	 */
+	public synchronized String getSessionDescription() throws IllegalStateException {
+		if (mDebugger == null) throw new IllegalStateException("You need to call configure() first !");
+		return "m=video "+String.valueOf(getDestinationPorts()[0])+" RTP/AVP "+getPayloadTypes()+"\r\n" +
+		"a=rtpmap:96 H265/90000\r\n" +
+		"a=fmtp:96 sprop-vps="+mDebugger.getB64VPS()+";sprop-sps="+mDebugger.getB64SPS()+";sprop-pps="+mDebugger.getB64PPS()+"\r\n" +
+		getRecoveryDescription();
+	}
+
+	/**
+	 * Starts the stream.
+	 * This will also open the camera and display the preview if {@link #startPreview()} has not already been called.
+	 */
+	public synchronized void start() throws IllegalStateException, IOException {
+		if (!mStreaming) {
+			configure();
+			byte[] vps = Base64.decode(mDebugger.getB64VPS(), Base64.NO_WRAP);
+			byte[] sps = Base64.decode(mDebugger.getB64SPS(), Base64.NO_WRAP);
+			byte[] pps = Base64.decode(mDebugger.getB64PPS(), Base64.NO_WRAP);
+			((H265Packetizer)mPacketizer).setStreamParameters(vps, sps, pps);
+			super.start();
+		}
+	}
+
+	/**
+	 * Configures the stream. You need to call this before calling {@link #getSessionDescription()} to apply
+	 * your configuration of the stream. Should not be called by the UI thread.
+	 */
+	public synchronized void configure() throws IllegalStateException, IOException {
+		super.configure();
+		mMode = mRequestedMode;
+		// The MediaRecorder API does not give us H.265
+		if (mMode == MODE_MEDIARECORDER_API) mMode = MODE_MEDIACODEC_API;
+		mQuality = mRequestedQuality.clone();
+		createCamera();
+		updateCamera();
+		try {
+			mDebugger = EncoderDebugger.debug(mSettings, EncoderDebugger.MIME_TYPE_HEVC, mQuality.resX, mQuality.resY);
+		} catch (RuntimeException e) {
+			mDebugger = null;
+			throw new ConfNotSupportedException(e.getMessage());
+		}
+	}
+
+}
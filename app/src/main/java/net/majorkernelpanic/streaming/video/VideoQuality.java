@@ -70,16 +70,38 @@ public class VideoQuality {
 	public int resX = 0;
 	public int resY = 0;
 
+	/** 
+	 * Bounds of the bitrate when it adapts to the network (see {@link net.majorkernelpanic.streaming.rtp.BitrateController}), 
+	 * 0 for a quarter of {@link #bitrate} and {@link #bitrate}.
+	 */
+	public int minBitrate = 0;
+	public int maxBitrate = 0;
+
+	/** Returns the lowest bitrate the encoder may be given. */
+	public int getMinBitrate() {
+		return minBitrate>0 ? minBitrate : bitrate/4;
+	}
+
+	/** Returns the highest bitrate the encoder may be given. */
+	public int getMaxBitrate() {
+		return maxBitrate>0 ? maxBitrate : bitrate;
+	}
+
 	public boolean equals(VideoQuality quality) {
 		if (quality==null) return false;
 		return (quality.resX == this.resX 			&
 				quality.resY == this.resY 			&
 				quality.framerate == this.framerate	&
-				quality.bitrate == this.bitrate);
+				quality.bitrate == this.bitrate		&
+				quality.minBitrate == this.minBitrate	&
+				quality.maxBitrate == this.maxBitrate);
 	}
 
 	public VideoQuality clone() {
-		return new VideoQuality(resX,resY,framerate,bitrate);
+		VideoQuality quality = new VideoQuality(resX,resY,framerate,bitrate);
+		quality.minBitrate = minBitrate;
+		quality.maxBitrate = maxBitrate;
+		return quality;
 	}
 
 	public static VideoQuality parseQuality(String str) {
@@ -44,8 +44,11 @@ import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.media.MediaRecorder;
 import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
 import android.os.Looper;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Surface;
 import android.view.SurfaceHolder;
@@ -59,10 +62,12 @@ import net.majorkernelpanic.streaming.exceptions.ConfNotSupportedException;
 import net.majorkernelpanic.streaming.exceptions.InvalidSurfaceException;
 import net.majorkernelpanic.streaming.gl.SurfaceView;
 import net.majorkernelpanic.streaming.hw.EncoderDebugger;
+import net.majorkernelpanic.streaming.hw.EncoderDriver;
 import net.majorkernelpanic.streaming.hw.NV21Convertor;
-import net.majorkernelpanic.streaming.rtp.MediaCodecInputStream;
+import net.majorkernelpanic.streaming.rtcp.ReceiverStats;
+import net.majorkernelpanic.streaming.rtp.BitrateController;
+import net.majorkernelpanic.streaming.rtp.RtpSocket;
 import net.majorkernelpanic.streaming.utils.SerialExecutor;
-import net.majorkernelpanic.streaming.utils.YuvRotator;
 
 import java.io.ByteArrayOutputStream;
 import java.io.FileDescriptor;
@@ -71,8 +76,6 @@ import java.io.InputStream;
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.Semaphore;
 
 /**
@@ -82,6 +85,9 @@ public abstract class VideoStream extends MediaStream implements SensorEventList
 
 	protected final static String TAG = "VideoStream";
 
+	/** Key frames are forced at most once per that many ms, the requests that come in between are merged. */
+	public final static int MIN_KEY_FRAME_REQUEST_INTERVAL = 1000;
+
 	protected VideoQuality mRequestedQuality = VideoQuality.DEFAULT_VIDEO_QUALITY.clone();
 	protected VideoQuality mQuality = mRequestedQuality.clone();
 	protected SurfaceHolder.Callback mSurfaceHolderCallback = null;
@@ -106,7 +112,8 @@ public abstract class VideoStream extends MediaStream implements SensorEventList
 	protected int mCameraImageFormat;
 	protected int mMaxFps = 0;
 	protected SerialExecutor mExecutor;
-	protected BlockingQueue<byte[]> mDataQueue;
+	protected EncoderDriver mEncoderDriver;
+	protected FrameMailbox mFrameMailbox;
 	protected WeakReference<Activity> mActivityRef;
 
 	//Modified: some device have problem to auto focus with the FOCUS_MODE_CONTINUOUS_PICTURE mode
@@ -120,6 +127,20 @@ public abstract class VideoStream extends MediaStream implements SensorEventList
 
 	private boolean mRequestedPortrait = false;
 
+	// Adapts the bitrate of the MediaCodec to the network
+	private boolean mAdaptiveBitrate = true;
+	private BitrateController mBitrateController = null;
+
+	// Key frames forced by requestKeyFrame()
+	private int mKeyFrameInterval = 1;
+
+	// Preview frames waiting to be encoded
+	private int mPreviewQueueDepth = 2;
+	private final Object mKeyFrameLock = new Object();
+	private long mLastKeyFrame = 0;
+	private boolean mKeyFramePending = false;
+	private Handler mKeyFrameHandler = null;
+
 	/**
 	 * Don't use this class directly.
 	 * Uses CAMERA_FACING_BACK by default.
@@ -329,6 +350,116 @@ public abstract class VideoStream extends MediaStream implements SensorEventList
 		mSettings = prefs;
 	}
 
+	/**
+	 * Lets the bitrate of the encoder follow what the network can carry, between the bounds of the 
+	 * {@link VideoQuality}, see {@link BitrateController}. Enabled by default, only works with the 
+	 * MediaCodec API on Android 4.4 and later. Takes effect the next time the stream is started.
+	 */
+	public void setAdaptiveBitrate(boolean enabled) {
+		mAdaptiveBitrate = enabled;
+	}
+
+	public boolean isAdaptiveBitrate() {
+		return mAdaptiveBitrate;
+	}
+
+	/** Returns the controller that adapts the bitrate of the encoder while streaming, or null. */
+	public BitrateController getBitrateController() {
+		return mBitrateController;
+	}
+
+	/**
+	 * Sets the interval between two key frames made by the MediaCodec on its own, 1 s by default. 
+	 * The receivers that lose packets or join the stream get a key frame when they ask for one 
+	 * (see {@link #requestKeyFrame()}), so it can be raised to save bitrate. 
+	 * Takes effect the next time the stream is started.
+	 * @param interval The interval in seconds
+	 */
+	public void setKeyFrameInterval(int interval) {
+		mKeyFrameInterval = Math.max(1, interval);
+	}
+
+	public int getKeyFrameInterval() {
+		return mKeyFrameInterval;
+	}
+
+	/**
+	 * Sets how many preview frames can wait to be encoded with the MediaCodec API, 2 by default. 
+	 * When the encoder falls behind, the oldest frames are dropped so that the latency 
+	 * added by the queue stays below that many frames.
+	 * Takes effect the next time the stream is started.
+	 */
+	public void setPreviewQueueDepth(int depth) {
+		mPreviewQueueDepth = Math.max(1, depth);
+	}
+
+	public int getPreviewQueueDepth() {
+		return mPreviewQueueDepth;
+	}
+
+	/** 
+	 * Returns the queue of the preview frames of the last stream started with the MediaCodec API, or null. 
+	 * It counts the frames captured, dropped and encoded, and how long they waited.
+	 */
+	public FrameMailbox getFrameMailbox() {
+		return mFrameMailbox;
+	}
+
+	/** Indicates if the encoder can be asked for a key frame, only the MediaCodec API on Android 4.4 and later can. */
+	public boolean canRequestKeyFrame() {
+		return mMode != MODE_MEDIARECORDER_API && Build.VERSION.SDK_INT>=19;
+	}
+
+	/**
+	 * Asks the encoder for a key frame, so that a receiver that lost packets or that just joined the stream 
+	 * can decode it right away. Called when a receiver sends a PLI or a FIR, can also be called by the application.
+	 * A key frame is forced at most once per {@link #MIN_KEY_FRAME_REQUEST_INTERVAL} ms, a request that comes 
+	 * sooner is merged with the others into one key frame forced at the end of the interval. 
+	 * @return False if the stream is not running or if its encoder can not be asked for a key frame
+	 */
+	@Override
+	public boolean requestKeyFrame() {
+		if (!mStreaming || !canRequestKeyFrame() || mMediaCodec == null) return false;
+		synchronized (mKeyFrameLock) {
+			if (mKeyFramePending) return true;
+			long delay = mLastKeyFrame+MIN_KEY_FRAME_REQUEST_INTERVAL-SystemClock.elapsedRealtime();
+			if (delay<=0) {
+				forceKeyFrame();
+				return true;
+			}
+			if (mKeyFrameHandler == null) mKeyFrameHandler = new Handler(Looper.getMainLooper());
+			mKeyFramePending = true;
+			mKeyFrameHandler.postDelayed(mKeyFrameRunnable, delay);
+		}
+		return true;
+	}
+
+	private final Runnable mKeyFrameRunnable = new Runnable() {
+		@Override
+		public void run() {
+			synchronized (mKeyFrameLock) {
+				if (!mKeyFramePending) return;
+				mKeyFramePending = false;
+				forceKeyFrame();
+			}
+		}
+	};
+
+	/** Asks the MediaCodec for a sync frame, called with the lock held. */
+	@SuppressLint("NewApi")
+	private void forceKeyFrame() {
+		MediaCodec codec = mMediaCodec;
+		mLastKeyFrame = SystemClock.elapsedRealtime();
+		if (codec == null || !mStreaming) return;
+		Bundle parameters = new Bundle();
+		parameters.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+		try {
+			codec.setParameters(parameters);
+		} catch (IllegalStateException e) {
+			// The codec is being released
+		}
+	}
+
 	/**
 	 * Configures the stream. You need to call this before calling {@link #getSessionDescription()}
 	 * to apply your configuration of the stream.
@@ -351,6 +482,15 @@ public abstract class VideoStream extends MediaStream implements SensorEventList
 
 	/** Stops the stream. */
 	public synchronized void stop() {
+		if (mBitrateController != null) {
+			mBitrateController.stop();
+			mBitrateController = null;
+		}
+		mPacketizer.getRtpSocket().setKeyFrameListener(null);
+		synchronized (mKeyFrameLock) {
+			mKeyFramePending = false;
+			if (mKeyFrameHandler != null) mKeyFrameHandler.removeCallbacks(mKeyFrameRunnable);
+		}
 		//Modified: some device have problem to auto focus with the FOCUS_MODE_CONTINUOUS_PICTURE mode
 		//use ACCELEROMETER sensor to implement the auto focus function
 		if (mSensorManager != null) {
@@ -359,8 +499,9 @@ public abstract class VideoStream extends MediaStream implements SensorEventList
 		if (mCamera != null) {
 			if (mMode == MODE_MEDIACODEC_API) {
 				mCamera.setPreviewCallbackWithBuffer(null);
-				if (mDataQueue != null) {
-					mDataQueue = null;
+				if (mFrameMailbox != null) {
+					mFrameMailbox.close();
+					Log.d(TAG, "Preview frames: "+mFrameMailbox);
 				}
 				if( mExecutor != null ) {
 					mExecutor.shoutDown();
@@ -531,7 +672,7 @@ public abstract class VideoStream extends MediaStream implements SensorEventList
 			}
 		}
 
-		EncoderDebugger debugger = EncoderDebugger.debug(mSettings, mQuality.resX, mQuality.resY);
+		EncoderDebugger debugger = EncoderDebugger.debug(mSettings, mMimeType, mQuality.resX, mQuality.resY);
 		final NV21Convertor convertor = debugger.getNV21Convertor();
 
 		String name = debugger.getEncoderName();
@@ -540,17 +681,19 @@ public abstract class VideoStream extends MediaStream implements SensorEventList
 		Log.d(TAG, "Convert: " + convertor.toString());
 
 		mMediaCodec = MediaCodec.createByCodecName(name);
-		MediaFormat mediaFormat = MediaFormat.createVideoFormat("video/avc", mQuality.resX, mQuality.resY);
+		mEncoderDriver = new EncoderDriver(mMediaCodec);
+		MediaFormat mediaFormat = MediaFormat.createVideoFormat(mMimeType, mQuality.resX, mQuality.resY);
 		mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, mQuality.bitrate);
 		mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, mQuality.framerate);
 		mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, format);
-		mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+		mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, mKeyFrameInterval);
 		mMediaCodec.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
 		mMediaCodec.start();
 
-		mDataQueue = new LinkedBlockingDeque<>();
+		final FrameMailbox mailbox = new FrameMailbox(mPreviewQueueDepth);
+		mFrameMailbox = mailbox;
 		mExecutor = new SerialExecutor( new SerialExecutor.ThreadExecutor(  ) );
-		mExecutor.execute(new RotationRunner(convertor));
+		mExecutor.execute(new RotationRunner(convertor, mailbox));
 
 		Camera.PreviewCallback callback = new Camera.PreviewCallback() {
 //			long now = System.nanoTime()/1000, oldnow = now, i=0;
@@ -576,7 +719,9 @@ public abstract class VideoStream extends MediaStream implements SensorEventList
 //				} finally {
 //					mCamera.addCallbackBuffer(data);
 //				}
-				mDataQueue.add(data);
+				// The newest frames win, a dropped frame goes back to the camera right away
+				byte[] dropped = mailbox.put(data);
+				if (dropped != null) camera.addCallbackBuffer(dropped);
 			}
 
 		};
@@ -585,8 +730,10 @@ public abstract class VideoStream extends MediaStream implements SensorEventList
 		mCamera.setPreviewCallbackWithBuffer(callback);
 
 		// The packetizer encapsulates the bit stream in an RTP stream and send it over the network
-		mPacketizer.setInputStream(new MediaCodecInputStream(mMediaCodec));
+		setEncoderOutput(mEncoderDriver, true);
 		mPacketizer.start();
+		startBitrateController();
+		listenToKeyFrameRequests();
 
 		mStreaming = true;
 
@@ -608,29 +755,100 @@ public abstract class VideoStream extends MediaStream implements SensorEventList
 		// Estimates the frame rate of the camera
 //		measureFramerate();
 
-		EncoderDebugger debugger = EncoderDebugger.debug(mSettings, mQuality.resX, mQuality.resY);
+		EncoderDebugger debugger = EncoderDebugger.debug(mSettings, mMimeType, mQuality.resX, mQuality.resY);
 
 		Log.d(TAG, "Encode2: "+mQuality.resX+"x"+mQuality.resY+" "+mQuality.bitrate+"bps"+" "+mQuality.framerate+"fps");
 
 		mMediaCodec = MediaCodec.createByCodecName(debugger.getEncoderName());
-		MediaFormat mediaFormat = MediaFormat.createVideoFormat("video/avc", mQuality.resX, mQuality.resY);
+		mEncoderDriver = new EncoderDriver(mMediaCodec);
+		MediaFormat mediaFormat = MediaFormat.createVideoFormat(mMimeType, mQuality.resX, mQuality.resY);
 		mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, mQuality.bitrate);
 		mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, mQuality.framerate);
 		mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-		mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+		mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, mKeyFrameInterval);
 		mMediaCodec.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
 		Surface surface = mMediaCodec.createInputSurface();
 		((SurfaceView)mSurfaceView).addMediaCodecSurface(surface);
 		mMediaCodec.start();
 
 		// The packetizer encapsulates the bit stream in an RTP stream and send it over the network
-		mPacketizer.setInputStream(new MediaCodecInputStream(mMediaCodec));
+		setEncoderOutput(mEncoderDriver, true);
 		mPacketizer.start();
+		startBitrateController();
+		listenToKeyFrameRequests();
 
 		mStreaming = true;
 
 	}
 
+	/** Lets the bitrate of the MediaCodec follow the network, it starts at the bitrate of the {@link VideoQuality}. */
+	@SuppressLint("NewApi")
+	private void startBitrateController() {
+		if (!mAdaptiveBitrate || Build.VERSION.SDK_INT<19) return;
+		final MediaCodec codec = mMediaCodec;
+		mBitrateController = new BitrateController(mQuality.bitrate, mQuality.getMinBitrate(), mQuality.getMaxBitrate());
+		mBitrateController.start(mPacketizer.getRtpSocket(), new BitrateController.Callback() {
+			@Override
+			public void onBitrateChanged(int bitrate) {
+				Log.d(TAG, "Bitrate of the encoder: "+bitrate/1000+" kbps");
+				Bundle parameters = new Bundle();
+				parameters.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+				try {
+					codec.setParameters(parameters);
+				} catch (IllegalStateException e) {
+					// The codec is being released
+				}
+			}
+		});
+	}
+
+	/** Forces a key frame when a receiver sends a PLI or a FIR, the encoder starts with one. */
+	private void listenToKeyFrameRequests() {
+		synchronized (mKeyFrameLock) {
+			mLastKeyFrame = SystemClock.elapsedRealtime();
+		}
+		if (!canRequestKeyFrame()) return;
+		mPacketizer.getRtpSocket().setKeyFrameListener(new RtpSocket.KeyFrameListener() {
+			@Override
+			public void onKeyFrameRequest(ReceiverStats receiver) {
+				requestKeyFrame();
+			}
+		});
+	}
+
+	/** 
+	 * Returns the payload types of the m= line of the stream: 96, {@link RtpSocket#RTX_PAYLOAD_TYPE} 
+	 * when lost packets are sent again in an RTX stream, {@link RtpSocket#FEC_PAYLOAD_TYPE} with parity packets.
+	 */
+	protected String getPayloadTypes() {
+		RtpSocket socket = mPacketizer.getRtpSocket();
+		String types = "96";
+		if (socket.getRetransmissionMode() == RtpSocket.RETRANSMIT_RTX) types += " "+RtpSocket.RTX_PAYLOAD_TYPE;
+		if (socket.getFecGroupSize()>0 || socket.isAdaptiveFec()) types += " "+RtpSocket.FEC_PAYLOAD_TYPE;
+		return types;
+	}
+
+	/** 
+	 * Returns the SDP attributes that tell the receiver how lost packets can be recovered, 
+	 * see {@link RtpSocket#setRetransmissionMode(int)}, {@link RtpSocket#setFecGroupSize(int)} 
+	 * and {@link #requestKeyFrame()}.
+	 */
+	protected String getRecoveryDescription() {
+		RtpSocket socket = mPacketizer.getRtpSocket();
+		String description = "";
+		int mode = socket.getRetransmissionMode();
+		if (mode != RtpSocket.RETRANSMIT_OFF) description += "a=rtcp-fb:96 nack\r\n";
+		if (canRequestKeyFrame()) description += "a=rtcp-fb:96 nack pli\r\na=rtcp-fb:96 ccm fir\r\n";
+		if (mode == RtpSocket.RETRANSMIT_RTX) {
+			description += "a=rtpmap:"+RtpSocket.RTX_PAYLOAD_TYPE+" rtx/90000\r\n" +
+					"a=fmtp:"+RtpSocket.RTX_PAYLOAD_TYPE+" apt=96;rtx-time="+RtpSocket.RETRANSMISSION_WINDOW+"\r\n";
+		}
+		if (socket.getFecGroupSize()>0 || socket.isAdaptiveFec()) {
+			description += "a=rtpmap:"+RtpSocket.FEC_PAYLOAD_TYPE+" ulpfec/90000\r\n";
+		}
+		return description;
+	}
+
 	/**
 	 * Returns a description of the stream using SDP.
 	 * This method can only be called after {@link Stream#configure()}.
@@ -971,30 +1189,35 @@ public abstract class VideoStream extends MediaStream implements SensorEventList
 
 	private class RotationRunner implements Runnable{
 
-		public RotationRunner( NV21Convertor convertor ){
+		public RotationRunner( NV21Convertor convertor, FrameMailbox mailbox ){
 			mConvertor =  convertor;
+			mMailbox = mailbox;
 		}
 
 		private NV21Convertor mConvertor;
+		private FrameMailbox mMailbox;
 
-		private void queueFrame( byte[] data ) {
+		private void queueFrame( byte[] data, VideoQuality vq ) {
 			long now = System.nanoTime()/1000;
 			try {
-				if( null != mMediaCodec ) {
-					ByteBuffer[] inputBuffers = mMediaCodec.getInputBuffers();
-					if ( null != inputBuffers ) {
-						int bufferIndex = mMediaCodec.dequeueInputBuffer( 500000 );
-						if ( bufferIndex >= 0 ) {
-							inputBuffers[ bufferIndex ].clear();
-							if ( data == null ) {
-								Log.e( TAG, "Symptom of the \"Callback buffer was to small\" problem..." );
-							} else {
-								mConvertor.convert( data, inputBuffers[ bufferIndex ] );
-							}
-							mMediaCodec.queueInputBuffer( bufferIndex, 0, inputBuffers[ bufferIndex ].position(), now, 0 );
+				EncoderDriver driver = mEncoderDriver;
+				if( null != driver ) {
+					int bufferIndex = driver.dequeueInputBuffer( 500000 );
+					if ( bufferIndex >= 0 ) {
+						ByteBuffer inputBuffer = driver.getInputBuffer( bufferIndex );
+						if ( data == null ) {
+							Log.e( TAG, "Symptom of the \"Callback buffer was to small\" problem..." );
+						} else if (mCameraId == CameraInfo.CAMERA_FACING_BACK) {
+							mConvertor.convert( data, vq.resX, vq.resY, 90, false, inputBuffer );
 						} else {
-							Log.e( TAG, "No buffer available !" );
+							// Modified: mirroring the data when use the front camera
+							mConvertor.convert( data, vq.resX, vq.resY, 270, true, inputBuffer );
 						}
+						driver.queueInputBuffer( bufferIndex, 0, inputBuffer.position(), now, 0 );
+						mMailbox.frameEncoded();
+					} else {
+						Log.e( TAG, "No buffer available !" );
+						mMailbox.frameDropped();
 					}
 				}
 			} catch (java.lang.IllegalStateException e) {
@@ -1009,47 +1232,16 @@ public abstract class VideoStream extends MediaStream implements SensorEventList
 		@Override
 		public void run() {
 			Log.d(TAG, "RotationRunner start");
-			while (/*!Thread.currentThread().isInterrupted() &&*/ mDataQueue != null) {
+			while (!mMailbox.isClosed()) {
 				try {
 					VideoQuality vq = getCameraQuality();
-					byte[] data = mDataQueue.take();	// Block until preview data arrives.
-					if (mCameraId == CameraInfo.CAMERA_FACING_BACK) {
-						data = YuvRotator.yuv420spRotate90( data, vq.resX, vq.resY );
-					} else {
-						data = YuvRotator.yuv420spRotate270(data, vq.resX, vq.resY);
-
-						// Modified: mirroring the data in NV21
-						data = mirrorData(data, vq.resY, vq.resX);
-
-						// Modified: mirroring the data when use the front camera
-						// this method need to compress the yuvimage to the jpeg image
-						// which is a little bit slow in some low end devices
-//						ByteArrayOutputStream os = new ByteArrayOutputStream();
-//						YuvImage yuv = new YuvImage(data, ImageFormat.NV21, vq.resY, vq.resX, null);
-//						yuv.compressToJpeg(new Rect(0, 0, vq.resY, vq.resX), 100, os);
-//						data = os.toByteArray();
-//
-//						Bitmap newImage = null;
-//						Bitmap cameraBitmap;
-//						if (data != null) {
-//							cameraBitmap = BitmapFactory.decodeByteArray(data, 0, (data != null) ? data.length : 0);
-//							// use matrix to reverse image data and keep it normal
-//							Matrix mtx = new Matrix();
-//							//this will prevent mirror effect
-//							mtx.preScale(-1.0f, 1.0f);
-//							// Rotating Bitmap , create real image that we want
-//							newImage = Bitmap.createBitmap(cameraBitmap, 0, 0, cameraBitmap.getWidth(), cameraBitmap.getHeight(), mtx, true);
-//						}
-////						int size = newImage.getRowBytes() * newImage.getHeight();
-////						ByteBuffer byteBuffer = ByteBuffer.allocate(size);
-////						newImage.copyPixelsToBuffer(byteBuffer);
-////						data = byteBuffer.array();
-//						data = getNV21(newImage.getWidth(), newImage.getHeight(), newImage);
-					}
-					queueFrame( data );
+					byte[] data = mMailbox.take();	// Block until preview data arrives.
+					if (data == null) break;
+					// Rotation, mirroring and color conversion in one pass, straight into the encoder
+					queueFrame( data, vq );
 				}
 				catch ( InterruptedException e ) {
-					e.printStackTrace();
+					break;
 				}
 			}
 			Log.d(TAG, "RotationRunner end");
@@ -1057,35 +1249,6 @@ public abstract class VideoStream extends MediaStream implements SensorEventList
 
 	}
 
-	// Modified: mirroring the data
-	private byte[] mirrorData(byte[] src, int srcWidth, int srcHeight) {
-		byte[] dst = new byte[ srcWidth * srcHeight * 3 / 2 ];
-		int wh;
-		int uvHeight;
-		wh = srcWidth * srcHeight;
-		uvHeight = srcHeight >> 1;
-
-		int k = 0;
-		int nPos = 0;
-		for (int i = 0; i < srcHeight; i++) {
-			nPos += srcWidth;
-			for (int j = 0; j < srcWidth; j++) {
-				dst[k] = src[nPos - j - 1];
-				k++;
-			}
-		}
-		nPos = wh + srcWidth - 1;
-		for (int i = 0; i < uvHeight; i++) {
-			for (int j = 0; j < srcWidth; j += 2) {
-				dst[k] = src[nPos - j - 1];
-				dst[k + 1] = src[nPos - j];
-				k += 2;
-			}
-			nPos += srcWidth;
-		}
-		return dst;
-	}
-
 	// Modified: convert the data from bitmap to NV21
 	private byte[] getNV21(int inputWidth, int inputHeight, Bitmap scaled) {
 		int[] argb = new int[inputWidth * inputHeight];